@@ -0,0 +1,184 @@
+package mn.foreman.googelchatbot.chat;
+
+import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.v2.ApacheHttpTransport;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.chat.v1.HangoutsChat;
+import com.google.api.services.chat.v1.model.Message;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures sending a message to a local stub of the Chat API, through the
+ * shared {@link HangoutsChatSender} on a pooled transport built the way the
+ * bot builds it, and through a new client on a new trusted transport per
+ * message, the way messages used to be sent. Run with -prof gc to compare
+ * the allocation per message, and with more threads (-t 8) to see senders
+ * sharing the pool. The stub is plain HTTP, so neither path pays for a TLS
+ * handshake here; against Chat itself, every message on the old path also
+ * paid for a new connection and handshake.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Measurement(iterations = 5)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2)
+public class ChatTransportBenchmark {
+
+    /** The max connections in the pool. */
+    private static final int MAX_CONNECTIONS = 20;
+
+    /** The reply from the stub for every message. */
+    private static final byte[] REPLY =
+            "{\"name\":\"spaces/AAAAx1sWfZo/messages/1\",\"text\":\"Hi\"}"
+                    .getBytes(StandardCharsets.UTF_8);
+
+    /** The space that's sent to. */
+    private static final String SPACE_ID = "spaces/AAAAx1sWfZo";
+
+    /** The text that's sent. */
+    private static final String TEXT = "\u274c *Hash rate dropped*";
+
+    /** The initializer for every request, which does nothing here. */
+    private final HttpRequestInitializer requestInitializer = request -> {
+    };
+
+    /** The root URL of the stub. */
+    private String rootUrl;
+
+    /** The sender on the pooled transport. */
+    private ChatSender sender;
+
+    /** The stub Chat API. */
+    private HttpServer server;
+
+    /** The executor that handles requests to the stub. */
+    private ExecutorService serverExecutor;
+
+    /** The pooled transport. */
+    private HttpTransport transport;
+
+    @Benchmark
+    public Message perMessage()
+            throws GeneralSecurityException, IOException {
+        final Message message = new Message();
+        message.setText(TEXT);
+        return new HangoutsChat.Builder(
+                GoogleNetHttpTransport.newTrustedTransport(),
+                GsonFactory.getDefaultInstance(),
+                this.requestInitializer)
+                .setRootUrl(this.rootUrl)
+                .build()
+                .spaces()
+                .messages()
+                .create(SPACE_ID, message)
+                .execute();
+    }
+
+    @Benchmark
+    public void pooled()
+            throws IOException {
+        this.sender.send(
+                SPACE_ID,
+                TEXT);
+    }
+
+    @Setup(Level.Trial)
+    public void setUp()
+            throws IOException {
+        this.serverExecutor = Executors.newFixedThreadPool(MAX_CONNECTIONS);
+        this.server =
+                HttpServer.create(
+                        new InetSocketAddress(
+                                InetAddress.getLoopbackAddress(),
+                                0),
+                        0);
+        this.server.createContext(
+                "/",
+                ChatTransportBenchmark::reply);
+        this.server.setExecutor(this.serverExecutor);
+        this.server.start();
+        this.rootUrl =
+                "http://localhost:" + this.server.getAddress().getPort() + "/";
+
+        // Built like the bot's chatTransport and hangoutsChat beans
+        this.transport =
+                new ApacheHttpTransport(
+                        ApacheHttpTransport
+                                .newDefaultHttpClientBuilder()
+                                .setMaxConnTotal(MAX_CONNECTIONS)
+                                .setMaxConnPerRoute(MAX_CONNECTIONS)
+                                .evictIdleConnections(
+                                        60_000,
+                                        TimeUnit.MILLISECONDS)
+                                .build());
+        this.sender =
+                new HangoutsChatSender(
+                        new HangoutsChat.Builder(
+                                this.transport,
+                                GsonFactory.getDefaultInstance(),
+                                this.requestInitializer)
+                                .setRootUrl(this.rootUrl)
+                                .setApplicationName("google-chat-bot")
+                                .build());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+            throws IOException {
+        this.transport.shutdown();
+        this.server.stop(0);
+        this.serverExecutor.shutdownNow();
+    }
+
+    /**
+     * Replies to a message the way Chat does, with the created message.
+     *
+     * @param exchange The request and response.
+     *
+     * @throws IOException on failure.
+     */
+    private static void reply(final HttpExchange exchange)
+            throws IOException {
+        try (final InputStream inputStream = exchange.getRequestBody()) {
+            inputStream.readAllBytes();
+        }
+        exchange
+                .getResponseHeaders()
+                .set(
+                        "Content-Type",
+                        "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(
+                200,
+                REPLY.length);
+        try (final OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(REPLY);
+        }
+    }
+}
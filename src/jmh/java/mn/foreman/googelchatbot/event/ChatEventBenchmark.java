@@ -0,0 +1,105 @@
+package mn.foreman.googelchatbot.event;
+
+import mn.foreman.googelchatbot.commands.CommandRouter;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures reading the recorded Chat events in the test resources, as a
+ * {@link JsonNode} tree queried with JSON Pointers the way events used to be
+ * read and bound to a {@link ChatEvent}, and routing a slash command with
+ * {@link CommandRouter} on its own. Run with -prof gc to compare the
+ * allocation per event.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Measurement(iterations = 5)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2)
+public class ChatEventBenchmark {
+
+    /** The recorded event. */
+    @Param({"added-to-space", "message"})
+    public String payload;
+
+    /** The router, with a handler for the recorded command. */
+    private final CommandRouter commandRouter =
+            new CommandRouter(
+                    Collections.singletonMap(
+                            "/register",
+                            (rest, spaceId) -> rest));
+
+    /** The recorded event, bound. */
+    private ChatEvent event;
+
+    /** The recorded event. */
+    private byte[] json;
+
+    /** The object mapper. */
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Benchmark
+    public Optional<String> route()
+            throws IOException {
+        return this.commandRouter.messageEvent(this.event);
+    }
+
+    @Setup(Level.Trial)
+    public void setUp()
+            throws IOException {
+        try (final InputStream inputStream =
+                     ChatEventBenchmark.class.getResourceAsStream("/events/" + this.payload + ".json")) {
+            this.json = inputStream.readAllBytes();
+        }
+        this.event =
+                this.objectMapper.readValue(
+                        this.json,
+                        ChatEvent.class);
+    }
+
+    @Benchmark
+    public void tree(final Blackhole blackhole)
+            throws IOException {
+        final JsonNode event = this.objectMapper.readTree(this.json);
+        blackhole.consume(event.at("/type").asText());
+        blackhole.consume(event.at("/message/text").asText());
+        blackhole.consume(event.at("/space/name").asText());
+        blackhole.consume(event.at("/space/displayName").asText());
+        blackhole.consume(event.at("/user/displayName").asText());
+    }
+
+    @Benchmark
+    public void typed(final Blackhole blackhole)
+            throws IOException {
+        final ChatEvent event =
+                this.objectMapper.readValue(
+                        this.json,
+                        ChatEvent.class);
+        blackhole.consume(event.getType());
+        blackhole.consume(event.text());
+        blackhole.consume(event.spaceName());
+        blackhole.consume(event.getSpace().getDisplayName());
+        blackhole.consume(event.getUser().getDisplayName());
+    }
+}
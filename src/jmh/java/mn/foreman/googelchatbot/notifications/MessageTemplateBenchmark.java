@@ -0,0 +1,90 @@
+package mn.foreman.googelchatbot.notifications;
+
+import mn.foreman.api.endpoints.notifications.Notifications;
+import mn.foreman.googelchatbot.outbox.OutboundQueue;
+import mn.foreman.googelchatbot.utils.ForemanApiCache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * Measures rendering a notification with 1, 10 and 1000 failing miners, with
+ * the templates {@link NotificationProcessorImpl} compiles at startup and
+ * with the {@link String#format(String, Object...)} and emoji parser path it
+ * used before ({@link LegacyNotificationRenderer}). The max miners shown is
+ * the configured 10, and 1000 to render every miner. Run with -prof gc to
+ * compare the allocation per message.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Measurement(iterations = 5)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2)
+public class MessageTemplateBenchmark {
+
+    /** The dashboard URL. */
+    private static final String DASHBOARD_URL = "https://dashboard.foreman.mn";
+
+    /** The failing miners in the notification. */
+    @Param({"1", "10", "1000"})
+    public int failingMiners;
+
+    /** The max miners shown in a message. */
+    @Param({"10", "1000"})
+    public int maxNotifications;
+
+    /** The path that formats every line and parses the whole message. */
+    private LegacyNotificationRenderer legacy;
+
+    /** The notification that's rendered. */
+    private Notifications.Notification notification;
+
+    /** The processor, which renders from compiled templates. */
+    private NotificationProcessorImpl processor;
+
+    @Benchmark
+    public String legacy() {
+        return this.legacy.render(this.notification);
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.legacy =
+                new LegacyNotificationRenderer(
+                        DASHBOARD_URL,
+                        this.maxNotifications);
+        this.notification =
+                NotificationProcessorImplTest.notification(
+                        "Miners are failing",
+                        this.failingMiners);
+        this.processor =
+                new NotificationProcessorImpl(
+                        DASHBOARD_URL,
+                        this.maxNotifications,
+                        mock(ForemanApiCache.class),
+                        Instant.now(),
+                        mock(OutboundQueue.class),
+                        mock(MessageBatcher.class));
+    }
+
+    @Benchmark
+    public String template() {
+        return this.processor.toNotificationMessage(this.notification);
+    }
+}
@@ -0,0 +1,216 @@
+package mn.foreman.googelchatbot.session;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures {@link FileSessionRepository} with a log holding 1k, 10k and 100k
+ * sessions, each saved a few times after it was made: how long a save takes
+ * to become durable, and how long it takes to recover the sessions from the
+ * log on startup. Run save with more threads (-t 8) to see concurrent
+ * writers sharing syncs.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Measurement(iterations = 5)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2)
+public class FileSessionRepositoryBenchmark {
+
+    /** When the sessions registered. */
+    private static final Instant REGISTERED = Instant.parse("2022-06-01T00:00:00Z");
+
+    /** The number of times each session is saved after it's made. */
+    private static final int SAVES = 3;
+
+    /** The number of threads that build the log. */
+    private static final int WRITERS = 64;
+
+    /** The sessions in the log. */
+    @Param({"1000", "10000", "100000"})
+    public int sessions;
+
+    /** The executor for the saved repository's compactions, which never run. */
+    private ScheduledExecutorService compactor;
+
+    /** The directory holding the log. */
+    private Path directory;
+
+    /** The log. */
+    private Path file;
+
+    /** The object mapper. */
+    private final ObjectMapper objectMapper =
+            new ObjectMapper()
+                    .findAndRegisterModules()
+                    .registerModule(new JavaTimeModule());
+
+    /** The repository that's saved to. */
+    private FileSessionRepository repository;
+
+    @Benchmark
+    public int recover()
+            throws IOException {
+        // Recovered from a copy, so saves made by the other benchmark don't
+        // change what's measured
+        final Path copy = this.directory.resolve("recover.log");
+        // Its own compactor, so the repository isn't kept alive by a
+        // scheduled compaction after it's closed
+        final ScheduledExecutorService compactor =
+                Executors.newSingleThreadScheduledExecutor();
+        try (final FileSessionRepository recovered =
+                     open(
+                             copy,
+                             compactor)) {
+            return recovered.findAll().size();
+        } finally {
+            compactor.shutdownNow();
+        }
+    }
+
+    @Benchmark
+    public void save()
+            throws IOException {
+        final String spaceId =
+                "spaces/space" + ThreadLocalRandom.current().nextInt(this.sessions);
+        this.repository.save(
+                spaceId,
+                session(
+                        spaceId,
+                        ThreadLocalRandom.current().nextInt()));
+    }
+
+    @Setup(Level.Trial)
+    public void setUp()
+            throws IOException {
+        this.compactor = Executors.newSingleThreadScheduledExecutor();
+        this.directory = Files.createTempDirectory("sessions");
+        this.file = this.directory.resolve("sessions.log");
+        this.repository =
+                open(
+                        this.file,
+                        this.compactor);
+        // Written concurrently so that building the log shares syncs
+        final ExecutorService writers = Executors.newFixedThreadPool(WRITERS);
+        try {
+            final List<Future<?>> writes = new ArrayList<>(this.sessions);
+            for (int i = 0; i < this.sessions; i++) {
+                final String spaceId = "spaces/space" + i;
+                writes.add(writers.submit(() -> {
+                    this.repository.make(
+                            spaceId,
+                            1,
+                            "key",
+                            REGISTERED);
+                    for (int save = 1; save <= SAVES; save++) {
+                        this.repository.save(
+                                spaceId,
+                                session(
+                                        spaceId,
+                                        save));
+                    }
+                    return null;
+                }));
+            }
+            for (final Future<?> write : writes) {
+                write.get();
+            }
+        } catch (final InterruptedException | ExecutionException e) {
+            throw new IOException("Failed to build the log", e);
+        } finally {
+            writers.shutdownNow();
+        }
+        Files.copy(
+                this.file,
+                this.directory.resolve("recover.log"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+            throws IOException {
+        this.repository.close();
+        this.compactor.shutdownNow();
+        try (final Stream<Path> paths = Files.walk(this.directory)) {
+            paths
+                    .sorted(Comparator.reverseOrder())
+                    .forEach(path -> path.toFile().delete());
+        }
+    }
+
+    /**
+     * Opens the provided log. It's never compacted, so every record is
+     * replayed on recovery.
+     *
+     * @param log       The log.
+     * @param compactor The executor for the repository's compactions.
+     *
+     * @return The repository.
+     *
+     * @throws IOException on failure.
+     */
+    private FileSessionRepository open(
+            final Path log,
+            final ScheduledExecutorService compactor)
+            throws IOException {
+        return new FileSessionRepository(
+                log,
+                this.objectMapper,
+                Integer.MAX_VALUE,
+                compactor,
+                Duration.ofDays(1),
+                new SimpleMeterRegistry());
+    }
+
+    /**
+     * Creates a session.
+     *
+     * @param spaceId            The space ID.
+     * @param lastNotificationId The cursor.
+     *
+     * @return The session.
+     */
+    private static Session session(
+            final String spaceId,
+            final int lastNotificationId) {
+        return Session
+                .builder()
+                .apiKey("key")
+                .clientId(1)
+                .dateRegistered(REGISTERED)
+                .lastNotificationId(lastNotificationId)
+                .spaceId(spaceId)
+                .build();
+    }
+}
@@ -0,0 +1,183 @@
+package mn.foreman.googelchatbot.session;
+
+import mn.foreman.googelchatbot.storage.FakeStorage;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.google.cloud.storage.StorageException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures {@link GoogleStorageRepository} against {@link FakeStorage}, with
+ * a bucket holding 1k, 10k and 100k sessions. Every storage request is run
+ * with and without a latency, to see how much of it the concurrent
+ * downloads hide, and with and without injected failures, to see what they
+ * cost. A request that fails is measured like any other.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Measurement(iterations = 5)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2)
+public class GoogleStorageRepositoryBenchmark {
+
+    /** When the sessions registered. */
+    private static final Instant REGISTERED = Instant.parse("2022-06-01T00:00:00Z");
+
+    /** The probability that a storage request fails. */
+    @Param({"0", "0.01"})
+    public double failureRate;
+
+    /** How long every storage request takes. */
+    @Param({"0", "20"})
+    public int latencyMillis;
+
+    /** The sessions in the bucket. */
+    @Param({"1000", "10000", "100000"})
+    public int sessions;
+
+    /** The executor that downloads sessions. */
+    private ExecutorService loadExecutor;
+
+    /** The ID of the next session to make. */
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    /** The repository. */
+    private GoogleStorageRepository repository;
+
+    @Benchmark
+    public void findAll(final Blackhole blackhole) {
+        try {
+            blackhole.consume(this.repository.findAll());
+        } catch (final IOException | StorageException e) {
+            blackhole.consume(e);
+        }
+    }
+
+    @Benchmark
+    public void findBySpaceId(final Blackhole blackhole) {
+        try {
+            blackhole.consume(this.repository.findBySpaceId(randomSpace()));
+        } catch (final StorageException e) {
+            blackhole.consume(e);
+        }
+    }
+
+    @Benchmark
+    public void make(final Blackhole blackhole) {
+        try {
+            blackhole.consume(
+                    this.repository.make(
+                            "spaces/new" + this.nextId.incrementAndGet(),
+                            1,
+                            "key",
+                            REGISTERED));
+        } catch (final IOException | StorageException e) {
+            blackhole.consume(e);
+        }
+    }
+
+    @Benchmark
+    public void save(final Blackhole blackhole) {
+        final String spaceId = randomSpace();
+        try {
+            this.repository.save(
+                    spaceId,
+                    Session
+                            .builder()
+                            .apiKey("key")
+                            .clientId(1)
+                            .dateRegistered(REGISTERED)
+                            .lastNotificationId(ThreadLocalRandom.current().nextInt())
+                            .spaceId(spaceId)
+                            .build());
+        } catch (final IOException | StorageException e) {
+            blackhole.consume(e);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp()
+            throws IOException {
+        this.loadExecutor = Executors.newFixedThreadPool(16);
+        this.repository =
+                new GoogleStorageRepository(
+                        new ObjectMapper()
+                                .findAndRegisterModules()
+                                .registerModule(new JavaTimeModule()),
+                        FakeStorage.newBucket(
+                                "sessions",
+                                Duration.ofMillis(this.latencyMillis),
+                                this.failureRate),
+                        32,
+                        this.loadExecutor,
+                        new SimpleMeterRegistry());
+        for (int i = 0; i < this.sessions; i++) {
+            seed(i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.loadExecutor.shutdownNow();
+    }
+
+    /**
+     * Makes the provided session, trying again after an injected failure.
+     *
+     * @param i The session number.
+     *
+     * @throws IOException on failure.
+     */
+    private void seed(final int i)
+            throws IOException {
+        while (true) {
+            try {
+                this.repository.make(
+                        "spaces/space" + i,
+                        i,
+                        "key" + i,
+                        REGISTERED);
+                return;
+            } catch (final IOException e) {
+                if (this.failureRate == 0) {
+                    throw e;
+                }
+                // Injected, so try again
+            }
+        }
+    }
+
+    /**
+     * Returns a random space that has a session.
+     *
+     * @return The space ID.
+     */
+    private String randomSpace() {
+        return "spaces/space" + ThreadLocalRandom.current().nextInt(this.sessions);
+    }
+}
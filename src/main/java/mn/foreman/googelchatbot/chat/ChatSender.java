@@ -0,0 +1,19 @@
+package mn.foreman.googelchatbot.chat;
+
+import java.io.IOException;
+
+/** A {@link ChatSender} delivers text messages to a Google Chat space. */
+public interface ChatSender {
+
+    /**
+     * Sends the provided text to the provided space.
+     *
+     * @param spaceId The space to send the message to.
+     * @param text    The message content.
+     *
+     * @throws IOException on failure.
+     */
+    void send(
+            String spaceId,
+            String text) throws IOException;
+}
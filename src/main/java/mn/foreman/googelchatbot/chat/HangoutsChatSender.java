@@ -0,0 +1,42 @@
+package mn.foreman.googelchatbot.chat;
+
+import com.google.api.services.chat.v1.HangoutsChat;
+import com.google.api.services.chat.v1.model.Message;
+
+import java.io.IOException;
+
+/**
+ * A {@link ChatSender} that sends messages through a single, long-lived
+ * {@link HangoutsChat} client. The client, and the transport beneath it, are
+ * shared by every caller so connections are pooled and kept alive between
+ * sends rather than being re-established for every message.
+ */
+public class HangoutsChatSender
+        implements ChatSender {
+
+    /** The shared chat client. */
+    private final HangoutsChat hangoutsChat;
+
+    /**
+     * Constructor.
+     *
+     * @param hangoutsChat The shared chat client.
+     */
+    public HangoutsChatSender(final HangoutsChat hangoutsChat) {
+        this.hangoutsChat = hangoutsChat;
+    }
+
+    @Override
+    public void send(
+            final String spaceId,
+            final String text)
+            throws IOException {
+        final Message message = new Message();
+        message.setText(text);
+        this.hangoutsChat
+                .spaces()
+                .messages()
+                .create(spaceId, message)
+                .execute();
+    }
+}
@@ -0,0 +1,241 @@
+package mn.foreman.googelchatbot.chat;
+
+import com.google.api.client.http.HttpResponseException;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.RateLimiter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link ChatSender} decorator that keeps sends within Google Chat's
+ * quotas. Every send must take a token from a bucket for its space and then
+ * from the global bucket; sends wait for tokens rather than failing, up to a
+ * limit. The space's token comes first so that sends to a busy space, which
+ * will be rejected anyway, never take global tokens that other spaces could
+ * have used. Sends that are throttled anyway (429) or that hit an unavailable
+ * backend (503) are retried with jittered exponential backoff, honoring the
+ * <code>Retry-After</code> header when Google provides one.
+ *
+ * <p>No retry waits longer than a send would wait for tokens. When Google asks
+ * for a longer wait, the failure is thrown instead, so the caller can try
+ * again later without holding a thread for the whole wait.</p>
+ */
+public class RateLimitedChatSender
+        implements ChatSender {
+
+    /** The logger for this class. */
+    private static final Logger LOG =
+            LoggerFactory.getLogger(RateLimitedChatSender.class);
+
+    /** The status code for a throttled request. */
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    /** The status code for an unavailable backend. */
+    private static final int UNAVAILABLE = 503;
+
+    /** The number of sends given up on because of a long Retry-After. */
+    private final Counter deferred;
+
+    /** The sender being rate limited. */
+    private final ChatSender delegate;
+
+    /** The bucket shared by every send. */
+    private final RateLimiter globalLimiter;
+
+    /** The longest a send will wait for tokens before it's rejected. */
+    private final Duration maxWait;
+
+    /** The number of times a send is retried. */
+    private final int maxRetries;
+
+    /** The number of sends that couldn't get tokens in time. */
+    private final Counter rejected;
+
+    /** The number of sends that were retried. */
+    private final Counter retries;
+
+    /** The base delay between retries. */
+    private final Duration retryDelay;
+
+    /** The buckets for each space. */
+    private final LoadingCache<String, RateLimiter> spaceLimiters;
+
+    /** How long sends waited for tokens. */
+    private final Timer waitTimer;
+
+    /**
+     * Constructor.
+     *
+     * @param delegate      The sender being rate limited.
+     * @param globalRate    The sends per second across every space.
+     * @param spaceRate     The sends per second to any one space.
+     * @param maxWait       The longest a send will wait for tokens.
+     * @param maxRetries    The number of times a send is retried.
+     * @param retryDelay    The base delay between retries.
+     * @param meterRegistry The registry for the limiter metrics.
+     */
+    public RateLimitedChatSender(
+            final ChatSender delegate,
+            final double globalRate,
+            final double spaceRate,
+            final Duration maxWait,
+            final int maxRetries,
+            final Duration retryDelay,
+            final MeterRegistry meterRegistry) {
+        this.delegate = delegate;
+        this.globalLimiter = RateLimiter.create(globalRate);
+        this.spaceLimiters =
+                CacheBuilder
+                        .newBuilder()
+                        .expireAfterAccess(
+                                1,
+                                TimeUnit.HOURS)
+                        .build(CacheLoader.from(() -> RateLimiter.create(spaceRate)));
+        this.maxWait = maxWait;
+        this.maxRetries = maxRetries;
+        this.retryDelay = retryDelay;
+        this.waitTimer = meterRegistry.timer("chat.ratelimit.wait");
+        this.rejected = meterRegistry.counter("chat.ratelimit.rejected");
+        this.retries = meterRegistry.counter("chat.retries");
+        this.deferred = meterRegistry.counter("chat.retries.deferred");
+    }
+
+    @Override
+    public void send(
+            final String spaceId,
+            final String text)
+            throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            acquire(spaceId);
+            try {
+                this.delegate.send(
+                        spaceId,
+                        text);
+                return;
+            } catch (final HttpResponseException e) {
+                final int status = e.getStatusCode();
+                if ((status != TOO_MANY_REQUESTS && status != UNAVAILABLE) ||
+                        attempt >= this.maxRetries) {
+                    throw e;
+                }
+                final long delay = toRetryDelay(e, attempt);
+                if (delay > this.maxWait.toMillis()) {
+                    LOG.warn("Chat returned {} for {} and asked for {}ms - giving up for now",
+                            status,
+                            spaceId,
+                            delay);
+                    this.deferred.increment();
+                    throw e;
+                }
+                LOG.warn("Chat returned {} for {} - retrying in {}ms",
+                        status,
+                        spaceId,
+                        delay);
+                this.retries.increment();
+                sleep(delay);
+            }
+        }
+    }
+
+    /**
+     * Waits for a token from the space's bucket and then from the global
+     * bucket.
+     *
+     * @param spaceId The space being sent to.
+     *
+     * @throws IOException if the tokens weren't available in time.
+     */
+    private void acquire(final String spaceId)
+            throws IOException {
+        final long start = System.nanoTime();
+        final long maxWaitNanos = this.maxWait.toNanos();
+        final boolean acquired =
+                this.spaceLimiters
+                        .getUnchecked(spaceId)
+                        .tryAcquire(
+                                maxWaitNanos,
+                                TimeUnit.NANOSECONDS) &&
+                        this.globalLimiter.tryAcquire(
+                                Math.max(0, maxWaitNanos - (System.nanoTime() - start)),
+                                TimeUnit.NANOSECONDS);
+        this.waitTimer.record(
+                System.nanoTime() - start,
+                TimeUnit.NANOSECONDS);
+        if (!acquired) {
+            this.rejected.increment();
+            throw new IOException("Rate limited sending to " + spaceId);
+        }
+    }
+
+    /**
+     * Sleeps for the provided delay.
+     *
+     * @param delayMillis The delay.
+     *
+     * @throws InterruptedIOException if interrupted.
+     */
+    private static void sleep(final long delayMillis)
+            throws InterruptedIOException {
+        try {
+            Thread.sleep(delayMillis);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while retrying");
+        }
+    }
+
+    /**
+     * Determines how long to wait before the next attempt. The
+     * <code>Retry-After</code> header wins when present, even if it's longer
+     * than a send may wait; otherwise the delay grows exponentially with full
+     * jitter, up to the longest a send may wait.
+     *
+     * @param e       The failure.
+     * @param attempt The attempt that failed.
+     *
+     * @return The delay, in milliseconds.
+     */
+    private long toRetryDelay(
+            final HttpResponseException e,
+            final int attempt) {
+        final String retryAfter =
+                e.getHeaders() != null
+                        ? e.getHeaders().getRetryAfter()
+                        : null;
+        if (retryAfter != null) {
+            try {
+                return TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+            } catch (final NumberFormatException nfe) {
+                try {
+                    return Math.max(
+                            0,
+                            ZonedDateTime
+                                    .parse(retryAfter, DateTimeFormatter.RFC_1123_DATE_TIME)
+                                    .toInstant()
+                                    .toEpochMilli() - System.currentTimeMillis());
+                } catch (final DateTimeParseException dtpe) {
+                    LOG.warn("Unrecognized Retry-After: {}", retryAfter);
+                }
+            }
+        }
+        final long ceiling =
+                Math.min(
+                        this.retryDelay.toMillis() << Math.min(attempt, 10),
+                        this.maxWait.toMillis());
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+}
@@ -0,0 +1,133 @@
+package mn.foreman.googelchatbot.commands;
+
+import mn.foreman.googelchatbot.chat.ChatSender;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A {@link CommandHandler} decorator for slow commands, such as those that
+ * call the Foreman API. The command is run on a dedicated executor and its
+ * result is sent to the space once it's ready, so the event is answered
+ * right away with an acknowledgement instead of holding up a web server
+ * thread.
+ *
+ * <p>When the executor is saturated, the command is turned away rather than
+ * queued behind work that Google may have already given up on.</p>
+ */
+public class AsyncCommandHandler
+        implements CommandHandler {
+
+    /** The logger for this class. */
+    private static final Logger LOG =
+            LoggerFactory.getLogger(AsyncCommandHandler.class);
+
+    /** The reply when the command is turned away. */
+    private static final String BUSY =
+            "I'm a little busy right now - please try that again in a minute.";
+
+    /** The reply when the command failed. */
+    private static final String FAILED =
+            "Sorry, something went wrong - please try that again.";
+
+    /** The immediate reply, or empty for none. */
+    private final String acknowledgement;
+
+    /** Sends the results. */
+    private final ChatSender chatSender;
+
+    /** The handler that runs the command. */
+    private final CommandHandler delegate;
+
+    /** The executor that runs the commands. */
+    private final ExecutorService executor;
+
+    /** The number of commands that failed. */
+    private final Counter failures;
+
+    /** The number of commands that were turned away. */
+    private final Counter rejected;
+
+    /**
+     * Constructor.
+     *
+     * @param command         The command being handled.
+     * @param delegate        The handler that runs the command.
+     * @param executor        The executor that runs the commands.
+     * @param chatSender      Sends the results.
+     * @param acknowledgement The immediate reply, or empty for none.
+     * @param meterRegistry   The registry for the command metrics.
+     */
+    public AsyncCommandHandler(
+            final String command,
+            final CommandHandler delegate,
+            final ExecutorService executor,
+            final ChatSender chatSender,
+            final String acknowledgement,
+            final MeterRegistry meterRegistry) {
+        this.delegate = delegate;
+        this.executor = executor;
+        this.chatSender = chatSender;
+        this.acknowledgement = acknowledgement;
+        this.failures =
+                meterRegistry.counter(
+                        "commands.async.failures",
+                        "command",
+                        command);
+        this.rejected =
+                meterRegistry.counter(
+                        "commands.async.rejected",
+                        "command",
+                        command);
+    }
+
+    @Override
+    public String handle(
+            final String rest,
+            final String spaceId) {
+        try {
+            this.executor.execute(
+                    () -> run(
+                            rest,
+                            spaceId));
+        } catch (final RejectedExecutionException e) {
+            this.rejected.increment();
+            return BUSY;
+        }
+        return this.acknowledgement;
+    }
+
+    /**
+     * Runs the command and sends its result to the space.
+     *
+     * @param rest    Any input after the slash command.
+     * @param spaceId The space the command came from.
+     */
+    private void run(
+            final String rest,
+            final String spaceId) {
+        String reply;
+        try {
+            reply =
+                    this.delegate.handle(
+                            rest,
+                            spaceId);
+        } catch (final Exception e) {
+            LOG.error("Failed to handle a command for {}", spaceId, e);
+            this.failures.increment();
+            reply = FAILED;
+        }
+        try {
+            this.chatSender.send(
+                    spaceId,
+                    reply);
+        } catch (final Exception e) {
+            LOG.error("Failed to reply to {}", spaceId, e);
+        }
+    }
+}
@@ -1,8 +1,6 @@
 package mn.foreman.googelchatbot.commands;
 
-import mn.foreman.googelchatbot.utils.EventUtils;
-
-import com.fasterxml.jackson.databind.JsonNode;
+import mn.foreman.googelchatbot.event.ChatEvent;
 
 import java.io.IOException;
 import java.util.Map;
@@ -11,6 +9,9 @@ import java.util.Optional;
 /** A class for responding to different events. */
 public class CommandRouter {
 
+    /** The handler for unknown commands. */
+    private static final CommandHandler NULL_HANDLER = new NullHandler();
+
     /** Map of all possible command handlers. */
     private final Map<String, CommandHandler> commandHandlers;
 
@@ -27,47 +28,37 @@ public class CommandRouter {
     /**
      * Method for handling slash commands.
      *
-     * @param event is the Json payload.
+     * @param event The event.
+     *
+     * @return The reply, if the event was a slash command.
      *
      * @throws IOException on failure.
      */
     public Optional<String> messageEvent(
-            final JsonNode event)
+            final ChatEvent event)
             throws IOException {
-        String response = null;
-        String rest = "";
-        String text = "";
-        String spaceId = "";
-        final Optional<String> textOpt = EventUtils.getAttribute(
-                event,
-                "/message/text");
-        final Optional<String> spaceIdOpt = EventUtils.getAttribute(
-                event,
-                "/space/name");
-        if (textOpt.isPresent()) {
-            text = textOpt.get();
+        final String text = event.text();
+        if (!text.startsWith("/")) {
+            return Optional.empty();
         }
-        if (spaceIdOpt.isPresent()) {
-            spaceId = spaceIdOpt.get();
-        }
-
-        if (text.startsWith("/")) {
-            final String[] regions = text.split(" ", 2);
-            final String command = regions[0];
-            if (regions.length > 1) {
-                rest = regions[1];
-            }
 
-            final CommandHandler handler =
-                    this.commandHandlers
-                            .getOrDefault(
-                                    command,
-                                    new NullHandler());
-            response = handler
-                    .handle(
-                            rest,
-                            spaceId);
-        }
-            return Optional.ofNullable(response);
+        final int separator = text.indexOf(' ');
+        final String command =
+                separator >= 0
+                        ? text.substring(0, separator)
+                        : text;
+        final String rest =
+                separator >= 0
+                        ? text.substring(separator + 1)
+                        : "";
+        final CommandHandler handler =
+                this.commandHandlers
+                        .getOrDefault(
+                                command,
+                                NULL_HANDLER);
+        return Optional.ofNullable(
+                handler.handle(
+                        rest,
+                        event.spaceName()));
     }
 }
@@ -1,7 +1,9 @@
 package mn.foreman.googelchatbot.commands;
 
+import mn.foreman.googelchatbot.notifications.SessionScheduler;
 import mn.foreman.googelchatbot.session.Session;
 import mn.foreman.googelchatbot.session.SessionRepository;
+import mn.foreman.googelchatbot.utils.ForemanApiCache;
 
 import java.util.Optional;
 
@@ -13,16 +15,29 @@ import java.util.Optional;
 public class ForgetHandler
         implements CommandHandler {
 
+    /** The cache of Foreman API clients. */
+    private final ForemanApiCache foremanApiCache;
+
     /** The Google cloud storage repository for the {@link Session}. */
     private final SessionRepository sessionRepository;
 
+    /** Schedules notifications for registered sessions. */
+    private final SessionScheduler sessionScheduler;
+
     /**
      * Constructor for the forget command.
      *
      * @param sessionRepository repository for the {@link Session}.
+     * @param foremanApiCache   the cache of Foreman API clients.
+     * @param sessionScheduler  schedules notifications for sessions.
      */
-    public ForgetHandler(final SessionRepository sessionRepository) {
+    public ForgetHandler(
+            final SessionRepository sessionRepository,
+            final ForemanApiCache foremanApiCache,
+            final SessionScheduler sessionScheduler) {
         this.sessionRepository = sessionRepository;
+        this.foremanApiCache = foremanApiCache;
+        this.sessionScheduler = sessionScheduler;
     }
 
     @Override
@@ -49,7 +64,12 @@ public class ForgetHandler
         final Optional<Session> sessionOpt =
                 this.sessionRepository.findBySpaceId(spaceId);
         if (sessionOpt.isPresent()) {
+            final Session session = sessionOpt.get();
             this.sessionRepository.delete(spaceId);
+            this.sessionScheduler.cancel(spaceId);
+            this.foremanApiCache.invalidate(
+                    session.getClientId(),
+                    session.getApiKey());
             return "Got it - I won't send you notifications anymore";
         } else {
             // In this case they haven't done the register step yet.
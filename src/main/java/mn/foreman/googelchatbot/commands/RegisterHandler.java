@@ -2,16 +2,20 @@ package mn.foreman.googelchatbot.commands;
 
 import mn.foreman.api.ForemanApi;
 import mn.foreman.api.endpoints.ping.Ping;
+import mn.foreman.googelchatbot.notifications.SessionScheduler;
+import mn.foreman.googelchatbot.session.Session;
+import mn.foreman.googelchatbot.session.SessionConflictException;
 import mn.foreman.googelchatbot.session.SessionRepository;
-import mn.foreman.googelchatbot.utils.ForemanUtils;
+import mn.foreman.googelchatbot.utils.ForemanApiCache;
+import mn.foreman.googelchatbot.utils.MessageTemplate;
 
-import com.vdurmont.emoji.EmojiParser;
 import org.apache.commons.lang3.math.NumberUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.time.Instant;
+import java.util.Optional;
 
 /** Allows the user to register with the foreman Api. */
 public class RegisterHandler
@@ -20,29 +24,41 @@ public class RegisterHandler
     /** The logger for this the Register handler. */
     private static final Logger LOG = LoggerFactory.getLogger(RegisterHandler.class);
 
-    /** URl for Foreman API. */
-    private final String foremanApiUrl;
-
-    /** URL for foreman dashboard. */
-    private final String foremanDashboardUrl;
+    /** The cache of Foreman API clients. */
+    private final ForemanApiCache foremanApiCache;
 
     /** The Google cloud storage repository. */
     private final SessionRepository sessionRepository;
 
+    /** Schedules notifications for registered sessions. */
+    private final SessionScheduler sessionScheduler;
+
+    /** The confirmation, resolved once since it never changes. */
+    private final String successResponse;
+
     /**
      * The constructor for the register command
      *
-     * @param foremanApiUrl       The Api Url for the User.
+     * @param foremanApiCache     The cache of Foreman API clients.
      * @param foremanDashboardUrl The User's foreman dashboard URL.
      * @param sessionRepository   The session repository.
+     * @param sessionScheduler    Schedules notifications for sessions.
      */
     public RegisterHandler(
-            final String foremanApiUrl,
+            final ForemanApiCache foremanApiCache,
             final String foremanDashboardUrl,
-            final SessionRepository sessionRepository) {
-        this.foremanDashboardUrl = foremanDashboardUrl;
-        this.foremanApiUrl = foremanApiUrl;
+            final SessionRepository sessionRepository,
+            final SessionScheduler sessionScheduler) {
+        this.foremanApiCache = foremanApiCache;
         this.sessionRepository = sessionRepository;
+        this.sessionScheduler = sessionScheduler;
+        this.successResponse =
+                MessageTemplate.resolve(
+                        "Those look correct! Setup complete :white_check_mark:\n" +
+                                "\n" +
+                                "You'll get notified based on your *alert* <" + foremanDashboardUrl + "/dashboard/triggers/|triggers>, so make sure you created some and set their destination to Slack.\n" +
+                                "\n" +
+                                "If you've already done this, you should be good to go! :thumbsup:");
     }
 
     @Override
@@ -82,7 +98,7 @@ public class RegisterHandler
         if (NumberUtils.isCreatable(clientIdCandidate)) {
             final int clientId = Integer.parseInt(clientIdCandidate);
             final String apiKey = splitArgs[1];
-            final ForemanApi foremanApi = ForemanUtils.toApi(clientId, apiKey, this.foremanApiUrl);
+            final ForemanApi foremanApi = this.foremanApiCache.get(clientId, apiKey);
             final Ping ping = foremanApi.ping();
 
             if (ping.pingClient()) {
@@ -91,23 +107,34 @@ public class RegisterHandler
                 // state and sends the user a confirmation message. Builds
                 // the session and google repository and adds the client id,
                 // api key, and space id to the session/state.
-                this.sessionRepository
-                        .make(
-                                spaceId,
-                                clientId,
-                                apiKey,
-                                Instant.now()
-                        );
-                // Concatenate the confirmation text.
-                outPutArgs =
-                        "Those look correct! Setup complete :white_check_mark:\n" +
-                                "\n" +
-                                String.format(
-                                        "You'll get notified based on your *alert* <%s/dashboard/triggers/|triggers>, so make sure you created some and set their destination to Slack.\n",
-                                        this.foremanDashboardUrl) +
-                                "\n" +
-                                "If you've already done this, you should be good to go! :thumbsup:";
+                Session session;
+                try {
+                    session =
+                            this.sessionRepository
+                                    .make(
+                                            spaceId,
+                                            clientId,
+                                            apiKey,
+                                            Instant.now()
+                                    );
+                } catch (final SessionConflictException e) {
+                    // Registered through another replica since this one
+                    // last looked - replace it, like any re-registration
+                    forget(spaceId);
+                    session =
+                            this.sessionRepository
+                                    .make(
+                                            spaceId,
+                                            clientId,
+                                            apiKey,
+                                            Instant.now()
+                                    );
+                }
+                this.sessionScheduler.schedule(session);
+                outPutArgs = this.successResponse;
             } else {
+                // Don't hold on to a client for credentials that don't work
+                this.foremanApiCache.invalidate(clientId, apiKey);
                 outPutArgs =
                         "I tried those, but they didn't work. Please " +
                                 "re-input the register command followed by your client Id and api key to try again";
@@ -118,7 +145,7 @@ public class RegisterHandler
             LOG.warn("Number not provided: {}", clientIdCandidate);
             outPutArgs = "Sorry, client ID should have been a number. Please try again.";
         }
-        return EmojiParser.parseToUnicode(outPutArgs);
+        return outPutArgs;
     }
 
     /**
@@ -152,9 +179,7 @@ public class RegisterHandler
                             .split(" ");
 
             // This deletes the old Session so they can re-register.
-            if (this.sessionRepository.findBySpaceId(spaceId).isPresent()) {
-                sessionRepository.delete(spaceId);
-            }
+            forget(spaceId);
 
             if (splitArgs.length >= 2) {
                 output =
@@ -169,4 +194,23 @@ public class RegisterHandler
         }
         return output;
     }
+
+    /**
+     * Deletes the provided space's session, if it has one, so that it can
+     * register again.
+     *
+     * @param spaceId The space.
+     */
+    private void forget(final String spaceId) {
+        final Optional<Session> sessionOpt =
+                this.sessionRepository.findBySpaceId(spaceId);
+        if (sessionOpt.isPresent()) {
+            final Session session = sessionOpt.get();
+            this.sessionRepository.delete(spaceId);
+            this.sessionScheduler.cancel(spaceId);
+            this.foremanApiCache.invalidate(
+                    session.getClientId(),
+                    session.getApiKey());
+        }
+    }
 }
@@ -1,6 +1,7 @@
 package mn.foreman.googelchatbot.commands;
 
-import com.vdurmont.emoji.EmojiParser;
+import mn.foreman.googelchatbot.utils.MessageTemplate;
+
 import org.springframework.beans.factory.annotation.Value;
 
 /**
@@ -10,8 +11,8 @@ import org.springframework.beans.factory.annotation.Value;
 public class StartHandler
         implements CommandHandler {
 
-    /** Foreman Dashboard Url. */
-    private final String foremanDashboardUrl;
+    /** The response, resolved once since it never changes. */
+    private final String response;
 
     /**
      * The constructor for the start command handler.
@@ -20,40 +21,42 @@ public class StartHandler
      */
     public StartHandler(
             @Value("${foreman.baseUrl}") final String foremanDashboardUrl) {
-        this.foremanDashboardUrl = foremanDashboardUrl;
+        this.response = buildResponse(foremanDashboardUrl);
     }
 
     @Override
     public String handle(
             final String rest,
             final String spaceId) {
-        return buildResponse();
+        return this.response;
     }
 
     /**
      * Method for building the response for start that directs the user to their
      * foreman dashboard.
      *
+     * @param foremanDashboardUrl The user's foreman dashboard URL.
+     *
      * @return String with the response.
      */
-    private String buildResponse() {
+    private static String buildResponse(final String foremanDashboardUrl) {
         final String response =
                 "Hello! I'm *Todd*, the Foreman Slack notification bot. :wave: \n" +
                         "\n" +
                         String.format(
                                 "Based on <%s/dashboard/triggers/|triggers> you create on your dashboard, I'll send you notifications when things happen.\n",
-                                this.foremanDashboardUrl) +
+                                foremanDashboardUrl) +
                         "\n" +
                         "Let's get introduced:\n" +
                         "\n" +
                         String.format(
                                 "1. Go <%s/dashboard/profile/|here> get your *client id* and *API key*\n",
-                                this.foremanDashboardUrl) +
+                                foremanDashboardUrl) +
                         "2. Once you have them, run: `/register <client_id> <api_key>`\n" +
                         "3. That's it! :beers: Then I'll send your notifications to this channel.\n" +
                         "\n" +
                         "If you want them to happen somewhere else, re-run " +
                         "the register above in the channel where you want to be notified.";
-        return EmojiParser.parseToUnicode(response);
+        return MessageTemplate.resolve(response);
     }
 }
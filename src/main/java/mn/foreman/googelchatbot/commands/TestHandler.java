@@ -4,9 +4,8 @@ import mn.foreman.api.ForemanApi;
 import mn.foreman.api.endpoints.ping.Ping;
 import mn.foreman.googelchatbot.session.Session;
 import mn.foreman.googelchatbot.session.SessionRepository;
-import mn.foreman.googelchatbot.utils.ForemanUtils;
-
-import com.vdurmont.emoji.EmojiParser;
+import mn.foreman.googelchatbot.utils.ForemanApiCache;
+import mn.foreman.googelchatbot.utils.MessageTemplate;
 
 import java.util.Optional;
 
@@ -17,8 +16,24 @@ import java.util.Optional;
 public class TestHandler
         implements CommandHandler {
 
-    /** The Url for the Foreman Api */
-    private final String foremanApiUrl;
+    /** The response when the API credentials work. */
+    private static final String AUTH_OK =
+            MessageTemplate.resolve("*Authentication with your API credentials:* :white_check_mark:\n");
+
+    /** The response when the API credentials don't work. */
+    private static final String AUTH_FAILED =
+            MessageTemplate.resolve("*Authentication with your API credentials:* :x:\n");
+
+    /** The response when Foreman can be reached. */
+    private static final String CONNECTIVITY_OK =
+            MessageTemplate.resolve("*Connectivity to Foreman:* :white_check_mark:\n");
+
+    /** The response when Foreman can't be reached. */
+    private static final String CONNECTIVITY_FAILED =
+            MessageTemplate.resolve("*Connectivity to Foreman:* :x:\n");
+
+    /** The cache of Foreman Api clients */
+    private final ForemanApiCache foremanApiCache;
 
     /** Where the {@link Session} is stored */
     private final SessionRepository sessionRepository;
@@ -26,13 +41,13 @@ public class TestHandler
     /**
      * The constructor for the slash command handler.
      *
-     * @param foremanApiUrl     The user's foreman api url.
+     * @param foremanApiCache   The cache of Foreman api clients.
      * @param sessionRepository The repository for the current session.
      */
     public TestHandler(
-            final String foremanApiUrl,
+            final ForemanApiCache foremanApiCache,
             final SessionRepository sessionRepository) {
-        this.foremanApiUrl = foremanApiUrl;
+        this.foremanApiCache = foremanApiCache;
         this.sessionRepository = sessionRepository;
     }
 
@@ -50,28 +65,27 @@ public class TestHandler
             Session session = sessionOpt.get();
 
             final ForemanApi foremanApi =
-                    ForemanUtils
-                            .toApi(session.getClientId(),
-                                    session.getApiKey(),
-                                    this.foremanApiUrl);
+                    this.foremanApiCache
+                            .get(session.getClientId(),
+                                    session.getApiKey());
             final Ping ping = foremanApi.ping();
             if (ping.ping()) {
                 messageBuilder
-                        .append("*Connectivity to Foreman:* :white_check_mark:\n");
+                        .append(CONNECTIVITY_OK);
             } else {
                 messageBuilder
-                        .append("*Connectivity to Foreman:* :x:\n");
+                        .append(CONNECTIVITY_FAILED);
             }
 
             if (ping.pingClient()) {
-                messageBuilder.append("*Authentication with your API credentials:* :white_check_mark:\n");
+                messageBuilder.append(AUTH_OK);
             } else {
-                messageBuilder.append("*Authentication with your API credentials:* :x:\n");
+                messageBuilder.append(AUTH_FAILED);
             }
         } else {
             messageBuilder.append("We haven't met yet...");
         }
-        return EmojiParser.parseToUnicode(messageBuilder.toString());
+        return messageBuilder.toString();
     }
 }
 
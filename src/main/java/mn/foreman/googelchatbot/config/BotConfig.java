@@ -1,61 +1,212 @@
 package mn.foreman.googelchatbot.config;
 
+import mn.foreman.googelchatbot.chat.ChatSender;
+import mn.foreman.googelchatbot.chat.HangoutsChatSender;
+import mn.foreman.googelchatbot.chat.RateLimitedChatSender;
 import mn.foreman.googelchatbot.commands.*;
+import mn.foreman.googelchatbot.controller.EventResponder;
+import mn.foreman.googelchatbot.event.EventDeduplicator;
+import mn.foreman.googelchatbot.notifications.MessageBatcher;
+import mn.foreman.googelchatbot.notifications.NotificationFanOut;
+import mn.foreman.googelchatbot.notifications.SessionScheduler;
+import mn.foreman.googelchatbot.outbox.FileOutboundQueue;
+import mn.foreman.googelchatbot.outbox.GoogleStorageOutboundQueue;
+import mn.foreman.googelchatbot.outbox.OutboundQueue;
+import mn.foreman.googelchatbot.outbox.OutboxDispatcher;
+import mn.foreman.googelchatbot.session.CachingSessionRepository;
+import mn.foreman.googelchatbot.session.CursorCheckpointer;
+import mn.foreman.googelchatbot.session.FileSessionRepository;
 import mn.foreman.googelchatbot.session.GoogleStorageRepository;
 import mn.foreman.googelchatbot.session.SessionRepository;
+import mn.foreman.googelchatbot.session.SnapshotSessionRepository;
+import mn.foreman.googelchatbot.sharding.ShardLeaseManager;
+import mn.foreman.googelchatbot.storage.BlobStore;
+import mn.foreman.googelchatbot.storage.FileBlobStore;
+import mn.foreman.googelchatbot.storage.GoogleStorageBlobStore;
+import mn.foreman.googelchatbot.utils.ForemanApiCache;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.v2.ApacheHttpTransport;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.chat.v1.HangoutsChat;
 import com.google.auth.http.HttpCredentialsAdapter;
 import com.google.auth.oauth2.GoogleCredentials;
 import com.google.cloud.storage.Bucket;
 import com.google.cloud.storage.Storage;
 import com.google.cloud.storage.StorageOptions;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.context.annotation.Primary;
 
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Clock;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /** The configuration for the Foreman Google Chat *TM* bot */
 @Configuration
 public class BotConfig {
 
+    /** The logger for this class. */
+    private static final Logger LOG =
+            LoggerFactory.getLogger(BotConfig.class);
+
     @Bean
+    @Lazy
     public Bucket bucket(
             @Value("${google.bucket}") final String bucketName,
             final Storage storage) {
         return storage.get(bucketName);
     }
 
+    @Bean
+    @Lazy
+    public BlobStore blobStore(
+            @Value("${blobs.type}") final String type,
+            @Value("${blobs.directory}") final String directory,
+            final ObjectProvider<Bucket> bucket)
+            throws IOException {
+        if ("file".equals(type)) {
+            return new FileBlobStore(Paths.get(directory));
+        }
+        return new GoogleStorageBlobStore(bucket.getObject());
+    }
+
+    @Bean
+    public ChatSender chatSender(
+            final HangoutsChat hangoutsChat,
+            @Value("${google.chatRateLimit}") final double globalRate,
+            @Value("${google.chatSpaceRateLimit}") final double spaceRate,
+            @Value("${google.chatRateLimitMaxWait}") final Duration maxWait,
+            @Value("${google.chatMaxRetries}") final int maxRetries,
+            @Value("${google.chatRetryDelay}") final Duration retryDelay,
+            final MeterRegistry meterRegistry) {
+        return new RateLimitedChatSender(
+                new HangoutsChatSender(hangoutsChat),
+                globalRate,
+                spaceRate,
+                maxWait,
+                maxRetries,
+                retryDelay,
+                meterRegistry);
+    }
+
+    @Bean
+    public HttpTransport chatTransport(
+            @Value("${google.chatMaxConnections}") final int maxConnections,
+            @Value("${google.chatIdleTimeout}") final long idleTimeout) {
+        // One pooled transport for every Chat call so connections (and their
+        // TLS sessions) are reused instead of being built for every message
+        return new ApacheHttpTransport(
+                ApacheHttpTransport
+                        .newDefaultHttpClientBuilder()
+                        .setMaxConnTotal(maxConnections)
+                        .setMaxConnPerRoute(maxConnections)
+                        .evictIdleConnections(
+                                idleTimeout,
+                                TimeUnit.MILLISECONDS)
+                        .build());
+    }
+
+    @Bean
+    public CursorCheckpointer cursorCheckpointer(
+            final SessionRepository sessionRepository,
+            final MeterRegistry meterRegistry) {
+        return new CursorCheckpointer(
+                sessionRepository,
+                meterRegistry);
+    }
+
     @Bean
     public Map<String, CommandHandler> commandHandlers(
             @Value("${foreman.baseUrl}") final String dashboardUrl,
-            @Value("${foreman.apiUrl}") final String apiUrl,
-            final SessionRepository sessionRepository) {
-        return ImmutableMap.of(
-                "/start",
-                new StartHandler(
-                        dashboardUrl),
-                "/register",
-                new RegisterHandler(
-                        apiUrl,
-                        dashboardUrl,
-                        sessionRepository),
-                "/test",
-                new TestHandler(
-                        apiUrl,
-                        sessionRepository),
-                "/forget",
-                new ForgetHandler(
-                        sessionRepository),
-                "/help",
-                new HelpHandler());
+            final ForemanApiCache foremanApiCache,
+            final SessionRepository sessionRepository,
+            final SessionScheduler sessionScheduler,
+            @Value("${bot.command.async}") final boolean async,
+            @Value("${bot.command.acknowledgement}") final String acknowledgement,
+            @Value("${bot.command.threads}") final int threads,
+            @Value("${bot.command.queueSize}") final int queueSize,
+            final ChatSender chatSender,
+            final MeterRegistry meterRegistry) {
+        final Map<String, CommandHandler> slowHandlers =
+                ImmutableMap.of(
+                        "/register",
+                        new RegisterHandler(
+                                foremanApiCache,
+                                dashboardUrl,
+                                sessionRepository,
+                                sessionScheduler),
+                        "/test",
+                        new TestHandler(
+                                foremanApiCache,
+                                sessionRepository));
+        final Map<String, CommandHandler> handlers = new HashMap<>(slowHandlers);
+        if (async) {
+            final ExecutorService commandExecutor =
+                    ExecutorServiceMetrics.monitor(
+                            meterRegistry,
+                            new ThreadPoolExecutor(
+                                    threads,
+                                    threads,
+                                    0,
+                                    TimeUnit.MILLISECONDS,
+                                    new ArrayBlockingQueue<>(queueSize),
+                                    new ThreadFactoryBuilder()
+                                            .setNameFormat("command-%d")
+                                            .setDaemon(true)
+                                            .build()),
+                            "commands");
+            slowHandlers.forEach(
+                    (command, handler) ->
+                            handlers.put(
+                                    command,
+                                    new AsyncCommandHandler(
+                                            command,
+                                            handler,
+                                            commandExecutor,
+                                            chatSender,
+                                            acknowledgement,
+                                            meterRegistry)));
+        }
+        return ImmutableMap.<String, CommandHandler>builder()
+                .putAll(handlers)
+                .put(
+                        "/start",
+                        new StartHandler(
+                                dashboardUrl))
+                .put(
+                        "/forget",
+                        new ForgetHandler(
+                                sessionRepository,
+                                foremanApiCache,
+                                sessionScheduler))
+                .put(
+                        "/help",
+                        new HelpHandler())
+                .build();
     }
 
     @Bean
@@ -63,6 +214,21 @@ public class BotConfig {
         return new CommandRouter(commandMap);
     }
 
+    @Bean
+    public ForemanApiCache foremanApiCache(
+            @Value("${foreman.apiUrl}") final String apiUrl,
+            @Value("${foreman.apiCacheSize}") final long maxSize,
+            @Value("${foreman.apiCacheExpiry}") final Duration expiry,
+            final ObjectMapper objectMapper,
+            final MeterRegistry meterRegistry) {
+        return new ForemanApiCache(
+                apiUrl,
+                objectMapper,
+                maxSize,
+                expiry,
+                meterRegistry);
+    }
+
     // Production code
     @Bean
     public GoogleCredentials googleCredentials(
@@ -73,6 +239,122 @@ public class BotConfig {
                 .createScoped(credentials);
     }
 
+    @Bean
+    public HangoutsChat hangoutsChat(
+            final HttpTransport chatTransport,
+            final HttpRequestInitializer requestInitializer) {
+        return new HangoutsChat.Builder(
+                chatTransport,
+                GsonFactory.getDefaultInstance(),
+                requestInitializer)
+                .setApplicationName("google-chat-bot")
+                .build();
+    }
+
+    @Bean
+    public MessageBatcher messageBatcher(
+            @Value("${notifications.batch.enabled}") final boolean enabled,
+            @Value("${notifications.batch.maxLength}") final int maxLength,
+            final MeterRegistry meterRegistry) {
+        return new MessageBatcher(
+                enabled,
+                maxLength,
+                meterRegistry);
+    }
+
+    @Bean
+    public EventDeduplicator eventDeduplicator(
+            @Value("${bot.event.dedup.ttl}") final Duration ttl,
+            @Value("${bot.event.dedup.maxSize}") final long maxSize,
+            @Value("${bot.event.dedup.shared}") final boolean shared,
+            final ObjectProvider<BlobStore> blobStore,
+            final MeterRegistry meterRegistry) {
+        // Shared keys that outlive the TTL are deleted by its scheduled
+        // sweep, every bot.event.dedup.sweepDelay
+        return new EventDeduplicator(
+                ttl,
+                maxSize,
+                shared
+                        ? blobStore.getObject()
+                        : null,
+                meterRegistry);
+    }
+
+    @Bean
+    public EventResponder eventResponder(
+            final CommandRouter commandRouter,
+            final ChatSender chatSender,
+            final EventDeduplicator eventDeduplicator) {
+        return new EventResponder(
+                commandRouter,
+                chatSender,
+                eventDeduplicator);
+    }
+
+    @Bean
+    public ExecutorService eventExecutor(
+            @Value("${bot.event.threads}") final int threads,
+            @Value("${bot.event.queueSize}") final int queueSize,
+            final MeterRegistry meterRegistry) {
+        // Bounded so a burst of events is turned away, and redelivered by
+        // Chat, rather than queued past the point where it can be answered
+        return ExecutorServiceMetrics.monitor(
+                meterRegistry,
+                new ThreadPoolExecutor(
+                        threads,
+                        threads,
+                        0,
+                        TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<>(queueSize),
+                        new ThreadFactoryBuilder()
+                                .setNameFormat("event-%d")
+                                .setDaemon(true)
+                                .build()),
+                "events");
+    }
+
+    @Bean
+    public ExecutorService notificationExecutor(
+            @Value("${bot.notify.threads}") final int threads,
+            @Value("${bot.notify.virtualThreads}") final boolean virtualThreads) {
+        if (virtualThreads) {
+            // Looked up reflectively so the bot still builds for and runs on
+            // JDKs that predate virtual threads
+            try {
+                return (ExecutorService) Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor")
+                        .invoke(null);
+            } catch (final ReflectiveOperationException e) {
+                LOG.warn("Virtual threads aren't available - using {} platform threads",
+                        threads);
+            }
+        }
+        return Executors.newFixedThreadPool(
+                threads,
+                new ThreadFactoryBuilder()
+                        .setNameFormat("notifier-%d")
+                        .setDaemon(true)
+                        .build());
+    }
+
+    @Bean
+    public NotificationFanOut notificationFanOut(
+            final ExecutorService notificationExecutor,
+            @Value("${bot.notify.deadline}") final Duration deadline,
+            final MeterRegistry meterRegistry) {
+        final ScheduledExecutorService watchdog =
+                Executors.newSingleThreadScheduledExecutor(
+                        new ThreadFactoryBuilder()
+                                .setNameFormat("notifier-watchdog-%d")
+                                .setDaemon(true)
+                                .build());
+        return new NotificationFanOut(
+                notificationExecutor,
+                watchdog,
+                deadline,
+                meterRegistry);
+    }
+
     @Bean
     @Primary
     public ObjectMapper objectMapper() {
@@ -92,13 +374,158 @@ public class BotConfig {
                         .createScoped(chatScope));
     }
 
+    @Bean
+    public OutboundQueue outboundQueue(
+            @Value("${outbox.type}") final String type,
+            @Value("${outbox.directory}") final String directory,
+            final ObjectMapper objectMapper,
+            final ObjectProvider<Bucket> bucket)
+            throws IOException {
+        if ("file".equals(type)) {
+            return new FileOutboundQueue(
+                    Paths.get(directory),
+                    objectMapper);
+        }
+        return new GoogleStorageOutboundQueue(
+                objectMapper,
+                bucket.getObject());
+    }
+
+    @Bean
+    public OutboxDispatcher outboxDispatcher(
+            final OutboundQueue outboundQueue,
+            final ChatSender chatSender,
+            final SessionRepository sessionRepository,
+            final CursorCheckpointer cursorCheckpointer,
+            final ShardLeaseManager shardLeaseManager,
+            @Value("${outbox.threads}") final int threads,
+            @Value("${outbox.initialDelay}") final Duration initialDelay,
+            @Value("${outbox.fixedDelay}") final Duration fixedDelay,
+            final MeterRegistry meterRegistry) {
+        return new OutboxDispatcher(
+                outboundQueue,
+                chatSender,
+                sessionRepository,
+                cursorCheckpointer,
+                shardLeaseManager,
+                Executors.newFixedThreadPool(
+                        threads,
+                        new ThreadFactoryBuilder()
+                                .setNameFormat("outbox-%d")
+                                .setDaemon(true)
+                                .build()),
+                Executors.newSingleThreadScheduledExecutor(
+                        new ThreadFactoryBuilder()
+                                .setNameFormat("outbox-dispatcher-%d")
+                                .setDaemon(true)
+                                .build()),
+                initialDelay,
+                fixedDelay,
+                meterRegistry);
+    }
+
+    @Bean
+    public SessionScheduler sessionScheduler(
+            @Value("${bot.check.fixedDelay}") final Duration minInterval,
+            @Value("${bot.check.maxDelay}") final Duration maxInterval,
+            @Value("${bot.check.backoffMultiplier}") final double backoffMultiplier,
+            final MeterRegistry meterRegistry) {
+        return new SessionScheduler(
+                minInterval,
+                maxInterval,
+                backoffMultiplier,
+                meterRegistry);
+    }
+
     @Bean
     public SessionRepository sessionRepository(
-            final Bucket bucket,
-            final ObjectMapper objectMapper) {
-        return new GoogleStorageRepository(
+            @Value("${bot.session.storage}") final String storage,
+            @Value("${bot.session.file}") final String file,
+            final ObjectProvider<Bucket> bucket,
+            final ObjectProvider<BlobStore> blobStore,
+            final ObjectMapper objectMapper,
+            @Value("${bot.session.loadThreads}") final int loadThreads,
+            @Value("${bot.session.compactThreshold}") final int compactThreshold,
+            @Value("${bot.session.compactDelay}") final Duration compactDelay,
+            @Value("${bot.session.absentTtl}") final Duration absentTtl,
+            @Value("${bot.session.absentMax}") final long absentMax,
+            @Value("${bot.shard.count}") final int shardCount,
+            final MeterRegistry meterRegistry)
+            throws IOException {
+        final SessionRepository sessionRepository;
+        if ("file".equals(storage)) {
+            sessionRepository =
+                    new FileSessionRepository(
+                            Paths.get(file),
+                            objectMapper,
+                            compactThreshold,
+                            newCompactor(),
+                            compactDelay,
+                            meterRegistry);
+        } else if ("snapshot".equals(storage)) {
+            sessionRepository =
+                    new SnapshotSessionRepository(
+                            objectMapper,
+                            blobStore.getObject(),
+                            compactThreshold,
+                            newCompactor(),
+                            compactDelay,
+                            meterRegistry);
+        } else {
+            sessionRepository =
+                    new GoogleStorageRepository(
+                            objectMapper,
+                            bucket.getObject(),
+                            // Cursors are split the same way as the shards
+                            // that replicas lease
+                            shardCount,
+                            Executors.newFixedThreadPool(
+                                    loadThreads,
+                                    new ThreadFactoryBuilder()
+                                            .setNameFormat("session-load-%d")
+                                            .setDaemon(true)
+                                            .build()),
+                            meterRegistry);
+        }
+        return new CachingSessionRepository(
+                sessionRepository,
+                absentTtl,
+                absentMax,
+                meterRegistry);
+    }
+
+    @Bean
+    public ShardLeaseManager shardLeaseManager(
+            @Value("${bot.shard.enabled}") final boolean enabled,
+            final ObjectProvider<BlobStore> blobStore,
+            final ObjectMapper objectMapper,
+            @Value("${bot.shard.replicaId}") final String replicaId,
+            @Value("${bot.shard.count}") final int shardCount,
+            @Value("${bot.shard.leaseDuration}") final Duration leaseDuration,
+            @Value("${bot.shard.renewDelay}") final Duration renewDelay,
+            final CursorCheckpointer cursorCheckpointer,
+            final MeterRegistry meterRegistry) {
+        return new ShardLeaseManager(
+                enabled,
+                enabled
+                        ? blobStore.getObject()
+                        : null,
                 objectMapper,
-                bucket);
+                !replicaId.isBlank()
+                        ? replicaId
+                        : UUID.randomUUID().toString(),
+                shardCount,
+                leaseDuration,
+                renewDelay,
+                // The next owner starts from the checkpointed cursors
+                cursorCheckpointer::flush,
+                Clock.systemUTC(),
+                Executors.newSingleThreadScheduledExecutor(
+                        new ThreadFactoryBuilder()
+                                .setNameFormat("shard-leases-%d")
+                                .setDaemon(true)
+                                .build()),
+                meterRegistry);
     }
 
     @Bean
@@ -107,6 +534,7 @@ public class BotConfig {
     }
 
     @Bean
+    @Lazy
     public Storage storage(final GoogleCredentials googleCredentials) {
         // You can specify a credential file by providing a path to GoogleCredentials.
         // Otherwise, credentials are read from the GOOGLE_APPLICATION_CREDENTIALS environment variable.
@@ -116,4 +544,17 @@ public class BotConfig {
                 .build()
                 .getService();
     }
+
+    /**
+     * Creates the executor that compacts a session log in the background.
+     *
+     * @return The executor.
+     */
+    private static ScheduledExecutorService newCompactor() {
+        return Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                        .setNameFormat("session-compactor-%d")
+                        .setDaemon(true)
+                        .build());
+    }
 }
@@ -1,22 +1,29 @@
 package mn.foreman.googelchatbot.controller;
 
-import mn.foreman.googelchatbot.commands.CommandRouter;
-import mn.foreman.googelchatbot.utils.EventUtils;
+import mn.foreman.googelchatbot.event.ChatEvent;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
-import com.google.api.client.http.HttpRequestInitializer;
-import com.google.api.client.json.gson.GsonFactory;
-import com.google.api.services.chat.v1.HangoutsChat;
 import com.google.api.services.chat.v1.model.Message;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RestController;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /*
  * Controller for the commands serves as the entry point for events to
@@ -29,132 +36,108 @@ public class EventController {
     private static final Logger LOG =
             LoggerFactory.getLogger(EventController.class);
 
-    /** The Command Router for the class. */
-    private final CommandRouter commandRouter;
+    /** The executor that works out the replies. */
+    private final ExecutorService eventExecutor;
 
-    /** Http request initializer for the class. */
-    private final HttpRequestInitializer requestInitializer;
+    /** The number of replies returned in the response. */
+    private final Counter inlineReplies;
+
+    /** The number of replies sent through the Chat API. */
+    private final Counter lateReplies;
+
+    /** The number of events turned away because every thread was busy. */
+    private final Counter rejected;
+
+    /** How long to wait for a reply before responding without one. */
+    private final Duration replyDeadline;
+
+    /** Works out and sends the replies. */
+    private final EventResponder responder;
 
     /**
-     * Constructor for the command router.
+     * Constructor.
      *
-     * @param commandRouter      The command router for the bot.
-     * @param requestInitializer Makes the HTTP request for the bot.
+     * @param responder     Works out and sends the replies.
+     * @param eventExecutor The executor that works out the replies.
+     * @param replyDeadline How long to wait for a reply before responding
+     *                      without one.
+     * @param meterRegistry The registry for the reply metrics.
      */
     public EventController(
-            final CommandRouter commandRouter,
-            final HttpRequestInitializer requestInitializer) {
-        this.commandRouter = commandRouter;
-        this.requestInitializer = requestInitializer;
-    }
-
-    @PostMapping("/")
-    public void onEvent(
-            @RequestBody final JsonNode event)
-            throws IOException {
-        String output = "";
-        String type = "";
-        Optional<String> typeOpt = EventUtils.getAttribute(event, "/type");
-        if (typeOpt.isPresent()) {
-            type = typeOpt.get();
-            switch (type) {
-                case "ADDED_TO_SPACE":
-                    output = addedToSpaceReply(event);
-                    doReply(
-                            event,
-                            output);
-                    break;
-                case "MESSAGE":
-                    String response = "";
-                    Optional<String> validCommandOpt = this.commandRouter
-                            .messageEvent(event);
-                    if (validCommandOpt.isPresent()) {
-                        String validCommand = validCommandOpt.get();
-                        doReply(event, validCommand);
-                    } else {
-                        String invalidResponse = "Hi, please type a slash command. If " +
-                                "you're not sure what commands are available, type " +
-                                "*/help* for a description of what I can do.";
-                        doReply(event, invalidResponse);
-                    }
-                    break;
-                case "REMOVED_FROM_SPACE":
-                    String name = event
-                            .at("/space/name")
-                            .asText();
-                    LOG.info(String.format("Bot removed from %s", name));
-                    break;
-            }
-        } else {
-            doReply(event, "Sorry, I'm not familiar with that command" +
-                    "type */help* to see what commands are available. ");
-        }
+            final EventResponder responder,
+            final ExecutorService eventExecutor,
+            @Value("${bot.event.replyDeadline}") final Duration replyDeadline,
+            final MeterRegistry meterRegistry) {
+        this.responder = responder;
+        this.eventExecutor = eventExecutor;
+        this.replyDeadline = replyDeadline;
+        this.inlineReplies = meterRegistry.counter("events.replies.inline");
+        this.lateReplies = meterRegistry.counter("events.replies.late");
+        this.rejected = meterRegistry.counter("events.rejected");
     }
 
     /**
-     * Method for responding to being added to a space or a direct message.
+     * Handles an event from Google Chat. The reply is returned in the
+     * response if it's ready before the deadline, which saves a call to the
+     * Chat API. Otherwise, it's sent through the API once it's ready. If
+     * working out the reply fails before the deadline, or there's no room to
+     * start working it out, the response is an error so that Chat delivers
+     * the event again.
      *
-     * @param event Is the Json payload.
+     * @param event The event.
      *
-     * @return The reply message.
+     * @return The reply, if it was ready in time.
      */
-    private String addedToSpaceReply(final JsonNode event) {
-        String addedReply = "";
-        String spaceType = "";
-        Optional<String> spaceOpt = EventUtils.getAttribute(
-                event,
-                "/space/type");
-        if (spaceOpt.isPresent()) {
-            spaceType = spaceOpt.get();
-
-            if ("ROOM".equals(spaceType)) {
-                String displayName = event
-                        .at("/space/displayName")
-                        .asText();
-                addedReply = String
-                        .format("Thanks for adding me to %s", displayName);
-            } else {
-                String displayName = event
-                        .at("/user/displayName").asText();
-                addedReply = String
-                        .format("Thanks for adding me to a DM, %s!", displayName);
-            }
-        } else {
-            addedReply = "Invalid space type. I can only work in a room or DM.";
+    @PostMapping("/")
+    public ResponseEntity<Message> onEvent(
+            @RequestBody final ChatEvent event) {
+        final CompletableFuture<Optional<String>> reply;
+        try {
+            reply =
+                    CompletableFuture.supplyAsync(
+                            () -> {
+                                try {
+                                    return this.responder.toReply(event);
+                                } catch (final IOException e) {
+                                    throw new UncheckedIOException(e);
+                                }
+                            },
+                            this.eventExecutor);
+        } catch (final RejectedExecutionException e) {
+            // Not seen yet, so the redelivery is processed
+            LOG.warn("Too many events in flight - asking for a redelivery");
+            this.rejected.increment();
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
         }
-        addedReply += ". To begin, type the */start* command, or type */help*" +
-                      " to see all available commands.";
-        return addedReply;
-    }
-
-    /**
-     * Method to create and return messages to the User.
-     *
-     * @param event   The json event payload.
-     * @param content String of what needs to be made into a message.
-     */
-    private void doReply(
-            final JsonNode event,
-            final String content) {
         try {
-            final Message message = new Message();
-            message.setText(content);
-            // Gets the name of the space (or name of person who's privately
-            // chatting with the bot.
-            String spaceName = event.at("/space/name").asText();
-
-            HangoutsChat chatService = new HangoutsChat.Builder(
-                    GoogleNetHttpTransport.newTrustedTransport(),
-                    GsonFactory.getDefaultInstance(),
-                    this.requestInitializer)
-                    .build();
-            chatService
-                    .spaces()
-                    .messages()
-                    .create(spaceName, message)
-                    .execute();
-        } catch (final Exception e) {
-            LOG.error("Something really bad happened", e);
+            final Optional<String> content =
+                    reply.get(
+                            this.replyDeadline.toMillis(),
+                            TimeUnit.MILLISECONDS);
+            if (content.isPresent()) {
+                this.inlineReplies.increment();
+                final Message message = new Message();
+                message.setText(content.get());
+                return ResponseEntity.ok(message);
+            }
+        } catch (final TimeoutException e) {
+            // Too late for the response - send it on its own when it's ready
+            this.lateReplies.increment();
+            reply.whenComplete(
+                    (content, error) -> {
+                        if (error != null) {
+                            LOG.error("Something really bad happened", error);
+                        } else {
+                            content.ifPresent(text -> this.responder.doReply(event, text));
+                        }
+                    });
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        } catch (final ExecutionException e) {
+            LOG.error("Something really bad happened", e.getCause());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
         }
+        return ResponseEntity.ok().build();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,164 @@
+package mn.foreman.googelchatbot.controller;
+
+import mn.foreman.googelchatbot.chat.ChatSender;
+import mn.foreman.googelchatbot.commands.CommandRouter;
+import mn.foreman.googelchatbot.event.ChatEvent;
+import mn.foreman.googelchatbot.event.EventDeduplicator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Optional;
+
+/**
+ * Works out the bot's reply to an event, and sends replies that couldn't be
+ * returned with the event's response.
+ */
+public class EventResponder {
+
+    /** The logger for this class. */
+    private static final Logger LOG =
+            LoggerFactory.getLogger(EventResponder.class);
+
+    /** The sender for replies that miss the deadline. */
+    private final ChatSender chatSender;
+
+    /** The Command Router for the class. */
+    private final CommandRouter commandRouter;
+
+    /** Recognizes events that were already delivered. */
+    private final EventDeduplicator deduplicator;
+
+    /**
+     * Constructor.
+     *
+     * @param commandRouter The command router for the bot.
+     * @param chatSender    Sends the replies that miss the deadline.
+     * @param deduplicator  Recognizes events that were already delivered.
+     */
+    public EventResponder(
+            final CommandRouter commandRouter,
+            final ChatSender chatSender,
+            final EventDeduplicator deduplicator) {
+        this.commandRouter = commandRouter;
+        this.chatSender = chatSender;
+        this.deduplicator = deduplicator;
+    }
+
+    /**
+     * Method to send messages to the User when they couldn't be returned in
+     * the response.
+     *
+     * @param event   The event.
+     * @param content String of what needs to be made into a message.
+     */
+    public void doReply(
+            final ChatEvent event,
+            final String content) {
+        try {
+            // Gets the name of the space (or name of person who's privately
+            // chatting with the bot.
+            String spaceName = event.spaceName();
+            this.chatSender.send(
+                    spaceName,
+                    content);
+        } catch (final Exception e) {
+            LOG.error("Something really bad happened", e);
+        }
+    }
+
+    /**
+     * Works out the reply to the provided event. Events that Google Chat
+     * already delivered are ignored.
+     *
+     * @param event The event.
+     *
+     * @return The reply, if the event needs one.
+     *
+     * @throws IOException on failure.
+     */
+    public Optional<String> toReply(final ChatEvent event)
+            throws IOException {
+        if (!this.deduplicator.firstSeen(event)) {
+            LOG.debug("Ignoring a redelivered {} event", event.getType());
+            return Optional.empty();
+        }
+        try {
+            return replyTo(event);
+        } catch (final IOException | RuntimeException e) {
+            // Let Chat's redelivery have another go
+            this.deduplicator.forget(event);
+            throw e;
+        }
+    }
+
+    /**
+     * Method for responding to being added to a space or a direct message.
+     *
+     * @param event Is the Json payload.
+     *
+     * @return The reply message.
+     */
+    private String addedToSpaceReply(final ChatEvent event) {
+        String addedReply = "";
+        final ChatEvent.Space space = event.getSpace();
+        if (space != null && space.getType() != null) {
+            if ("ROOM".equals(space.getType())) {
+                String displayName = space.getDisplayName();
+                addedReply = String
+                        .format("Thanks for adding me to %s", displayName);
+            } else {
+                String displayName =
+                        event.getUser() != null
+                                ? event.getUser().getDisplayName()
+                                : "";
+                addedReply = String
+                        .format("Thanks for adding me to a DM, %s!", displayName);
+            }
+        } else {
+            addedReply = "Invalid space type. I can only work in a room or DM.";
+        }
+        addedReply += ". To begin, type the */start* command, or type */help*" +
+                      " to see all available commands.";
+        return addedReply;
+    }
+
+    /**
+     * Works out the reply to the provided, new event.
+     *
+     * @param event The event.
+     *
+     * @return The reply, if the event needs one.
+     *
+     * @throws IOException on failure.
+     */
+    private Optional<String> replyTo(final ChatEvent event)
+            throws IOException {
+        final Optional<String> typeOpt = Optional.ofNullable(event.getType());
+        if (typeOpt.isEmpty()) {
+            return Optional.of("Sorry, I'm not familiar with that command" +
+                    "type */help* to see what commands are available. ");
+        }
+        switch (typeOpt.get()) {
+            case "ADDED_TO_SPACE":
+                return Optional.of(addedToSpaceReply(event));
+            case "MESSAGE":
+                final Optional<String> validCommandOpt = this.commandRouter
+                        .messageEvent(event);
+                if (validCommandOpt.isPresent()) {
+                    // Commands that reply later may have nothing to say now
+                    return validCommandOpt.filter(reply -> !reply.isEmpty());
+                }
+                return Optional.of("Hi, please type a slash command. If " +
+                        "you're not sure what commands are available, type " +
+                        "*/help* for a description of what I can do.");
+            case "REMOVED_FROM_SPACE":
+                String name = event.spaceName();
+                LOG.info(String.format("Bot removed from %s", name));
+                return Optional.empty();
+            default:
+                return Optional.empty();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package mn.foreman.googelchatbot.event;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * An event from Google Chat. Only the fields the bot uses are bound - the
+ * rest of the payload is skipped by the parser without being built into a
+ * tree.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class ChatEvent {
+
+    /** When the event happened. */
+    private String eventTime;
+
+    /** The message that was posted, for message events. */
+    private Message message;
+
+    /** The space where the event happened. */
+    private Space space;
+
+    /** The type of event. */
+    private String type;
+
+    /** The user who caused the event. */
+    private User user;
+
+    /**
+     * Returns the name of the space where the event happened.
+     *
+     * @return The space name, or empty if there isn't one.
+     */
+    public String spaceName() {
+        return this.space != null && this.space.getName() != null
+                ? this.space.getName()
+                : "";
+    }
+
+    /**
+     * Returns the text of the message that was posted.
+     *
+     * @return The text, or empty if there isn't one.
+     */
+    public String text() {
+        return this.message != null && this.message.getText() != null
+                ? this.message.getText()
+                : "";
+    }
+
+    /** A message that was posted. */
+    @Data
+    @Builder
+    @NoArgsConstructor
+    @AllArgsConstructor
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class Message {
+
+        /** The resource name of the message, which is unique. */
+        private String name;
+
+        /** The text of the message. */
+        private String text;
+    }
+
+    /** A room or direct message. */
+    @Data
+    @Builder
+    @NoArgsConstructor
+    @AllArgsConstructor
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class Space {
+
+        /** The name shown for the space. */
+        private String displayName;
+
+        /** The resource name of the space. */
+        private String name;
+
+        /** The type of space, such as ROOM or DM. */
+        private String type;
+    }
+
+    /** A Chat user. */
+    @Data
+    @Builder
+    @NoArgsConstructor
+    @AllArgsConstructor
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class User {
+
+        /** The name shown for the user. */
+        private String displayName;
+    }
+}
@@ -0,0 +1,265 @@
+package mn.foreman.googelchatbot.event;
+
+import mn.foreman.googelchatbot.storage.BlobStore;
+import mn.foreman.googelchatbot.storage.StoredBlob;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recognizes events that Google Chat has already delivered. Chat retries
+ * events that aren't acknowledged quickly, and a retry would otherwise run
+ * the same command twice.
+ *
+ * <p>Events are keyed by their message name, or by their type, space and
+ * time when they have no message. Keys are remembered in memory for a while
+ * and, optionally, in a {@link BlobStore} that's shared by every replica. A
+ * shared key is claimed with a conditional create, and an expired one is
+ * reclaimed with a conditional replace, so only one replica can process an
+ * event. If the shared store can't be reached, only the local cache is
+ * used, and the failure is counted.</p>
+ *
+ * <p>A new event costs one create in the shared store, and a redelivery
+ * costs a failed create and a read. Shared keys outlive their TTL until
+ * they're swept: every replica periodically lists the keys and deletes those
+ * that have expired. Sweeps from different replicas only repeat each other's
+ * deletes.</p>
+ */
+public class EventDeduplicator {
+
+    /** The logger for this class. */
+    private static final Logger LOG =
+            LoggerFactory.getLogger(EventDeduplicator.class);
+
+    /** The prefix for the shared keys. */
+    private static final String PREFIX = "events/";
+
+    /** The number of duplicates that were caught locally. */
+    private final Counter localHits;
+
+    /** The number of events that were new. */
+    private final Counter misses;
+
+    /** The keys that were seen recently. */
+    private final Cache<String, Boolean> seen;
+
+    /** The number of times the shared store couldn't be reached. */
+    private final Counter sharedErrors;
+
+    /** The number of duplicates that were caught by the shared store. */
+    private final Counter sharedHits;
+
+    /** The number of expired shared keys that were deleted. */
+    private final Counter swept;
+
+    /** The store that's shared with the other replicas, if any. */
+    private final BlobStore sharedStore;
+
+    /** How long a key is remembered. */
+    private final Duration ttl;
+
+    /**
+     * Constructor.
+     *
+     * @param ttl           How long a key is remembered.
+     * @param maxSize       The most keys to remember in memory.
+     * @param sharedStore   The store that's shared with the other replicas,
+     *                      or null to only remember keys in memory.
+     * @param meterRegistry The registry for the hit metrics.
+     */
+    public EventDeduplicator(
+            final Duration ttl,
+            final long maxSize,
+            final BlobStore sharedStore,
+            final MeterRegistry meterRegistry) {
+        this.ttl = ttl;
+        this.sharedStore = sharedStore;
+        this.seen =
+                CacheBuilder
+                        .newBuilder()
+                        .expireAfterWrite(
+                                ttl.toMillis(),
+                                TimeUnit.MILLISECONDS)
+                        .maximumSize(maxSize)
+                        .build();
+        this.misses = meterRegistry.counter("events.dedup.misses");
+        this.localHits =
+                meterRegistry.counter(
+                        "events.dedup.hits",
+                        "source",
+                        "local");
+        this.sharedHits =
+                meterRegistry.counter(
+                        "events.dedup.hits",
+                        "source",
+                        "shared");
+        this.sharedErrors = meterRegistry.counter("events.dedup.shared.errors");
+        this.swept = meterRegistry.counter("events.dedup.swept");
+    }
+
+    /**
+     * Checks whether the provided event is being seen for the first time,
+     * remembering it if it is.
+     *
+     * @param event The event.
+     *
+     * @return Whether the event is new.
+     */
+    public boolean firstSeen(final ChatEvent event) {
+        final Optional<String> keyOpt = toKey(event);
+        if (keyOpt.isEmpty()) {
+            return true;
+        }
+        final String key = keyOpt.get();
+        if (this.seen.asMap().putIfAbsent(key, Boolean.TRUE) != null) {
+            this.localHits.increment();
+            return false;
+        }
+        if (this.sharedStore != null && !claim(key)) {
+            this.sharedHits.increment();
+            return false;
+        }
+        this.misses.increment();
+        return true;
+    }
+
+    /**
+     * Forgets the provided event, so that a retry is processed. Used when
+     * the event couldn't be processed.
+     *
+     * @param event The event.
+     */
+    public void forget(final ChatEvent event) {
+        final Optional<String> keyOpt = toKey(event);
+        if (keyOpt.isEmpty()) {
+            return;
+        }
+        this.seen.invalidate(keyOpt.get());
+        if (this.sharedStore != null) {
+            try {
+                this.sharedStore.delete(PREFIX + keyOpt.get());
+            } catch (final IOException e) {
+                LOG.warn("Failed to forget event {}", keyOpt.get(), e);
+                this.sharedErrors.increment();
+            }
+        }
+    }
+
+    /**
+     * Deletes the shared keys that have expired. A key that's reclaimed
+     * between being read and being deleted is lost, which can only let
+     * through an event that's redelivered a whole TTL after it was first
+     * seen.
+     */
+    @Scheduled(
+            initialDelayString = "${bot.event.dedup.sweepDelay}",
+            fixedDelayString = "${bot.event.dedup.sweepDelay}")
+    public void sweep() {
+        if (this.sharedStore == null) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        int deleted = 0;
+        try {
+            for (final String name : this.sharedStore.list(PREFIX)) {
+                final Optional<byte[]> content = this.sharedStore.read(name);
+                if (content.isPresent() &&
+                        now - ByteBuffer.wrap(content.get()).getLong() >= this.ttl.toMillis()) {
+                    this.sharedStore.delete(name);
+                    this.swept.increment();
+                    deleted++;
+                }
+            }
+        } catch (final Exception e) {
+            LOG.warn("Failed to sweep expired events - will retry", e);
+            this.sharedErrors.increment();
+        }
+        if (deleted > 0) {
+            LOG.debug("Swept {} expired events", deleted);
+        }
+    }
+
+    /**
+     * Claims the provided key in the shared store.
+     *
+     * @param key The key.
+     *
+     * @return Whether the key was claimed, or the store couldn't be reached.
+     */
+    private boolean claim(final String key) {
+        final String name = PREFIX + key;
+        final long now = System.currentTimeMillis();
+        final byte[] content =
+                ByteBuffer
+                        .allocate(Long.BYTES)
+                        .putLong(now)
+                        .array();
+        try {
+            if (this.sharedStore.create(name, content)) {
+                return true;
+            }
+            // Expired keys linger until they're swept - reclaim an old one
+            final Optional<StoredBlob> existing = this.sharedStore.get(name);
+            if (existing.isEmpty()) {
+                return this.sharedStore.create(name, content);
+            }
+            final long claimedAt =
+                    ByteBuffer
+                            .wrap(existing.get().getContent())
+                            .getLong();
+            return now - claimedAt >= this.ttl.toMillis() &&
+                    this.sharedStore.replace(
+                            name,
+                            content,
+                            existing.get().getVersion());
+        } catch (final Exception e) {
+            LOG.warn("Failed to check event {} with the shared store", key, e);
+            this.sharedErrors.increment();
+            return true;
+        }
+    }
+
+    /**
+     * Returns the key for the provided event.
+     *
+     * @param event The event.
+     *
+     * @return The key, if the event can be identified.
+     */
+    private static Optional<String> toKey(final ChatEvent event) {
+        final String identity;
+        if (event.getMessage() != null && event.getMessage().getName() != null) {
+            identity = event.getMessage().getName();
+        } else if (event.getEventTime() != null) {
+            identity =
+                    String.join(
+                            "|",
+                            String.valueOf(event.getType()),
+                            event.spaceName(),
+                            event.getEventTime());
+        } else {
+            return Optional.empty();
+        }
+        // Hashed so that every key is a safe, fixed-length blob name
+        return Optional.of(
+                Hashing
+                        .sha256()
+                        .hashString(
+                                identity,
+                                StandardCharsets.UTF_8)
+                        .toString());
+    }
+}
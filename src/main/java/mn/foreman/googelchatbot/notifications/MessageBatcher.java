@@ -0,0 +1,103 @@
+package mn.foreman.googelchatbot.notifications;
+
+import mn.foreman.googelchatbot.outbox.OutboundMessage;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Packs consecutive rendered notifications into as few Chat messages as
+ * possible without exceeding the Chat message size limit. Notifications are
+ * never reordered or split; one that's too large on its own is sent by
+ * itself.
+ */
+public class MessageBatcher {
+
+    /** The separator placed between notifications in the same message. */
+    private static final String SEPARATOR = "\n\n";
+
+    /** Whether batching is enabled. */
+    private final boolean enabled;
+
+    /** The max length of a batched message. */
+    private final int maxLength;
+
+    /** The number of Chat API calls that batching avoided. */
+    private final Counter sendsSaved;
+
+    /**
+     * Constructor.
+     *
+     * @param enabled       Whether batching is enabled.
+     * @param maxLength     The max length of a batched message.
+     * @param meterRegistry The registry for the batching metrics.
+     */
+    public MessageBatcher(
+            final boolean enabled,
+            final int maxLength,
+            final MeterRegistry meterRegistry) {
+        this.enabled = enabled;
+        this.maxLength = maxLength;
+        this.sendsSaved = meterRegistry.counter("notifications.sends.saved");
+    }
+
+    /**
+     * Packs the provided messages, which must all be for the same space, into
+     * batches, preserving their order. Each batch carries the notification ID
+     * of the last message it contains.
+     *
+     * @param messages The messages to batch.
+     *
+     * @return The batched messages.
+     */
+    public List<OutboundMessage> batch(final List<OutboundMessage> messages) {
+        if (!this.enabled || messages.size() < 2) {
+            return messages;
+        }
+
+        final List<OutboundMessage> batches = new ArrayList<>();
+        final StringBuilder batch = new StringBuilder(this.maxLength);
+        OutboundMessage last = null;
+        for (final OutboundMessage message : messages) {
+            final String text = message.getText();
+            if (batch.length() > 0 &&
+                    batch.length() + SEPARATOR.length() + text.length() > this.maxLength) {
+                batches.add(toBatch(last, batch));
+                batch.setLength(0);
+            }
+            if (batch.length() > 0) {
+                batch.append(SEPARATOR);
+            }
+            batch.append(text);
+            last = message;
+        }
+        if (batch.length() > 0) {
+            batches.add(toBatch(last, batch));
+        }
+
+        this.sendsSaved.increment(messages.size() - batches.size());
+        return batches;
+    }
+
+    /**
+     * Creates a batched message.
+     *
+     * @param last  The last message in the batch.
+     * @param batch The batched content.
+     *
+     * @return The batched message.
+     */
+    private static OutboundMessage toBatch(
+            final OutboundMessage last,
+            final StringBuilder batch) {
+        return OutboundMessage
+                .builder()
+                .spaceId(last.getSpaceId())
+                .notificationId(last.getNotificationId())
+                .text(batch.toString())
+                .build();
+    }
+}
@@ -0,0 +1,155 @@
+package mn.foreman.googelchatbot.notifications;
+
+import mn.foreman.googelchatbot.session.Session;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Fans the processing of many sessions out across a dedicated executor.
+ * Processing a session is dominated by blocking calls to Foreman and Google
+ * Chat, so it's kept off of the common pool and sized for I/O concurrency
+ * rather than for the number of cores. Every session is given a deadline;
+ * sessions that exceed it are interrupted so one slow tenant can't hold up the
+ * rest of the cycle.
+ */
+public class NotificationFanOut {
+
+    /** The logger for this class. */
+    private static final Logger LOG =
+            LoggerFactory.getLogger(NotificationFanOut.class);
+
+    /** How long a session may be processed before it's interrupted. */
+    private final Duration deadline;
+
+    /** The number of sessions that exceeded their deadline. */
+    private final Counter deadlinesExceeded;
+
+    /** The executor that processes the sessions. */
+    private final ExecutorService executor;
+
+    /** Interrupts sessions that exceed their deadline. */
+    private final ScheduledExecutorService watchdog;
+
+    /**
+     * Constructor.
+     *
+     * @param executor      The executor that processes the sessions.
+     * @param watchdog      Interrupts sessions that exceed their deadline.
+     * @param deadline      How long a session may be processed.
+     * @param meterRegistry The registry for the fan-out metrics.
+     */
+    public NotificationFanOut(
+            final ExecutorService executor,
+            final ScheduledExecutorService watchdog,
+            final Duration deadline,
+            final MeterRegistry meterRegistry) {
+        this.executor = executor;
+        this.watchdog = watchdog;
+        this.deadline = deadline;
+        this.deadlinesExceeded =
+                meterRegistry.counter("notifications.deadline.exceeded");
+    }
+
+    /**
+     * Processes every provided session, blocking until all of them have either
+     * completed or been abandoned after their deadline.
+     *
+     * @param sessions    The sessions to process.
+     * @param sessionTask The work to perform for each session.
+     */
+    public void processAll(
+            final Collection<Session> sessions,
+            final SessionTask sessionTask) {
+        final List<Future<?>> futures = new ArrayList<>(sessions.size());
+        for (final Session session : sessions) {
+            futures.add(
+                    this.executor.submit(
+                            () -> processWithDeadline(
+                                    session,
+                                    sessionTask)));
+        }
+
+        for (final Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                futures.forEach(pending -> pending.cancel(true));
+                return;
+            } catch (final ExecutionException e) {
+                LOG.error("Something really bad happened", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Processes the provided session, interrupting it if it runs longer than
+     * the deadline.
+     *
+     * @param session     The session to process.
+     * @param sessionTask The work to perform.
+     */
+    private void processWithDeadline(
+            final Session session,
+            final SessionTask sessionTask) {
+        final Thread worker = Thread.currentThread();
+        final AtomicBoolean running = new AtomicBoolean(true);
+
+        final ScheduledFuture<?> timeout =
+                this.watchdog.schedule(
+                        () -> {
+                            synchronized (running) {
+                                if (running.getAndSet(false)) {
+                                    this.deadlinesExceeded.increment();
+                                    LOG.warn("Session {} exceeded its {} deadline",
+                                            session.getSpaceId(),
+                                            this.deadline);
+                                    worker.interrupt();
+                                }
+                            }
+                        },
+                        this.deadline.toMillis(),
+                        TimeUnit.MILLISECONDS);
+        try {
+            sessionTask.process(session);
+        } catch (final Exception e) {
+            LOG.error("Something really bad happened", e);
+        } finally {
+            timeout.cancel(false);
+            synchronized (running) {
+                running.set(false);
+                // Don't leak a deadline interrupt into the next session
+                Thread.interrupted();
+            }
+        }
+    }
+
+    /** The work to be performed for each session. */
+    @FunctionalInterface
+    public interface SessionTask {
+
+        /**
+         * Processes the provided session.
+         *
+         * @param session The session.
+         *
+         * @throws Exception on failure.
+         */
+        void process(Session session) throws Exception;
+    }
+}
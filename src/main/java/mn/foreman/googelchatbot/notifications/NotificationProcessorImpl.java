@@ -1,20 +1,15 @@
 package mn.foreman.googelchatbot.notifications;
 
 import mn.foreman.api.ForemanApi;
-import mn.foreman.api.ForemanApiImpl;
-import mn.foreman.api.JdkWebUtil;
 import mn.foreman.api.endpoints.notifications.Notifications;
+import mn.foreman.googelchatbot.outbox.OutboundMessage;
+import mn.foreman.googelchatbot.outbox.OutboundQueue;
 import mn.foreman.googelchatbot.session.Session;
 import mn.foreman.googelchatbot.session.SessionRepository;
+import mn.foreman.googelchatbot.utils.ForemanApiCache;
+import mn.foreman.googelchatbot.utils.MessageTemplate;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
-import com.google.api.client.http.HttpRequestInitializer;
-import com.google.api.client.json.gson.GsonFactory;
-import com.google.api.services.chat.v1.HangoutsChat;
-import com.google.api.services.chat.v1.model.Message;
 import com.google.common.collect.Iterables;
-import com.vdurmont.emoji.EmojiParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
@@ -23,12 +18,13 @@ import org.springframework.stereotype.Component;
 import java.io.IOException;
 import java.time.Instant;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
- * A simple {@link NotificationsProcessor} implementation that sends
- * markdown-formatted messages to the provided chat based on the session that's
- * to be notified.
+ * A simple {@link NotificationsProcessor} implementation that queues
+ * markdown-formatted messages for the provided chat based on the session that's
+ * to be notified. The messages are delivered, and the session's cursor
+ * persisted, by the outbox once delivery succeeds.
  */
 @Component
 public class NotificationProcessorImpl
@@ -38,17 +34,34 @@ public class NotificationProcessorImpl
     private static final Logger LOG =
             LoggerFactory.getLogger(NotificationProcessorImpl.class);
 
-    /** Base URl for Foreman. */
-    private final String foremanDashboardUrl;
+    /** A rough guess at the rendered length of a failing miner. */
+    private static final int MINER_LENGTH_ESTIMATE = 256;
+
+    /** The subject of a notification that has failing miners. */
+    private static final MessageTemplate SUBJECT_FAILING =
+            MessageTemplate.compile(":x: *{}*");
+
+    /** The subject of a notification that has no failing miners. */
+    private static final MessageTemplate SUBJECT_RESOLVED =
+            MessageTemplate.compile(":white_check_mark: *{}*");
+
+    /** The cache of Foreman API clients. */
+    private final ForemanApiCache foremanApiCache;
+
+    /** Packs notifications into as few messages as possible. */
+    private final MessageBatcher messageBatcher;
 
     /** The max notifications to send at once. */
     private final int maxNotifications;
 
-    /** The mapper. */
-    private final ObjectMapper objectMapper;
+    /** The link to a failing miner. */
+    private final MessageTemplate minerTemplate;
 
-    /** Http request initializer for the class. */
-    private final HttpRequestInitializer requestInitializer;
+    /** The trailer for notifications with more miners than are shown. */
+    private final MessageTemplate moreTemplate;
+
+    /** The queue for outbound chat messages. */
+    private final OutboundQueue outboundQueue;
 
     /** The bot start time. */
     private final Instant startTime;
@@ -56,18 +69,29 @@ public class NotificationProcessorImpl
     public NotificationProcessorImpl(
             @Value("${foreman.baseUrl}") String foremanDashboardUrl,
             @Value("${notifications.max}") int maxNotifications,
-            final ObjectMapper objectMapper,
+            final ForemanApiCache foremanApiCache,
             final Instant startTime,
-            final HttpRequestInitializer requestInitializer) {
-        this.foremanDashboardUrl = foremanDashboardUrl;
+            final OutboundQueue outboundQueue,
+            final MessageBatcher messageBatcher) {
+        // The dashboard URL never changes, so it's baked into the templates
+        this.minerTemplate =
+                MessageTemplate.compile(
+                        // If there is an issue with the output,
+                        // this is where it would most likely be
+                        "<" + foremanDashboardUrl + "/dashboard/miners/{}/details/|{}>\n");
+        this.moreTemplate =
+                MessageTemplate.compile(
+                        "\n\n*...and {} more" +
+                                "Head to [your dashboard](" + foremanDashboardUrl + "/dashboard/) to see the rest");
         this.maxNotifications = maxNotifications;
-        this.objectMapper = objectMapper;
+        this.foremanApiCache = foremanApiCache;
         this.startTime = startTime;
-        this.requestInitializer = requestInitializer;
+        this.outboundQueue = outboundQueue;
+        this.messageBatcher = messageBatcher;
     }
 
     @Override
-    public void process(
+    public int process(
             Session session,
             SessionRepository sessionRepository)
             throws IOException {
@@ -75,8 +99,9 @@ public class NotificationProcessorImpl
         final String spaceId = session.getSpaceId();
 
         final ForemanApi foremanApi =
-                makeApi(
-                        session);
+                this.foremanApiCache.get(
+                        session.getClientId(),
+                        session.getApiKey());
 
         final Notifications notificationsApi =
                 foremanApi.notifications();
@@ -84,9 +109,12 @@ public class NotificationProcessorImpl
         final Instant registered = session.getDateRegistered();
 
         //Check the notification time against the time the user registered.
+        //Notifications that are already queued for delivery are skipped.
         final List<Notifications.Notification> notifications =
                 notificationsApi.googleChat(
-                        session.getLastNotificationId(),
+                        Math.max(
+                                session.getLastNotificationId(),
+                                this.outboundQueue.highWaterMark(spaceId)),
                         registered.isAfter(this.startTime)
                                 ? registered
                                 : this.startTime);
@@ -95,12 +123,12 @@ public class NotificationProcessorImpl
                 session,
                 notifications);
         if (!notifications.isEmpty()) {
-            sendExistingNotifications(
-                    sessionRepository,
+            queueNotifications(
                     session,
                     spaceId,
                     notifications);
         }
+        return notifications.size();
     }
 
     /**
@@ -113,120 +141,60 @@ public class NotificationProcessorImpl
     private void appendMiner(
             final Notifications.Notification.FailingMiner failingMiner,
             final StringBuilder stringBuilder) {
-        stringBuilder
-                .append(
-                        String.format(
-                                // If there is an issue with the output,
-                                // this is where it would most likely be
-                                "<%s/dashboard/miners/%d/details/|%s>",
-                                this.foremanDashboardUrl,
-                                failingMiner.minerId,
-                                failingMiner.miner))
-                .append("\n");
+        this.minerTemplate.render(
+                stringBuilder,
+                failingMiner.minerId,
+                failingMiner.miner);
         failingMiner
                 .diagnosis
                 .forEach(
                         diag ->
-                                stringBuilder
-                                        .append(diag)
+                                MessageTemplate
+                                        .appendResolved(
+                                                stringBuilder,
+                                                diag)
                                         .append("\n"));
         stringBuilder
                 .append("\n");
     }
 
     /**
-     * Creates the foreman Api Url This is the same as lines 95-104 in foreman
-     * discord NotificationsProcessorImpl just done in a separate method.
+     * This method builds a message for each notification and durably queues
+     * them for the user's Google chat space. The session's cursor is advanced
+     * in memory so the next poll picks up where this one left off; the
+     * persisted cursor is only advanced once the messages are delivered.
      *
-     * @return A new {@link ForemanApi} authenticated with the data from the
-     *         provided {@link Session}.
-     */
-    private ForemanApi makeApi(final Session session) {
-        // Initializing the client id.
-        final String clientId = Integer.toString(session.getClientId());
-
-        // Returning the desired ForemanApiImpl object.
-        return new ForemanApiImpl(
-                clientId,
-                "",
-                this.objectMapper,
-                new JdkWebUtil(
-                        this.foremanDashboardUrl,
-                        session.getApiKey(),
-                        5,
-                        TimeUnit.SECONDS));
-    }
-
-    /**
-     * This method builds a string of notifications and sends it to the user's
-     * Google chat space.
-     *
-     * @param sessionRepository The repository.
-     * @param session           The current {@link Session} for the user.
-     * @param spaceId           The space ID.
-     * @param notifications     The actual notification that is being sent to
-     *                          the user.
+     * @param session       The current {@link Session} for the user.
+     * @param spaceId       The space ID.
+     * @param notifications The actual notification that is being sent to the
+     *                      user.
      *
      * @throws IOException on failure.
      */
-    private void sendExistingNotifications(
-            final SessionRepository sessionRepository,
+    private void queueNotifications(
             final Session session,
             final String spaceId,
             final List<Notifications.Notification> notifications)
             throws IOException {
 
         LOG.info("Building notification message for {}", session);
-        notifications
-                .stream()
-                .map(this::toNotificationMessage)
-                .forEach(message -> {
-                    try {
-                        sendMessage(
-                                spaceId,
-                                message);
-                    } catch (final Exception e) {
-                        LOG.warn("Exception occurred while notifying", e);
-                    }
-                });
+        final List<OutboundMessage> messages =
+                notifications
+                        .stream()
+                        .map(notification ->
+                                OutboundMessage
+                                        .builder()
+                                        .spaceId(spaceId)
+                                        .notificationId(notification.id)
+                                        .text(toNotificationMessage(notification))
+                                        .build())
+                        .collect(Collectors.toList());
+        this.outboundQueue.add(
+                this.messageBatcher.batch(messages));
 
         final Notifications.Notification lastNotification =
                 Iterables.getLast(notifications);
         session.setLastNotificationId(lastNotification.id);
-        sessionRepository.save(
-                spaceId,
-                session);
-    }
-
-    /**
-     * Method to create and return messages to the User.
-     *
-     * @param spaceId The space where the bot is communicating with the User.
-     * @param content The content of the notification.
-     */
-    private void sendMessage(
-            final String spaceId,
-            final String content) {
-
-        try {
-            final Message message = new Message();
-            message.setText(content);
-            // Gets the name of the space (or name of person who's privately
-            // chatting with the bot.
-
-            HangoutsChat chatService = new HangoutsChat.Builder(
-                    GoogleNetHttpTransport.newTrustedTransport(),
-                    GsonFactory.getDefaultInstance(),
-                    this.requestInitializer)
-                    .build();
-            chatService
-                    .spaces()
-                    .messages()
-                    .create(spaceId, message)
-                    .execute();
-        } catch (final Exception e) {
-            LOG.error("Something really bad happened", e);
-        }
     }
 
     /**
@@ -234,54 +202,49 @@ public class NotificationProcessorImpl
      *
      * @param notification The notification to process.
      *
-     * @return The message sent through the emoji parser. Necessary to get
-     *         properly formatted emojis since Google doesn't do it
-     *         automatically.
+     * @return The message, with emojis already resolved by the templates.
+     *         Necessary to get properly formatted emojis since Google doesn't
+     *         do it automatically.
      */
-    private String toNotificationMessage(
+    String toNotificationMessage(
             final Notifications.Notification notification) {
+        final List<Notifications.Notification.FailingMiner> failingMiners =
+                notification.failingMiners;
+        final int shownMiners =
+                Math.min(
+                        failingMiners.size(),
+                        this.maxNotifications);
+
         final StringBuilder messageBuilder =
-                new StringBuilder();
+                new StringBuilder(
+                        SUBJECT_FAILING.literalLength() +
+                                notification.subject.length() +
+                                this.moreTemplate.literalLength() +
+                                shownMiners * MINER_LENGTH_ESTIMATE);
 
         //write the subject
-        messageBuilder.append(
-                String.format(
-                        "%s *%s*",
-                        !notification.failingMiners.isEmpty()
-                                ? ":x:"
-                                : ":white_check_mark:",
-                        notification.subject));
-
-        final List<Notifications.Notification.FailingMiner> failingMiners =
-                notification.failingMiners;
+        (!failingMiners.isEmpty()
+                ? SUBJECT_FAILING
+                : SUBJECT_RESOLVED).render(
+                messageBuilder,
+                notification.subject);
 
         if (!failingMiners.isEmpty()) {
             // Write the failing miners out as lists
             messageBuilder.append("\n\n");
-            failingMiners
-                    .stream()
-                    .limit(this.maxNotifications)
-                    .forEach(
-                            miner ->
-                                    appendMiner(
-                                            miner,
-                                            messageBuilder));
+            for (int i = 0; i < shownMiners; i++) {
+                appendMiner(
+                        failingMiners.get(i),
+                        messageBuilder);
+            }
 
             if (failingMiners.size() > this.maxNotifications) {
                 // Too many miners were failing if we get here
-                messageBuilder
-                        .append("\n\n")
-                        .append(
-                                String.format(
-                                        "*...and %d more",
-                                        failingMiners.size() - this.maxNotifications))
-
-                        .append(
-                                String.format(
-                                        "Head to [your dashboard](%s/dashboard/) to see the rest",
-                                        this.foremanDashboardUrl));
+                this.moreTemplate.render(
+                        messageBuilder,
+                        failingMiners.size() - this.maxNotifications);
             }
         }
-        return EmojiParser.parseToUnicode(messageBuilder.toString());
+        return messageBuilder.toString();
     }
 }
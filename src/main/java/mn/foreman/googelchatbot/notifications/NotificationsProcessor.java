@@ -14,9 +14,11 @@ public interface NotificationsProcessor {
      * @param session Provides the users credentials.
      * @param sessionRepository the repository for sessions.
      *
+     * @return the number of notifications that were found.
+     *
      * @throws IOException on failure.
      */
-    void process(
+    int process(
             Session session,
             SessionRepository sessionRepository) throws IOException;
 }
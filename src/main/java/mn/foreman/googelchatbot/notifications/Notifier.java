@@ -1,10 +1,11 @@
 package mn.foreman.googelchatbot.notifications;
 
+import mn.foreman.googelchatbot.outbox.OutboundQueue;
 import mn.foreman.googelchatbot.session.Session;
 import mn.foreman.googelchatbot.session.SessionRepository;
+import mn.foreman.googelchatbot.sharding.ShardLeaseManager;
+import mn.foreman.googelchatbot.utils.ForemanApiCache;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.api.client.http.HttpRequestInitializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
@@ -12,8 +13,15 @@ import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** This class works to send notifications to the user. */
 @Component
@@ -23,94 +31,260 @@ public class Notifier {
     private static final Logger LOG =
             LoggerFactory.getLogger(Notifier.class);
 
-    /**
-     * This is the Api url for the user. It's important to note that this is
-     * distinct from the foreman dashboard URL.
-     */
-    private final String foremanApiUrl;
+    /** Fans the sessions out across the notification executor. */
+    private final NotificationFanOut notificationFanOut;
+
+    /** The processor that notifies each session. */
+    private final NotificationsProcessor notificationProcessor;
 
-    /** The max number of notifications the user will receive at once. */
-    @Value("${notifications.max}")
-    private final int maxNotifications;
+    /** The queue for outbound messages. */
+    private final OutboundQueue outboundQueue;
 
+    /** The number of sessions to read at a time when loading them. */
+    private final int pageSize;
 
-    /** The mapper. */
-    private final ObjectMapper objectMapper;
+    /** Tracks when each session is next due. */
+    private final SessionScheduler sessionScheduler;
 
     /** This is the state repository used to help maintain state/session. */
     private final SessionRepository sessionRepository;
 
+    /** Decides which sessions this replica polls. */
+    private final ShardLeaseManager shardLeaseManager;
+
+    /** How often to look for sessions that were registered elsewhere. */
+    private final long syncDelayMillis;
+
     /**
-     * The time that the first notification is set off. Distinct from the time
-     * that the user registers.
+     * The shards this replica was working on, by acquisition ID, or null
+     * before the first sync.
      */
-    private final Instant startTime;
+    private Map<Integer, Long> activeShards;
 
-    /** Completes the oauth to send notifications to the Google space. */
-    private final HttpRequestInitializer requestInitializer;
+    /** Whether the sessions have been loaded into the scheduler. */
+    private boolean loaded;
+
+    /** When to next look for sessions that were registered elsewhere. */
+    private long nextSyncAt;
 
     /**
      * Constructor for the notifier. It calls {@link NotificationProcessorImpl}.
      *
-     * @param foremanApiUrl     the foreman API url.
-     * @param maxNotifications  the max number of notifications to send to
-     *                          the user.
-     * @param objectMapper      the object mapper.
-     * @param startTime         the time that the user registered.
-     * @param sessionRepository the session repository.
+     * @param foremanDashboardUrl the foreman dashboard url, which
+     *                            notifications link to.
+     * @param maxNotifications    the max number of notifications to send to
+     *                            the user.
+     * @param foremanApiCache     the cache of Foreman API clients.
+     * @param startTime           the time that the user registered.
+     * @param sessionRepository   the session repository.
+     * @param outboundQueue       the queue for outbound messages.
+     * @param notificationFanOut  the fan-out for processing sessions.
+     * @param sessionScheduler    tracks when each session is next due.
+     * @param messageBatcher      packs notifications into messages.
+     * @param pageSize            the number of sessions to read at a time.
+     * @param shardLeaseManager   decides which sessions this replica polls.
+     * @param syncDelay           how often to look for sessions that were
+     *                            registered through other replicas.
      */
     public Notifier(
-            @Value("${foreman.apiUrl}") final String foremanApiUrl,
+            @Value("${foreman.baseUrl}") final String foremanDashboardUrl,
             @Value("${notifications.max}") final int maxNotifications,
-            final ObjectMapper objectMapper,
+            final ForemanApiCache foremanApiCache,
             final Instant startTime,
             final SessionRepository sessionRepository,
-            final HttpRequestInitializer requestInitializer) {
-        this.foremanApiUrl = foremanApiUrl;
-        this.maxNotifications = maxNotifications;
-        this.objectMapper = objectMapper;
-        this.startTime = startTime;
+            final OutboundQueue outboundQueue,
+            final NotificationFanOut notificationFanOut,
+            final SessionScheduler sessionScheduler,
+            final MessageBatcher messageBatcher,
+            @Value("${bot.session.pageSize}") final int pageSize,
+            final ShardLeaseManager shardLeaseManager,
+            @Value("${bot.shard.syncDelay}") final Duration syncDelay) {
         this.sessionRepository = sessionRepository;
-        this.requestInitializer = requestInitializer;
+        this.outboundQueue = outboundQueue;
+        this.pageSize = pageSize;
+        this.shardLeaseManager = shardLeaseManager;
+        this.syncDelayMillis = syncDelay.toMillis();
+        this.nextSyncAt = System.currentTimeMillis() + this.syncDelayMillis;
+        this.notificationFanOut = notificationFanOut;
+        this.sessionScheduler = sessionScheduler;
+        this.notificationProcessor =
+                new NotificationProcessorImpl(
+                        foremanDashboardUrl,
+                        maxNotifications,
+                        foremanApiCache,
+                        startTime,
+                        outboundQueue,
+                        messageBatcher);
     }
 
     /**
-     * Periodically sends notifications to the user.
+     * Periodically sends notifications to the users whose sessions are due.
      *
      * @throws IOException on failure.
      */
     @Scheduled(
             initialDelayString = "${bot.check.initialDelay}",
-            fixedDelayString = "${bot.check.fixedDelay}")
+            fixedDelayString = "${bot.check.tickDelay}")
     public void sendNotifications()
             throws IOException {
-        final List<Session> sessions =
-                sessionRepository.findAll();
+        if (!this.loaded) {
+            // Sessions are only read in bulk once - after that, they're
+            // added and removed as spaces register and forget. Each page is
+            // processed as soon as it's read.
+            final AtomicInteger count = new AtomicInteger();
+            this.sessionRepository.forEachPage(
+                    this.pageSize,
+                    page -> {
+                        page.forEach(this.sessionScheduler::schedule);
+                        count.addAndGet(page.size());
+                        processDue();
+                    });
+            this.loaded = true;
+            LOG.info("Scheduled notifications for {} sessions", count.get());
+        }
 
-        final NotificationsProcessor notificationProcessor =
-                new NotificationProcessorImpl(
-                        this.foremanApiUrl,
-                        this.maxNotifications,
-                        this.objectMapper,
-                        this.startTime,
-                        this.requestInitializer);
-        LOG.info("Looking for notifications for {} sessions", sessions.size());
+        syncShards();
+        processDue();
+    }
+
+    /**
+     * Processes every session that's due to be checked. Sessions that this
+     * replica doesn't own are dropped, including those whose shard is lost
+     * while they wait for a thread.
+     */
+    private void processDue() {
+        final List<Session> due =
+                this.sessionScheduler.pollDue();
+        final List<Session> sessions = new ArrayList<>(due.size());
+        for (final Session session : due) {
+            if (this.shardLeaseManager.owns(session.getSpaceId())) {
+                sessions.add(session);
+            } else {
+                this.sessionScheduler.cancel(session.getSpaceId());
+            }
+        }
 
         // Makes sure the list of states is non-empty.
         if (!sessions.isEmpty()) {
-            sessions
-                    .parallelStream()
-                    .forEach(
-                            session ->
-                            {
-                                try {
-                                    notificationProcessor.process(
+            LOG.info("Looking for notifications for {} sessions", sessions.size());
+            try {
+                this.notificationFanOut.processAll(
+                        sessions,
+                        session -> {
+                            if (!this.shardLeaseManager.runIfOwned(
+                                    session.getSpaceId(),
+                                    () -> this.sessionScheduler.recordResult(
                                             session,
-                                            this.sessionRepository);
-                                } catch (IOException e){
-                                    LOG.error("Something really bad happened", e);
-                                }
-                    });
+                                            this.notificationProcessor.process(
+                                                    session,
+                                                    this.sessionRepository) > 0))) {
+                                this.sessionScheduler.cancel(session.getSpaceId());
+                            }
+                        });
+            } finally {
+                this.sessionScheduler.reschedule(sessions);
+            }
         }
     }
+
+    /**
+     * Brings the scheduler in line with the stored sessions that this replica
+     * is responsible for: every session in a newly acquired or reacquired
+     * shard is re-read along with its queued messages, since its previous
+     * owner may have advanced it, and, periodically, every stored session is
+     * compared with the one that's scheduled. Owned sessions that were
+     * missed or re-registered through another replica are scheduled, and
+     * spaces that were forgotten elsewhere are cancelled. Queued messages for
+     * spaces that this replica doesn't own are left to their owners.
+     *
+     * @throws IOException on failure.
+     */
+    private void syncShards()
+            throws IOException {
+        final Map<Integer, Long> active = this.shardLeaseManager.activeShards();
+        final Set<Integer> gained = new HashSet<>();
+        active.forEach(
+                (shard, acquisition) -> {
+                    if (this.activeShards == null ||
+                            !acquisition.equals(this.activeShards.get(shard))) {
+                        gained.add(shard);
+                    }
+                });
+        if (!active.equals(this.activeShards)) {
+            this.outboundQueue.forget(spaceId -> !this.shardLeaseManager.owns(spaceId));
+        }
+        this.activeShards = active;
+
+        final long now = System.currentTimeMillis();
+        if (gained.isEmpty() && now < this.nextSyncAt) {
+            return;
+        }
+        this.nextSyncAt = now + this.syncDelayMillis;
+
+        if (!gained.isEmpty()) {
+            LOG.info("Taking over shards {}", gained);
+            this.sessionRepository.reload();
+            this.outboundQueue.reload(
+                    spaceId -> gained.contains(this.shardLeaseManager.shardOf(spaceId)));
+        }
+
+        // Taken before reading, so spaces that register during the read
+        // aren't mistaken for forgotten ones
+        final Map<String, Session> scheduled = this.sessionScheduler.scheduled();
+        final Set<String> stored = new HashSet<>();
+        final AtomicInteger changed = new AtomicInteger();
+        this.sessionRepository.forEachPage(
+                this.pageSize,
+                page -> page.forEach(
+                        session -> {
+                            final String spaceId = session.getSpaceId();
+                            stored.add(spaceId);
+                            if (gained.contains(this.shardLeaseManager.shardOf(spaceId))) {
+                                this.sessionScheduler.schedule(session);
+                            } else if (this.shardLeaseManager.owns(spaceId) &&
+                                    !isSameRegistration(
+                                            scheduled.get(spaceId),
+                                            session)) {
+                                this.sessionScheduler.schedule(session);
+                                changed.incrementAndGet();
+                            }
+                        }));
+        int forgotten = 0;
+        for (final String spaceId : scheduled.keySet()) {
+            if (!stored.contains(spaceId)) {
+                this.sessionScheduler.cancel(spaceId);
+                forgotten++;
+            }
+        }
+        if (changed.get() > 0 || forgotten > 0) {
+            LOG.info("Synced sessions: {} scheduled or replaced, {} cancelled",
+                    changed.get(),
+                    forgotten);
+        }
+        gained.forEach(
+                shard -> this.shardLeaseManager.markSynced(
+                        shard,
+                        active.get(shard)));
+    }
+
+    /**
+     * Checks whether the scheduled session is for the same registration as
+     * the stored one.
+     *
+     * @param scheduled The scheduled session, if there is one.
+     * @param stored    The stored session.
+     *
+     * @return Whether they're the same registration.
+     */
+    private static boolean isSameRegistration(
+            final Session scheduled,
+            final Session stored) {
+        return scheduled != null &&
+                Objects.equals(
+                        scheduled.getDateRegistered(),
+                        stored.getDateRegistered()) &&
+                Objects.equals(
+                        scheduled.getApiKey(),
+                        stored.getApiKey());
+    }
 }
@@ -0,0 +1,315 @@
+package mn.foreman.googelchatbot.notifications;
+
+import mn.foreman.googelchatbot.session.Session;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Tracks when every {@link Session} is next due to be checked. Rather than
+ * checking every session at once, each session is assigned a fixed slot within
+ * the interval, derived from its space ID, so checks are spread evenly across
+ * the interval and Foreman and Google Chat see a steady trickle of requests
+ * instead of a burst at the top of every cycle.
+ *
+ * <p>Sessions are added and removed individually as spaces register and
+ * forget, so the full set of sessions never has to be rescanned.</p>
+ *
+ * <p>Each session is checked on its own interval. Sessions that keep coming
+ * back without notifications back off towards the ceiling, and a session
+ * that's notified drops straight back to the floor, so idle spaces stop costing
+ * a Foreman API call every cycle.</p>
+ */
+public class SessionScheduler {
+
+    /** How much an idle session's interval grows after an empty check. */
+    private final double backoffMultiplier;
+
+    /** The number of checks that found no notifications. */
+    private final Counter emptyChecks;
+
+    /** The scheduled sessions, keyed by space ID. */
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    /** The longest interval between checks. */
+    private final long maxIntervalMillis;
+
+    /** The shortest interval between checks. */
+    private final long minIntervalMillis;
+
+    /** The number of checks that found notifications. */
+    private final Counter notifiedChecks;
+
+    /** The scheduled sessions, ordered by when they're next due. */
+    private final PriorityQueue<Entry> queue =
+            new PriorityQueue<>(Comparator.comparingLong(entry -> entry.dueAt));
+
+    /**
+     * Constructor.
+     *
+     * @param minInterval       The shortest interval between checks.
+     * @param maxInterval       The longest interval between checks.
+     * @param backoffMultiplier How much an idle session's interval grows
+     *                          after an empty check.
+     * @param meterRegistry     The registry for the scheduler metrics.
+     */
+    public SessionScheduler(
+            final Duration minInterval,
+            final Duration maxInterval,
+            final double backoffMultiplier,
+            final MeterRegistry meterRegistry) {
+        this.minIntervalMillis = minInterval.toMillis();
+        this.maxIntervalMillis = Math.max(maxInterval.toMillis(), this.minIntervalMillis);
+        this.backoffMultiplier = backoffMultiplier;
+        this.emptyChecks =
+                meterRegistry.counter(
+                        "notifications.checks",
+                        "result",
+                        "empty");
+        this.notifiedChecks =
+                meterRegistry.counter(
+                        "notifications.checks",
+                        "result",
+                        "notified");
+        meterRegistry.gauge(
+                "notifications.sessions.scheduled",
+                this,
+                SessionScheduler::size);
+        meterRegistry.gauge(
+                "notifications.sessions.backedOff",
+                this,
+                SessionScheduler::backedOff);
+        meterRegistry.gauge(
+                "notifications.interval.mean",
+                this,
+                SessionScheduler::meanIntervalSeconds);
+    }
+
+    /**
+     * Returns the number of sessions that are being checked less often than
+     * the floor.
+     *
+     * @return The number of backed off sessions.
+     */
+    public synchronized int backedOff() {
+        return (int) this.entries
+                .values()
+                .stream()
+                .filter(entry -> entry.intervalMillis > this.minIntervalMillis)
+                .count();
+    }
+
+    /**
+     * Stops checking the session for the provided space.
+     *
+     * @param spaceId The space ID.
+     */
+    public synchronized void cancel(final String spaceId) {
+        final Entry entry = this.entries.remove(spaceId);
+        if (entry != null) {
+            // Dropped lazily when it reaches the head of the queue
+            entry.cancelled = true;
+        }
+    }
+
+    /**
+     * Checks whether the session for the provided space is being checked.
+     *
+     * @param spaceId The space ID.
+     *
+     * @return Whether the session is scheduled.
+     */
+    public synchronized boolean contains(final String spaceId) {
+        return this.entries.containsKey(spaceId);
+    }
+
+    /**
+     * Returns the mean interval between checks across every session.
+     *
+     * @return The mean interval, in seconds.
+     */
+    public synchronized double meanIntervalSeconds() {
+        return this.entries
+                .values()
+                .stream()
+                .mapToLong(entry -> entry.intervalMillis)
+                .average()
+                .orElse(this.minIntervalMillis) / 1000;
+    }
+
+    /**
+     * Removes and returns every session that's due to be checked. The returned
+     * sessions won't be returned again until they're {@link #reschedule(List)
+     * rescheduled}.
+     *
+     * @return The sessions that are due.
+     */
+    public synchronized List<Session> pollDue() {
+        final long now = System.currentTimeMillis();
+        final List<Session> due = new ArrayList<>();
+        while (!this.queue.isEmpty() && this.queue.peek().dueAt <= now) {
+            final Entry entry = this.queue.poll();
+            if (!entry.cancelled) {
+                due.add(entry.session);
+            }
+        }
+        return due;
+    }
+
+    /**
+     * Adjusts the interval of the provided session based on the outcome of its
+     * most recent check.
+     *
+     * @param session  The session that was checked.
+     * @param notified Whether the check found notifications.
+     */
+    public synchronized void recordResult(
+            final Session session,
+            final boolean notified) {
+        final Entry entry = this.entries.get(session.getSpaceId());
+        if (entry != null && entry.session == session) {
+            if (notified) {
+                this.notifiedChecks.increment();
+                entry.intervalMillis = this.minIntervalMillis;
+            } else {
+                this.emptyChecks.increment();
+                entry.intervalMillis =
+                        Math.min(
+                                (long) (entry.intervalMillis * this.backoffMultiplier),
+                                this.maxIntervalMillis);
+            }
+        }
+    }
+
+    /**
+     * Schedules the provided sessions for their next check after they've been
+     * processed. Sessions that were cancelled while they were being processed
+     * are dropped.
+     *
+     * @param sessions The processed sessions.
+     */
+    public synchronized void reschedule(final List<Session> sessions) {
+        final long now = System.currentTimeMillis();
+        for (final Session session : sessions) {
+            final Entry entry = this.entries.get(session.getSpaceId());
+            if (entry != null && entry.session == session) {
+                entry.dueAt =
+                        nextSlot(
+                                entry.dueAt + entry.intervalMillis,
+                                entry.intervalMillis,
+                                now);
+                this.queue.add(entry);
+            }
+        }
+    }
+
+    /**
+     * Begins checking the provided session, replacing any session that was
+     * previously scheduled for the same space.
+     *
+     * @param session The session.
+     */
+    public synchronized void schedule(final Session session) {
+        cancel(session.getSpaceId());
+
+        final long now = System.currentTimeMillis();
+        final long offset =
+                Math.floorMod(
+                        session.getSpaceId().hashCode(),
+                        this.minIntervalMillis);
+        final Entry entry =
+                new Entry(
+                        session,
+                        this.minIntervalMillis,
+                        nextSlot(
+                                now - Math.floorMod(now, this.minIntervalMillis) + offset,
+                                this.minIntervalMillis,
+                                now));
+        this.entries.put(session.getSpaceId(), entry);
+        this.queue.add(entry);
+    }
+
+    /**
+     * Returns every scheduled session.
+     *
+     * @return The scheduled sessions, by space ID.
+     */
+    public synchronized Map<String, Session> scheduled() {
+        final Map<String, Session> scheduled = new HashMap<>(this.entries.size());
+        this.entries.forEach(
+                (spaceId, entry) -> scheduled.put(
+                        spaceId,
+                        entry.session));
+        return scheduled;
+    }
+
+    /**
+     * Returns the number of scheduled sessions.
+     *
+     * @return The number of scheduled sessions.
+     */
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Advances the provided slot by whole intervals until it's no longer in
+     * the past, which keeps a session in its slot even if a check overran.
+     *
+     * @param slot           The candidate slot.
+     * @param intervalMillis The session's interval.
+     * @param now            The current time.
+     *
+     * @return The next slot.
+     */
+    private static long nextSlot(
+            final long slot,
+            final long intervalMillis,
+            final long now) {
+        if (slot >= now) {
+            return slot;
+        }
+        final long behind = now - slot;
+        return slot + ((behind + intervalMillis - 1) / intervalMillis) * intervalMillis;
+    }
+
+    /** A scheduled session. */
+    private static class Entry {
+
+        /** The session. */
+        private final Session session;
+
+        /** Whether the session has been cancelled. */
+        private boolean cancelled;
+
+        /** When the session is next due. */
+        private long dueAt;
+
+        /** The session's current interval between checks. */
+        private long intervalMillis;
+
+        /**
+         * Constructor.
+         *
+         * @param session        The session.
+         * @param intervalMillis The session's interval between checks.
+         * @param dueAt          When the session is next due.
+         */
+        private Entry(
+                final Session session,
+                final long intervalMillis,
+                final long dueAt) {
+            this.session = session;
+            this.intervalMillis = intervalMillis;
+            this.dueAt = dueAt;
+        }
+    }
+}
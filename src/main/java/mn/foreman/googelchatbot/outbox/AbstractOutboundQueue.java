@@ -0,0 +1,162 @@
+package mn.foreman.googelchatbot.outbox;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * An {@link OutboundQueue} that keeps an in-memory index of the queued
+ * messages in front of durable storage. Reads are served from the index;
+ * writes go to storage first and only reach the index once they're durable.
+ */
+public abstract class AbstractOutboundQueue
+        implements OutboundQueue {
+
+    /** Orders messages that are queued within the same millisecond. */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /** The queued messages, by space, ordered by ID. */
+    private final Map<String, TreeMap<String, OutboundMessage>> spaces =
+            new HashMap<>();
+
+    @Override
+    public void add(final List<OutboundMessage> messages)
+            throws IOException {
+        final Instant now = Instant.now();
+        for (final OutboundMessage message : messages) {
+            message.setDateQueued(now);
+            message.setId(
+                    String.format(
+                            "%013d-%06d-%s",
+                            now.toEpochMilli(),
+                            this.sequence.getAndIncrement() % 1_000_000,
+                            UUID.randomUUID()));
+            write(message);
+            index(message);
+        }
+    }
+
+    @Override
+    public synchronized void forget(final Predicate<String> spaces) {
+        this.spaces.keySet().removeIf(spaces);
+    }
+
+    @Override
+    public synchronized int highWaterMark(final String spaceId) {
+        final TreeMap<String, OutboundMessage> messages =
+                this.spaces.get(spaceId);
+        return messages != null && !messages.isEmpty()
+                ? messages.lastEntry().getValue().getNotificationId()
+                : 0;
+    }
+
+    @Override
+    public synchronized Map<String, List<OutboundMessage>> pendingBySpace() {
+        final Map<String, List<OutboundMessage>> pending = new HashMap<>();
+        this.spaces.forEach(
+                (spaceId, messages) ->
+                        pending.put(
+                                spaceId,
+                                new ArrayList<>(messages.values())));
+        return pending;
+    }
+
+    @Override
+    public void reload(final Predicate<String> spaces)
+            throws IOException {
+        final List<OutboundMessage> stored = readAll();
+        synchronized (this) {
+            this.spaces.keySet().removeIf(spaces);
+            for (final OutboundMessage message : stored) {
+                if (spaces.test(message.getSpaceId())) {
+                    index(message);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void remove(final OutboundMessage message)
+            throws IOException {
+        delete(message);
+        synchronized (this) {
+            final TreeMap<String, OutboundMessage> messages =
+                    this.spaces.get(message.getSpaceId());
+            if (messages != null) {
+                messages.remove(message.getId());
+                if (messages.isEmpty()) {
+                    this.spaces.remove(message.getSpaceId());
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized int size() {
+        return this.spaces
+                .values()
+                .stream()
+                .mapToInt(Map::size)
+                .sum();
+    }
+
+    /**
+     * Deletes the provided message from storage.
+     *
+     * @param message The message.
+     *
+     * @throws IOException on failure.
+     */
+    protected abstract void delete(OutboundMessage message) throws IOException;
+
+    /**
+     * Populates the index with the provided messages, which were read back
+     * from storage. Must be called by implementations once they've loaded.
+     *
+     * @param messages The stored messages.
+     */
+    protected void load(final Collection<OutboundMessage> messages) {
+        messages.forEach(this::index);
+    }
+
+    /**
+     * Reads every message in storage.
+     *
+     * @return The messages.
+     *
+     * @throws IOException on failure.
+     */
+    protected abstract List<OutboundMessage> readAll() throws IOException;
+
+    /**
+     * Durably writes the provided message to storage.
+     *
+     * @param message The message.
+     *
+     * @throws IOException on failure.
+     */
+    protected abstract void write(OutboundMessage message) throws IOException;
+
+    /**
+     * Adds the provided message to the index.
+     *
+     * @param message The message.
+     */
+    private synchronized void index(final OutboundMessage message) {
+        this.spaces
+                .computeIfAbsent(
+                        message.getSpaceId(),
+                        spaceId -> new TreeMap<>())
+                .put(
+                        message.getId(),
+                        message);
+    }
+}
@@ -0,0 +1,142 @@
+package mn.foreman.googelchatbot.outbox;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An {@link OutboundQueue} that stores each message as its own file in a local
+ * directory. Messages are written to a temporary file, synced, and then
+ * atomically renamed into place, so a crash never leaves a partial message
+ * behind.
+ */
+public class FileOutboundQueue
+        extends AbstractOutboundQueue {
+
+    /** The logger for this class. */
+    private static final Logger LOG =
+            LoggerFactory.getLogger(FileOutboundQueue.class);
+
+    /** The suffix for message files. */
+    private static final String SUFFIX = ".json";
+
+    /** The suffix for messages that are still being written. */
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /** The directory containing the messages. */
+    private final Path directory;
+
+    /** The mapper for reading and writing messages. */
+    private final ObjectMapper objectMapper;
+
+    /**
+     * Constructor. Loads any messages that were queued before a restart.
+     *
+     * @param directory    The directory containing the messages.
+     * @param objectMapper The mapper for reading and writing messages.
+     *
+     * @throws IOException on failure.
+     */
+    public FileOutboundQueue(
+            final Path directory,
+            final ObjectMapper objectMapper)
+            throws IOException {
+        this.directory = directory;
+        this.objectMapper = objectMapper;
+        Files.createDirectories(directory);
+        deleteIncomplete();
+        load(readAll());
+    }
+
+    @Override
+    protected void delete(final OutboundMessage message)
+            throws IOException {
+        Files.deleteIfExists(toPath(message.getId(), SUFFIX));
+    }
+
+    @Override
+    protected List<OutboundMessage> readAll()
+            throws IOException {
+        final List<OutboundMessage> messages = new ArrayList<>();
+        try (final DirectoryStream<Path> paths =
+                     Files.newDirectoryStream(this.directory, "*" + SUFFIX)) {
+            for (final Path path : paths) {
+                try {
+                    messages.add(
+                            this.objectMapper.readValue(
+                                    path.toFile(),
+                                    OutboundMessage.class));
+                } catch (final IOException e) {
+                    LOG.error("Unreadable queued message {}", path, e);
+                }
+            }
+        }
+        LOG.info("Loaded {} queued messages from {}",
+                messages.size(),
+                this.directory);
+        return messages;
+    }
+
+    @Override
+    protected void write(final OutboundMessage message)
+            throws IOException {
+        final Path temp = toPath(message.getId(), TEMP_SUFFIX);
+        try (final FileChannel channel =
+                     FileChannel.open(
+                             temp,
+                             StandardOpenOption.CREATE,
+                             StandardOpenOption.TRUNCATE_EXISTING,
+                             StandardOpenOption.WRITE)) {
+            final ByteBuffer buffer =
+                    ByteBuffer.wrap(this.objectMapper.writeValueAsBytes(message));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(
+                temp,
+                toPath(message.getId(), SUFFIX),
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Discards any messages that were only partially written before a crash.
+     *
+     * @throws IOException on failure.
+     */
+    private void deleteIncomplete()
+            throws IOException {
+        try (final DirectoryStream<Path> paths =
+                     Files.newDirectoryStream(this.directory, "*" + TEMP_SUFFIX)) {
+            for (final Path path : paths) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    /**
+     * Returns the path for the provided message.
+     *
+     * @param id     The message ID.
+     * @param suffix The file suffix.
+     *
+     * @return The path.
+     */
+    private Path toPath(
+            final String id,
+            final String suffix) {
+        return this.directory.resolve(id + suffix);
+    }
+}
@@ -0,0 +1,95 @@
+package mn.foreman.googelchatbot.outbox;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.Bucket;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageException;
+import org.apache.http.entity.ContentType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An {@link OutboundQueue} that stores each message as its own blob under a
+ * prefix in the bot's bucket.
+ */
+public class GoogleStorageOutboundQueue
+        extends AbstractOutboundQueue {
+
+    /** The status code for a missing blob. */
+    private static final int NOT_FOUND = 404;
+
+    /** The prefix for queued messages. */
+    public static final String PREFIX = "outbox/";
+
+    /** The logger for this class. */
+    private static final Logger LOG =
+            LoggerFactory.getLogger(GoogleStorageOutboundQueue.class);
+
+    /** The Google Cloud Bucket */
+    private final Bucket bucket;
+
+    /** The mapper for reading and writing messages. */
+    private final ObjectMapper objectMapper;
+
+    /**
+     * Constructor. Loads any messages that were queued before a restart.
+     *
+     * @param objectMapper The mapper for reading and writing messages.
+     * @param bucket       The bucket where messages will be stored.
+     */
+    public GoogleStorageOutboundQueue(
+            final ObjectMapper objectMapper,
+            final Bucket bucket) {
+        this.objectMapper = objectMapper;
+        this.bucket = bucket;
+        load(readAll());
+    }
+
+    @Override
+    protected void delete(final OutboundMessage message) {
+        this.bucket
+                .getStorage()
+                .delete(
+                        BlobId.of(
+                                this.bucket.getName(),
+                                PREFIX + message.getId()));
+    }
+
+    @Override
+    protected List<OutboundMessage> readAll() {
+        final List<OutboundMessage> messages = new ArrayList<>();
+        for (final Blob blob : this.bucket.list(Storage.BlobListOption.prefix(PREFIX)).iterateAll()) {
+            try {
+                messages.add(
+                        this.objectMapper.readValue(
+                                blob.getContent(),
+                                OutboundMessage.class));
+            } catch (final StorageException e) {
+                if (e.getCode() != NOT_FOUND) {
+                    LOG.error("Unreadable queued message {}", blob.getName(), e);
+                }
+                // Otherwise, delivered since it was listed
+            } catch (final Exception e) {
+                LOG.error("Unreadable queued message {}", blob.getName(), e);
+            }
+        }
+        LOG.info("Loaded {} queued messages", messages.size());
+        return messages;
+    }
+
+    @Override
+    protected void write(final OutboundMessage message)
+            throws IOException {
+        this.bucket.create(
+                PREFIX + message.getId(),
+                this.objectMapper.writeValueAsBytes(message),
+                ContentType.APPLICATION_JSON.getMimeType(),
+                Bucket.BlobTargetOption.doesNotExist());
+    }
+}
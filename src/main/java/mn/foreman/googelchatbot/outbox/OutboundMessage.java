@@ -0,0 +1,36 @@
+package mn.foreman.googelchatbot.outbox;
+
+import lombok.*;
+
+import java.time.Instant;
+
+/**
+ * An {@link OutboundMessage} is a rendered message that's waiting to be
+ * delivered to a space.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class OutboundMessage {
+
+    /** When the message was queued. */
+    private Instant dateQueued;
+
+    /**
+     * The ID of the message. IDs sort in the order the messages were queued.
+     */
+    private String id;
+
+    /**
+     * The ID of the last notification in the message. The space's cursor is
+     * advanced to this once the message is delivered.
+     */
+    private int notificationId;
+
+    /** The space the message is for. */
+    private String spaceId;
+
+    /** The message content. */
+    private String text;
+}
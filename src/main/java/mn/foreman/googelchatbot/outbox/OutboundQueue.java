@@ -0,0 +1,78 @@
+package mn.foreman.googelchatbot.outbox;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * A durable queue of {@link OutboundMessage messages} that are waiting to be
+ * delivered. Messages survive restarts and are only removed once they've been
+ * delivered.
+ */
+public interface OutboundQueue {
+
+    /**
+     * Durably adds the provided messages to the queue. Once this returns, the
+     * messages will survive a restart.
+     *
+     * @param messages The messages to add, in delivery order.
+     *
+     * @throws IOException on failure.
+     */
+    void add(List<OutboundMessage> messages) throws IOException;
+
+    /**
+     * Stops tracking the messages for the matching spaces, without removing
+     * them from storage. Used for spaces that another replica delivers to.
+     *
+     * @param spaces Matches the spaces to forget.
+     */
+    void forget(Predicate<String> spaces);
+
+    /**
+     * Returns the ID of the last notification that's queued for the provided
+     * space.
+     *
+     * @param spaceId The space.
+     *
+     * @return The ID of the last queued notification, or 0 if nothing is
+     *         queued.
+     */
+    int highWaterMark(String spaceId);
+
+    /**
+     * Returns every queued message, grouped by space and in delivery order.
+     *
+     * @return The queued messages.
+     */
+    Map<String, List<OutboundMessage>> pendingBySpace();
+
+    /**
+     * Re-reads the messages for the matching spaces from storage, replacing
+     * those that are tracked for them. Used for spaces that this replica has
+     * taken over from another one, which may have queued and delivered
+     * messages in the meantime.
+     *
+     * @param spaces Matches the spaces to reload.
+     *
+     * @throws IOException on failure.
+     */
+    void reload(Predicate<String> spaces) throws IOException;
+
+    /**
+     * Removes the provided message from the queue.
+     *
+     * @param message The message.
+     *
+     * @throws IOException on failure.
+     */
+    void remove(OutboundMessage message) throws IOException;
+
+    /**
+     * Returns the number of queued messages.
+     *
+     * @return The number of queued messages.
+     */
+    int size();
+}
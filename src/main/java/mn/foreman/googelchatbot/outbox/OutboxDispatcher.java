@@ -0,0 +1,256 @@
+package mn.foreman.googelchatbot.outbox;
+
+import mn.foreman.googelchatbot.chat.ChatSender;
+import mn.foreman.googelchatbot.session.CursorCheckpointer;
+import mn.foreman.googelchatbot.session.Session;
+import mn.foreman.googelchatbot.session.SessionRepository;
+import mn.foreman.googelchatbot.sharding.ShardLeaseManager;
+
+import com.google.api.client.http.HttpResponseException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers the messages in the {@link OutboundQueue} in the background,
+ * independently of polling, so a slow Chat API never stretches a poll cycle.
+ *
+ * <p>Each space's messages are delivered strictly in order, and a space's
+ * cursor is only advanced once the message containing a notification has been
+ * delivered. Cursors are checkpointed in the background, so delivery never
+ * waits on a storage write. A space whose delivery fails is retried on the
+ * next pass, as is a space whose session couldn't be looked up. Messages that
+ * Google rejects outright, because the space is gone or the bot was removed
+ * from it, are dropped, as are those for spaces that have been forgotten.</p>
+ *
+ * <p>Only the spaces that this replica owns are delivered to, and every send
+ * is fenced by the space's shard lease, so a space that's handed over
+ * mid-pass is left to its new owner.</p>
+ *
+ * <p>Passes run on their own scheduler thread, since a pass can wait on the
+ * rate limiter and on retries for a long time, and must not hold up polling
+ * or lease renewal.</p>
+ */
+public class OutboxDispatcher {
+
+    /** The logger for this class. */
+    private static final Logger LOG =
+            LoggerFactory.getLogger(OutboxDispatcher.class);
+
+    /** Sends the messages. */
+    private final ChatSender chatSender;
+
+    /** Checkpoints the cursors of delivered messages. */
+    private final CursorCheckpointer cursorCheckpointer;
+
+    /** The number of messages that were delivered. */
+    private final Counter delivered;
+
+    /** The number of messages that were dropped. */
+    private final Counter dropped;
+
+    /** The executor that delivers to each space. */
+    private final ExecutorService executor;
+
+    /** The queue of pending messages. */
+    private final OutboundQueue outboundQueue;
+
+    /** The repository containing the sessions. */
+    private final SessionRepository sessionRepository;
+
+    /** Decides which spaces this replica delivers to. */
+    private final ShardLeaseManager shardLeaseManager;
+
+    /**
+     * Constructor.
+     *
+     * @param outboundQueue      The queue of pending messages.
+     * @param chatSender         Sends the messages.
+     * @param sessionRepository  The repository containing the sessions.
+     * @param cursorCheckpointer Checkpoints the cursors of delivered
+     *                           messages.
+     * @param shardLeaseManager  Decides which spaces this replica delivers
+     *                           to.
+     * @param executor           The executor that delivers to each space.
+     * @param scheduler          The scheduler that starts each pass.
+     * @param initialDelay       How long to wait before the first pass.
+     * @param fixedDelay         How long to wait between passes.
+     * @param meterRegistry      The registry for the delivery metrics.
+     */
+    public OutboxDispatcher(
+            final OutboundQueue outboundQueue,
+            final ChatSender chatSender,
+            final SessionRepository sessionRepository,
+            final CursorCheckpointer cursorCheckpointer,
+            final ShardLeaseManager shardLeaseManager,
+            final ExecutorService executor,
+            final ScheduledExecutorService scheduler,
+            final Duration initialDelay,
+            final Duration fixedDelay,
+            final MeterRegistry meterRegistry) {
+        this.outboundQueue = outboundQueue;
+        this.chatSender = chatSender;
+        this.sessionRepository = sessionRepository;
+        this.cursorCheckpointer = cursorCheckpointer;
+        this.shardLeaseManager = shardLeaseManager;
+        this.executor = executor;
+        this.delivered = meterRegistry.counter("outbox.delivered");
+        this.dropped = meterRegistry.counter("outbox.dropped");
+        meterRegistry.gauge(
+                "outbox.pending",
+                outboundQueue,
+                OutboundQueue::size);
+        scheduler.scheduleWithFixedDelay(
+                () -> {
+                    try {
+                        dispatch();
+                    } catch (final Exception e) {
+                        LOG.error("Something really bad happened", e);
+                    }
+                },
+                initialDelay.toMillis(),
+                fixedDelay.toMillis(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Delivers every pending message for the spaces this replica owns, one
+     * space at a time per thread.
+     */
+    public void dispatch() {
+        final Map<String, List<OutboundMessage>> pending =
+                this.outboundQueue.pendingBySpace();
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        final List<Future<?>> futures = new ArrayList<>(pending.size());
+        pending.forEach(
+                (spaceId, messages) -> {
+                    if (this.shardLeaseManager.owns(spaceId)) {
+                        futures.add(
+                                this.executor.submit(
+                                        () -> deliver(
+                                                spaceId,
+                                                messages)));
+                    }
+                });
+        for (final Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (final ExecutionException e) {
+                LOG.error("Something really bad happened", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Delivers the provided messages to a space in order, stopping at the
+     * first one that fails so ordering is preserved on the next attempt, or
+     * once the space is no longer owned.
+     *
+     * @param spaceId  The space.
+     * @param messages The messages.
+     */
+    private void deliver(
+            final String spaceId,
+            final List<OutboundMessage> messages) {
+        final Optional<Session> sessionOpt;
+        try {
+            sessionOpt = this.sessionRepository.findBySpaceId(spaceId);
+        } catch (final Exception e) {
+            // Only messages for a space that's known to be gone are dropped
+            LOG.warn("Failed to look up {} - will retry", spaceId, e);
+            return;
+        }
+
+        try {
+            for (final OutboundMessage message : messages) {
+                final boolean owned =
+                        this.shardLeaseManager.runIfOwned(
+                                spaceId,
+                                () -> {
+                                    if (sessionOpt.isPresent()) {
+                                        deliver(
+                                                spaceId,
+                                                message);
+                                    } else {
+                                        // The space was forgotten while its
+                                        // messages were queued
+                                        this.outboundQueue.remove(message);
+                                        this.dropped.increment();
+                                    }
+                                });
+                if (!owned) {
+                    return;
+                }
+            }
+        } catch (final IOException e) {
+            LOG.warn("Failed to deliver to {} - will retry", spaceId, e);
+        } catch (final Exception e) {
+            LOG.error("Something really bad happened", e);
+        }
+    }
+
+    /**
+     * Delivers the provided message and advances its space's cursor.
+     * Messages that Google rejects outright are dropped.
+     *
+     * @param spaceId The space.
+     * @param message The message.
+     *
+     * @throws IOException if the message should be retried.
+     */
+    private void deliver(
+            final String spaceId,
+            final OutboundMessage message)
+            throws IOException {
+        try {
+            this.chatSender.send(
+                    spaceId,
+                    message.getText());
+            this.delivered.increment();
+        } catch (final HttpResponseException e) {
+            if (!isPermanent(e)) {
+                throw e;
+            }
+            LOG.error("Chat rejected message {} for {} - dropping it",
+                    message.getId(),
+                    spaceId,
+                    e);
+            this.dropped.increment();
+        }
+        this.outboundQueue.remove(message);
+        this.cursorCheckpointer.advance(
+                spaceId,
+                message.getNotificationId());
+    }
+
+    /**
+     * Checks whether the provided failure will never succeed on a retry.
+     *
+     * @param e The failure.
+     *
+     * @return Whether the failure is permanent.
+     */
+    private static boolean isPermanent(final HttpResponseException e) {
+        final int status = e.getStatusCode();
+        return status == 400 || status == 403 || status == 404;
+    }
+}
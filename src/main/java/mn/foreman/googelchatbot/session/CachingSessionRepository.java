@@ -0,0 +1,422 @@
+package mn.foreman.googelchatbot.session;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * A {@link SessionRepository} decorator that keeps every session in memory.
+ * The delegate is read in bulk once, and reads are served from memory after
+ * that. Writes go through to the delegate before they reach memory.
+ * Sessions that are changed outside of this process are picked up by a
+ * periodic reconciliation with the delegate.
+ *
+ * <p>Sessions are copied on the way in and out, so callers can't change the
+ * cached state by modifying a session they were handed.</p>
+ *
+ * <p>Spaces that the delegate doesn't know about are remembered for a while,
+ * so that commands from spaces that never registered don't each cost a trip
+ * to storage. Making a session forgets that its space was absent, as does a
+ * conflict that shows the space was registered elsewhere. Absent spaces are
+ * only remembered by this replica, so a space that registers through
+ * another replica can look unregistered here until its entry expires; keep
+ * the TTL short.</p>
+ */
+public class CachingSessionRepository
+        implements SessionRepository {
+
+    /** The logger for this class. */
+    private static final Logger LOG =
+            LoggerFactory.getLogger(CachingSessionRepository.class);
+
+    /** The spaces that were recently found to have no session. */
+    private final Cache<String, Boolean> absent;
+
+    /** The number of lookups answered by {@link #absent}. */
+    private final Counter absentHits;
+
+    /** The repository being cached. */
+    private final SessionRepository delegate;
+
+    /** Whether the sessions have been loaded from the delegate. */
+    private boolean loaded;
+
+    /** The spaces that were written since the last reconciliation began. */
+    private final Set<String> modified = new HashSet<>();
+
+    /**
+     * Held while sessions are read in bulk from the delegate, so that one
+     * read, and one reconciliation, happens at a time.
+     */
+    private final Object reconcileLock = new Object();
+
+    /** The cached sessions, by space ID. */
+    private final Map<String, Session> sessions = new HashMap<>();
+
+    /** Whether the first load is streaming pages from the delegate. */
+    private boolean streaming;
+
+    /**
+     * Constructor.
+     *
+     * @param delegate      The repository being cached.
+     * @param absentTtl     How long to remember that a space has no
+     *                      session.
+     * @param absentMax     The most spaces to remember as having no session.
+     * @param meterRegistry The registry for the cache metrics.
+     */
+    public CachingSessionRepository(
+            final SessionRepository delegate,
+            final Duration absentTtl,
+            final long absentMax,
+            final MeterRegistry meterRegistry) {
+        this.delegate = delegate;
+        this.absent =
+                CacheBuilder
+                        .newBuilder()
+                        .expireAfterWrite(
+                                absentTtl.toMillis(),
+                                TimeUnit.MILLISECONDS)
+                        .maximumSize(absentMax)
+                        .build();
+        this.absentHits = meterRegistry.counter("sessions.lookups.absent");
+        meterRegistry.gauge(
+                "sessions.cached",
+                this,
+                CachingSessionRepository::size);
+    }
+
+    @Override
+    public void delete(final String spaceId) {
+        this.delegate.delete(spaceId);
+        synchronized (this) {
+            this.sessions.remove(spaceId);
+            this.modified.add(spaceId);
+        }
+    }
+
+    @Override
+    public List<Session> findAll()
+            throws IOException {
+        loadIfNeeded();
+        synchronized (this) {
+            final List<Session> copies = new ArrayList<>(this.sessions.size());
+            this.sessions
+                    .values()
+                    .forEach(session -> copies.add(session.toBuilder().build()));
+            return copies;
+        }
+    }
+
+    @Override
+    public Optional<Session> findBySpaceId(final String spaceId) {
+        // Until the sessions are loaded, a miss says nothing about storage.
+        // While the first load streams, lookups come from the code that's
+        // handed its pages, so they read through rather than wait for it
+        final boolean streaming;
+        synchronized (this) {
+            streaming = this.streaming;
+        }
+        try {
+            if (!streaming) {
+                loadIfNeeded();
+            }
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        synchronized (this) {
+            final Session session = this.sessions.get(spaceId);
+            if (session != null) {
+                return Optional.of(session.toBuilder().build());
+            }
+        }
+
+        if (this.absent.getIfPresent(spaceId) != null) {
+            this.absentHits.increment();
+            return Optional.empty();
+        }
+
+        // Fall back to storage so a space registered elsewhere is visible
+        // before the next reconciliation
+        final Optional<Session> sessionOpt =
+                this.delegate.findBySpaceId(spaceId);
+        if (sessionOpt.isPresent()) {
+            synchronized (this) {
+                this.sessions.putIfAbsent(
+                        spaceId,
+                        sessionOpt.get().toBuilder().build());
+            }
+        } else {
+            // A make that races with this is still found, since the cached
+            // sessions are checked first
+            this.absent.put(
+                    spaceId,
+                    Boolean.TRUE);
+        }
+        return sessionOpt;
+    }
+
+    @Override
+    public void forEachPage(
+            final int pageSize,
+            final Consumer<List<Session>> consumer)
+            throws IOException {
+        final boolean first;
+        synchronized (this) {
+            first = !this.loaded && !this.streaming;
+            if (first) {
+                this.streaming = true;
+            }
+        }
+        if (first) {
+            try {
+                synchronized (this.reconcileLock) {
+                    if (!isLoaded()) {
+                        stream(
+                                pageSize,
+                                consumer);
+                        return;
+                    }
+                }
+            } finally {
+                synchronized (this) {
+                    this.streaming = false;
+                }
+            }
+        }
+
+        // Loaded, or being loaded, by someone else
+        SessionRepository.super.forEachPage(
+                pageSize,
+                consumer);
+    }
+
+    @Override
+    public Session make(
+            final String spaceId,
+            final int clientId,
+            final String apiKey,
+            final Instant dateRegistered)
+            throws IOException {
+        this.absent.invalidate(spaceId);
+        final Session session;
+        try {
+            session =
+                    this.delegate.make(
+                            spaceId,
+                            clientId,
+                            apiKey,
+                            dateRegistered);
+        } catch (final SessionConflictException e) {
+            evict(spaceId);
+            throw e;
+        }
+        synchronized (this) {
+            this.sessions.put(
+                    spaceId,
+                    session.toBuilder().build());
+            this.modified.add(spaceId);
+        }
+        return session;
+    }
+
+    /**
+     * Replaces the cached sessions with what's in the delegate, keeping any
+     * writes that were made while the delegate was being read.
+     *
+     * @throws IOException on failure.
+     */
+    @Scheduled(
+            initialDelayString = "${bot.session.reconcileDelay}",
+            fixedDelayString = "${bot.session.reconcileDelay}")
+    public void reconcile()
+            throws IOException {
+        synchronized (this.reconcileLock) {
+            synchronized (this) {
+                this.modified.clear();
+            }
+
+            final List<Session> stored = this.delegate.findAll();
+
+            synchronized (this) {
+                final Map<String, Session> reconciled = new HashMap<>();
+                stored.forEach(
+                        session ->
+                                reconciled.put(
+                                        session.getSpaceId(),
+                                        session));
+                for (final String spaceId : this.modified) {
+                    final Session session = this.sessions.get(spaceId);
+                    if (session != null) {
+                        reconciled.put(
+                                spaceId,
+                                session);
+                    } else {
+                        reconciled.remove(spaceId);
+                    }
+                }
+                LOG.debug("Reconciled {} cached sessions with {} stored",
+                        this.sessions.size(),
+                        reconciled.size());
+                this.sessions.clear();
+                this.sessions.putAll(reconciled);
+                this.loaded = true;
+            }
+        }
+    }
+
+    @Override
+    public void reload()
+            throws IOException {
+        reconcile();
+    }
+
+    @Override
+    public void save(
+            final String spaceId,
+            final Session session)
+            throws IOException {
+        try {
+            this.delegate.save(
+                    spaceId,
+                    session);
+        } catch (final SessionConflictException e) {
+            evict(spaceId);
+            throw e;
+        }
+        synchronized (this) {
+            // The delegate only saves sessions that already exist
+            if (this.sessions.containsKey(spaceId)) {
+                this.sessions.put(
+                        spaceId,
+                        session.toBuilder().build());
+                this.modified.add(spaceId);
+            }
+        }
+    }
+
+    @Override
+    public void saveCursors(final Collection<SessionCursor> cursors)
+            throws IOException {
+        this.delegate.saveCursors(cursors);
+        synchronized (this) {
+            for (final SessionCursor cursor : cursors) {
+                final Session session = this.sessions.get(cursor.getSpaceId());
+                if (session != null && cursor.appliesTo(session)) {
+                    session.setLastNotificationId(cursor.getLastNotificationId());
+                    this.modified.add(cursor.getSpaceId());
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of cached sessions.
+     *
+     * @return The number of cached sessions.
+     */
+    public synchronized int size() {
+        return this.sessions.size();
+    }
+
+    /**
+     * Drops what's cached for the provided space, which is out of date, so
+     * the next read goes to the delegate.
+     *
+     * @param spaceId The space.
+     */
+    private void evict(final String spaceId) {
+        this.absent.invalidate(spaceId);
+        synchronized (this) {
+            this.sessions.remove(spaceId);
+        }
+    }
+
+    /**
+     * Returns whether the sessions have been loaded from the delegate.
+     *
+     * @return Whether the sessions have been loaded.
+     */
+    private synchronized boolean isLoaded() {
+        return this.loaded;
+    }
+
+    /**
+     * Reads every session from the delegate, if that hasn't happened yet.
+     * Callers that arrive while another is reading wait for that read rather
+     * than starting their own.
+     *
+     * @throws IOException on failure.
+     */
+    private void loadIfNeeded()
+            throws IOException {
+        if (isLoaded()) {
+            return;
+        }
+        synchronized (this.reconcileLock) {
+            if (!isLoaded()) {
+                reconcile();
+            }
+        }
+    }
+
+    /**
+     * Streams every session from the delegate, caching each page as it
+     * arrives. Must be called with {@link #reconcileLock} held.
+     *
+     * @param pageSize The most sessions in a page.
+     * @param consumer The consumer for each page.
+     *
+     * @throws IOException on failure.
+     */
+    private void stream(
+            final int pageSize,
+            final Consumer<List<Session>> consumer)
+            throws IOException {
+        synchronized (this) {
+            this.modified.clear();
+        }
+        this.delegate.forEachPage(
+                pageSize,
+                page -> {
+                    final List<Session> copies = new ArrayList<>(page.size());
+                    synchronized (this) {
+                        for (final Session session : page) {
+                            final String spaceId = session.getSpaceId();
+                            if (!this.modified.contains(spaceId)) {
+                                this.sessions.put(
+                                        spaceId,
+                                        session);
+                            }
+                            final Session cached = this.sessions.get(spaceId);
+                            if (cached != null) {
+                                copies.add(cached.toBuilder().build());
+                            }
+                        }
+                    }
+                    consumer.accept(copies);
+                });
+        synchronized (this) {
+            this.loaded = true;
+        }
+    }
+}
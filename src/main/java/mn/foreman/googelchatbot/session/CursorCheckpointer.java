@@ -0,0 +1,140 @@
+package mn.foreman.googelchatbot.session;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Collects cursor advances in memory and writes them to the
+ * {@link SessionRepository} in the background. Repeated advances for the same
+ * space between flushes collapse into one cursor, every cursor from a flush is
+ * written as a single batch, and callers never wait on storage.
+ */
+public class CursorCheckpointer {
+
+    /** The logger for this class. */
+    private static final Logger LOG =
+            LoggerFactory.getLogger(CursorCheckpointer.class);
+
+    /** The number of advances that were folded into a pending write. */
+    private final Counter coalesced;
+
+    /** The cursors waiting to be written, by space. */
+    private final Map<String, Integer> pending = new ConcurrentHashMap<>();
+
+    /** The repository to write the cursors to. */
+    private final SessionRepository sessionRepository;
+
+    /** The number of cursors that were written. */
+    private final Counter written;
+
+    /**
+     * Constructor.
+     *
+     * @param sessionRepository The repository to write the cursors to.
+     * @param meterRegistry     The registry for the checkpoint metrics.
+     */
+    public CursorCheckpointer(
+            final SessionRepository sessionRepository,
+            final MeterRegistry meterRegistry) {
+        this.sessionRepository = sessionRepository;
+        this.coalesced = meterRegistry.counter("session.cursors.coalesced");
+        this.written = meterRegistry.counter("session.cursors.written");
+        meterRegistry.gaugeMapSize(
+                "session.cursors.pending",
+                Tags.empty(),
+                this.pending);
+    }
+
+    /**
+     * Records that the provided space has been notified up to the provided
+     * notification. Returns immediately; the cursor is written on the next
+     * flush.
+     *
+     * @param spaceId        The space.
+     * @param notificationId The last delivered notification.
+     */
+    public void advance(
+            final String spaceId,
+            final int notificationId) {
+        if (this.pending.putIfAbsent(spaceId, notificationId) != null) {
+            this.pending.merge(spaceId, notificationId, Math::max);
+            this.coalesced.increment();
+        }
+    }
+
+    /** Writes every pending cursor in a single batch. */
+    @Scheduled(
+            initialDelayString = "${bot.cursor.flushDelay}",
+            fixedDelayString = "${bot.cursor.flushDelay}")
+    @PreDestroy
+    public void flush() {
+        final Map<String, Integer> batch = new HashMap<>();
+        for (final String spaceId : this.pending.keySet()) {
+            final Integer notificationId = this.pending.remove(spaceId);
+            if (notificationId != null) {
+                batch.put(
+                        spaceId,
+                        notificationId);
+            }
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        try {
+            final List<SessionCursor> cursors = toCursors(batch);
+            if (!cursors.isEmpty()) {
+                this.sessionRepository.saveCursors(cursors);
+                this.written.increment(cursors.size());
+            }
+        } catch (final Exception e) {
+            LOG.warn("Failed to write {} cursors - will retry", batch.size(), e);
+            batch.forEach(
+                    (spaceId, notificationId) ->
+                            this.pending.merge(
+                                    spaceId,
+                                    notificationId,
+                                    Math::max));
+        }
+    }
+
+    /**
+     * Converts the provided advances into cursors, skipping spaces that have
+     * been forgotten and spaces whose stored cursor is already further along.
+     *
+     * @param batch The advances, by space.
+     *
+     * @return The cursors to write.
+     */
+    private List<SessionCursor> toCursors(final Map<String, Integer> batch) {
+        final List<SessionCursor> cursors = new ArrayList<>(batch.size());
+        batch.forEach(
+                (spaceId, notificationId) -> {
+                    final Optional<Session> sessionOpt =
+                            this.sessionRepository.findBySpaceId(spaceId);
+                    if (sessionOpt.isPresent() &&
+                            notificationId > sessionOpt.get().getLastNotificationId()) {
+                        cursors.add(
+                                SessionCursor
+                                        .builder()
+                                        .spaceId(spaceId)
+                                        .dateRegistered(sessionOpt.get().getDateRegistered())
+                                        .lastNotificationId(notificationId)
+                                        .build());
+                    }
+                });
+        return cursors;
+    }
+}
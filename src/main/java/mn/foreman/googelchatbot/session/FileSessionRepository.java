@@ -0,0 +1,589 @@
+package mn.foreman.googelchatbot.session;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link SessionRepository} that stores sessions in a local, append-only
+ * log file, with every session indexed in memory by space ID.
+ *
+ * <p>Each change is appended as a record containing its length, a CRC32 of
+ * its content, and the {@link SessionChange} itself. A write returns once its
+ * record has been synced; writers that arrive while a sync is in progress are
+ * covered by the next one, so concurrent writes share syncs. Changes are only
+ * applied to the index once they've been synced, in log order, so readers
+ * never see a change that a crash could lose. On startup, the log is replayed
+ * up to the first record that's incomplete or corrupt, which can only be the
+ * tail left by a crash, and the tail is truncated.</p>
+ *
+ * <p>Once superseded records make up more than half of the log, it's
+ * rewritten in the background with one record per session and atomically
+ * moved into place. The directory is synced whenever the log's directory
+ * entry changes, so the log that was moved into place is the one that's
+ * found after a crash.</p>
+ */
+public class FileSessionRepository
+        implements SessionRepository, Closeable {
+
+    /** The suffix for a log that's being compacted. */
+    private static final String COMPACT_SUFFIX = ".compact";
+
+    /** The length of a record's length and checksum. */
+    private static final int HEADER_LENGTH = 8;
+
+    /** The logger for this class. */
+    private static final Logger LOG =
+            LoggerFactory.getLogger(FileSessionRepository.class);
+
+    /** The log being appended to. */
+    private FileChannel channel;
+
+    /** The number of superseded records that trigger a compaction. */
+    private final int compactionThreshold;
+
+    /** The number of times the log was compacted. */
+    private final Counter compactions;
+
+    /** The log file. */
+    private final Path file;
+
+    /** The number of times the log was synced. */
+    private final Counter fsyncs;
+
+    /** The mapper for reading and writing changes. */
+    private final ObjectMapper objectMapper;
+
+    /** The changes that were appended but haven't been synced, in order. */
+    private final Deque<Pending> pending = new ArrayDeque<>();
+
+    /** The number of records in the log. */
+    private long records;
+
+    /** The sessions, by space ID. */
+    private final Map<String, Session> sessions = new HashMap<>();
+
+    /** Serializes syncs. Always acquired before the repository's monitor. */
+    private final Object syncLock = new Object();
+
+    /** The position in the log up to which everything has been synced. */
+    private long synced;
+
+    /**
+     * Constructor. Recovers the sessions from the log.
+     *
+     * @param file                The log file.
+     * @param objectMapper        The mapper for reading and writing changes.
+     * @param compactionThreshold The minimum number of superseded records
+     *                            that trigger a compaction.
+     * @param compactor           The executor that compacts the log in the
+     *                            background.
+     * @param compactionDelay     How often to check whether the log needs
+     *                            compacting.
+     * @param meterRegistry       The registry for the log metrics.
+     *
+     * @throws IOException on failure.
+     */
+    public FileSessionRepository(
+            final Path file,
+            final ObjectMapper objectMapper,
+            final int compactionThreshold,
+            final ScheduledExecutorService compactor,
+            final Duration compactionDelay,
+            final MeterRegistry meterRegistry)
+            throws IOException {
+        this.file = file;
+        this.objectMapper = objectMapper;
+        this.compactionThreshold = compactionThreshold;
+        this.compactions = meterRegistry.counter("sessions.log.compactions");
+        this.fsyncs = meterRegistry.counter("sessions.log.fsyncs");
+
+        final Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        // Left behind by a crash mid-compaction - the log is still intact
+        Files.deleteIfExists(toCompactPath());
+        recover();
+        final boolean created = !Files.exists(file);
+        this.channel =
+                FileChannel.open(
+                        file,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE);
+        if (created) {
+            syncDirectory();
+        }
+        this.channel.position(this.channel.size());
+        this.synced = this.channel.size();
+
+        compactor.scheduleWithFixedDelay(
+                () -> {
+                    try {
+                        compact();
+                    } catch (final Exception e) {
+                        LOG.warn("Failed to compact the session log", e);
+                    }
+                },
+                compactionDelay.toMillis(),
+                compactionDelay.toMillis(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Closes the log. Changes that were appended but not yet synced may be
+     * lost.
+     *
+     * @throws IOException on failure.
+     */
+    @Override
+    public void close()
+            throws IOException {
+        synchronized (this.syncLock) {
+            synchronized (this) {
+                this.channel.close();
+            }
+        }
+    }
+
+    /**
+     * Rewrites the log with one record per session, if enough of it has been
+     * superseded.
+     *
+     * @throws IOException on failure.
+     */
+    public void compact()
+            throws IOException {
+        synchronized (this.syncLock) {
+            synchronized (this) {
+                // Appended changes have to be in the index to survive the
+                // rewrite
+                if (!this.pending.isEmpty()) {
+                    this.channel.force(false);
+                    this.synced = this.channel.position();
+                    this.fsyncs.increment();
+                    applySynced(this.synced);
+                }
+
+                final long superseded = this.records - this.sessions.size();
+                if (superseded < Math.max(this.compactionThreshold, this.sessions.size())) {
+                    return;
+                }
+
+                final Path compactPath = toCompactPath();
+                long compactedRecords = 0;
+                try (final FileChannel compacted =
+                             FileChannel.open(
+                                     compactPath,
+                                     StandardOpenOption.CREATE,
+                                     StandardOpenOption.TRUNCATE_EXISTING,
+                                     StandardOpenOption.WRITE)) {
+                    for (final Session session : this.sessions.values()) {
+                        writeRecord(
+                                compacted,
+                                SessionChange
+                                        .builder()
+                                        .type(SessionChange.Type.MAKE)
+                                        .sequence(++compactedRecords)
+                                        .spaceId(session.getSpaceId())
+                                        .session(session)
+                                        .build());
+                    }
+                    compacted.force(true);
+                }
+                Files.move(
+                        compactPath,
+                        this.file,
+                        StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+                syncDirectory();
+
+                this.channel.close();
+                this.channel =
+                        FileChannel.open(
+                                this.file,
+                                StandardOpenOption.WRITE);
+                this.channel.position(this.channel.size());
+                this.synced = this.channel.size();
+                LOG.info("Compacted {} session log records into {}",
+                        this.records,
+                        compactedRecords);
+                this.records = compactedRecords;
+                this.compactions.increment();
+            }
+        }
+    }
+
+    @Override
+    public void delete(final String spaceId) {
+        try {
+            final long position;
+            synchronized (this) {
+                if (!this.sessions.containsKey(spaceId)) {
+                    return;
+                }
+                position =
+                        append(
+                                SessionChange
+                                        .builder()
+                                        .type(SessionChange.Type.DELETE)
+                                        .spaceId(spaceId)
+                                        .build());
+            }
+            sync(position);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public synchronized List<Session> findAll() {
+        final List<Session> copies = new ArrayList<>(this.sessions.size());
+        this.sessions
+                .values()
+                .forEach(session -> copies.add(session.toBuilder().build()));
+        return copies;
+    }
+
+    @Override
+    public synchronized Optional<Session> findBySpaceId(final String spaceId) {
+        return Optional
+                .ofNullable(this.sessions.get(spaceId))
+                .map(session -> session.toBuilder().build());
+    }
+
+    @Override
+    public Session make(
+            final String spaceId,
+            final int clientId,
+            final String apiKey,
+            final Instant dateRegistered)
+            throws IOException {
+        final Session session =
+                Session
+                        .builder()
+                        .apiKey(apiKey)
+                        .dateRegistered(dateRegistered)
+                        .clientId(clientId)
+                        .spaceId(spaceId)
+                        .build();
+        final long position;
+        synchronized (this) {
+            position =
+                    append(
+                            SessionChange
+                                    .builder()
+                                    .type(SessionChange.Type.MAKE)
+                                    .spaceId(spaceId)
+                                    .session(session)
+                                    .build());
+        }
+        sync(position);
+        return session;
+    }
+
+    @Override
+    public void save(
+            final String spaceId,
+            final Session session)
+            throws IOException {
+        final long position;
+        synchronized (this) {
+            if (!this.sessions.containsKey(spaceId)) {
+                return;
+            }
+            position =
+                    append(
+                            SessionChange
+                                    .builder()
+                                    .type(SessionChange.Type.SAVE)
+                                    .spaceId(spaceId)
+                                    .session(session)
+                                    .build());
+        }
+        sync(position);
+    }
+
+    @Override
+    public void saveCursors(final Collection<SessionCursor> cursors)
+            throws IOException {
+        final long position;
+        synchronized (this) {
+            position =
+                    append(
+                            SessionChange
+                                    .builder()
+                                    .type(SessionChange.Type.CURSORS)
+                                    .cursors(new ArrayList<>(cursors))
+                                    .build());
+        }
+        sync(position);
+    }
+
+    /**
+     * Appends the provided change to the log. The change isn't durable, or
+     * applied, until the log has been synced up to the returned position. A
+     * record that fails part way through is cut from the log, so the next
+     * append doesn't land after a torn record that recovery would stop at.
+     *
+     * @param change The change.
+     *
+     * @return The position in the log after the change.
+     *
+     * @throws IOException on failure.
+     */
+    private synchronized long append(final SessionChange change)
+            throws IOException {
+        final long start = this.channel.position();
+        change.setSequence(this.records + 1);
+        try {
+            writeRecord(
+                    this.channel,
+                    change);
+        } catch (final IOException e) {
+            try {
+                this.channel.truncate(start);
+                this.channel.position(start);
+            } catch (final IOException rollback) {
+                e.addSuppressed(rollback);
+            }
+            throw e;
+        }
+        this.records++;
+        final long position = this.channel.position();
+        this.pending.add(
+                new Pending(
+                        change,
+                        position));
+        return position;
+    }
+
+    /**
+     * Applies, in order, every pending change that ends at or before the
+     * provided position.
+     *
+     * @param position The position up to which the log has been synced.
+     */
+    private synchronized void applySynced(final long position) {
+        while (!this.pending.isEmpty() && this.pending.peek().position <= position) {
+            this.pending.poll().change.applyTo(this.sessions);
+        }
+    }
+
+    /**
+     * Replays the log, truncating anything after the last complete record.
+     *
+     * @throws IOException on failure.
+     */
+    private void recover()
+            throws IOException {
+        if (!Files.exists(this.file)) {
+            return;
+        }
+
+        final long start = System.nanoTime();
+        long valid = 0;
+        try (final FileChannel log =
+                     FileChannel.open(
+                             this.file,
+                             StandardOpenOption.READ,
+                             StandardOpenOption.WRITE)) {
+            final long size = log.size();
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            final CRC32 crc = new CRC32();
+            while (true) {
+                header.clear();
+                if (readFully(log, header) < HEADER_LENGTH) {
+                    break;
+                }
+                header.flip();
+                final int length = header.getInt();
+                final int checksum = header.getInt();
+                if (length <= 0 || length > size - log.position()) {
+                    break;
+                }
+
+                final ByteBuffer content = ByteBuffer.allocate(length);
+                readFully(log, content);
+                crc.reset();
+                crc.update(content.array());
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+
+                this.objectMapper
+                        .readValue(
+                                content.array(),
+                                SessionChange.class)
+                        .applyTo(this.sessions);
+                this.records++;
+                valid = log.position();
+            }
+
+            if (valid < size) {
+                LOG.warn("Truncating {} bytes of incomplete session log records",
+                        size - valid);
+                log.truncate(valid);
+                log.force(true);
+            }
+        }
+        LOG.info("Recovered {} sessions from {} records in {}ms",
+                this.sessions.size(),
+                this.records,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Reads from the provided channel until the buffer is full or the end of
+     * the channel is reached.
+     *
+     * @param channel The channel.
+     * @param buffer  The buffer.
+     *
+     * @return The number of bytes read.
+     *
+     * @throws IOException on failure.
+     */
+    private static int readFully(
+            final FileChannel channel,
+            final ByteBuffer buffer)
+            throws IOException {
+        int read = 0;
+        while (buffer.hasRemaining()) {
+            final int count = channel.read(buffer);
+            if (count < 0) {
+                break;
+            }
+            read += count;
+        }
+        return read;
+    }
+
+    /**
+     * Syncs the log up to at least the provided position, then applies the
+     * changes that were synced. A single sync covers every record that was
+     * appended before it began.
+     *
+     * @param position The position.
+     *
+     * @throws IOException on failure.
+     */
+    private void sync(final long position)
+            throws IOException {
+        synchronized (this.syncLock) {
+            if (this.synced >= position) {
+                return;
+            }
+            final FileChannel toSync;
+            final long end;
+            synchronized (this) {
+                toSync = this.channel;
+                end = toSync.position();
+            }
+            toSync.force(false);
+            this.synced = end;
+            this.fsyncs.increment();
+            applySynced(end);
+        }
+    }
+
+    /**
+     * Syncs the directory containing the log, so that creating or replacing
+     * the log survives a crash.
+     *
+     * @throws IOException on failure.
+     */
+    private void syncDirectory()
+            throws IOException {
+        try (final FileChannel directory =
+                     FileChannel.open(
+                             this.file.toAbsolutePath().getParent(),
+                             StandardOpenOption.READ)) {
+            directory.force(true);
+        }
+    }
+
+    /**
+     * Returns the path that a compacted log is written to before it replaces
+     * the log.
+     *
+     * @return The path.
+     */
+    private Path toCompactPath() {
+        return this.file.resolveSibling(this.file.getFileName() + COMPACT_SUFFIX);
+    }
+
+    /**
+     * Writes the provided change to the provided channel as a record.
+     *
+     * @param channel The channel.
+     * @param change  The change.
+     *
+     * @throws IOException on failure.
+     */
+    private void writeRecord(
+            final FileChannel channel,
+            final SessionChange change)
+            throws IOException {
+        final byte[] content = this.objectMapper.writeValueAsBytes(change);
+        final CRC32 crc = new CRC32();
+        crc.update(content);
+
+        final ByteBuffer record = ByteBuffer.allocate(HEADER_LENGTH + content.length);
+        record.putInt(content.length);
+        record.putInt((int) crc.getValue());
+        record.put(content);
+        record.flip();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+    }
+
+    /** A change that was appended but hasn't been synced. */
+    private static class Pending {
+
+        /** The change. */
+        private final SessionChange change;
+
+        /** The position in the log after the change. */
+        private final long position;
+
+        /**
+         * Constructor.
+         *
+         * @param change   The change.
+         * @param position The position in the log after the change.
+         */
+        private Pending(
+                final SessionChange change,
+                final long position) {
+            this.change = change;
+            this.position = position;
+        }
+    }
+}
@@ -1,61 +1,168 @@
 package mn.foreman.googelchatbot.session;
 
+import mn.foreman.googelchatbot.sharding.ShardLeaseManager;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.api.gax.paging.Page;
 import com.google.cloud.storage.Blob;
 import com.google.cloud.storage.Bucket;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.apache.http.entity.ContentType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 
-/** The Google storage repository for the bot. */
+/**
+ * The Google storage repository for the bot.
+ *
+ * <p>Writes are conditional on the generation of the blob that was last read
+ * or written, so an update is a single request that fails rather than
+ * overwriting a session that changed in the meantime.</p>
+ *
+ * <p>Cursors are kept out of the session blobs, so session blobs are only
+ * written when a space registers. They're split into one table per shard,
+ * using the same shards that replicas lease, so a batch only rewrites the
+ * tables of the spaces in it, and replicas that own different shards never
+ * write the same table. Each table is written with one conditional request.
+ * A space's cursor is dropped from its table when the space forgets, if the
+ * table can be written at the time.</p>
+ *
+ * <p>Sessions are read a page of the bucket listing at a time. Each page's
+ * blobs are downloaded and parsed concurrently while the next page is listed,
+ * and {@link #forEachPage(int, Consumer)} hands each page over as soon as it's
+ * ready.</p>
+ */
 public class GoogleStorageRepository
         implements SessionRepository {
 
+    /** The prefix of the cursor tables. */
+    private static final String CURSORS_PREFIX = "cursors/";
+
+    /** The type of the cursor table. */
+    private static final TypeReference<Map<String, SessionCursor>> CURSORS_TYPE =
+            new TypeReference<Map<String, SessionCursor>>() {
+            };
+
+    /** The logger for this class. */
+    private static final Logger LOG =
+            LoggerFactory.getLogger(GoogleStorageRepository.class);
+
+    /** The page size used when listing every session. */
+    private static final int LIST_PAGE_SIZE = 1000;
+
+    /** The number of times to retry a cursor write that conflicted. */
+    private static final int MAX_CURSOR_ATTEMPTS = 5;
+
+    /** The status code for a missing blob. */
+    private static final int NOT_FOUND = 404;
+
+    /** The status code for a failed precondition. */
+    private static final int PRECONDITION_FAILED = 412;
+
     /** The Google Cloud Bucket */
     private final Bucket bucket;
 
+    /** The number of cursors that couldn't be dropped when a space forgot. */
+    private final Counter cursorPruneFailures;
+
+    /** The cursor tables, by shard. */
+    private final CursorTable[] cursorTables;
+
+    /** The generation of each session's blob, as last seen, by blob name. */
+    private final Map<String, Long> generations = new ConcurrentHashMap<>();
+
+    /** The executor that downloads blobs in bulk. */
+    private final ExecutorService loadExecutor;
+
+    /** The number of blobs that couldn't be read as a session. */
+    private final Counter loadFailures;
+
     /** The object mapper for the Bot */
     private final ObjectMapper objectMapper;
 
     /**
      * The constructor for the Google storage repository.
      *
-     * @param objectMapper The object mapper for the bot.
-     * @param bucket       The bucket where the session info will be stored.
+     * @param objectMapper  The object mapper for the bot.
+     * @param bucket        The bucket where the session info will be stored.
+     * @param shardCount    The number of shards, and cursor tables, that
+     *                      spaces are split into.
+     * @param loadExecutor  The executor that downloads blobs in bulk. Its
+     *                      thread count bounds the concurrent downloads.
+     * @param meterRegistry The registry for the load metrics.
      */
     public GoogleStorageRepository(
             final ObjectMapper objectMapper,
-            final Bucket bucket) {
+            final Bucket bucket,
+            final int shardCount,
+            final ExecutorService loadExecutor,
+            final MeterRegistry meterRegistry) {
         this.objectMapper = objectMapper;
         this.bucket = bucket;
+        this.cursorTables = new CursorTable[shardCount];
+        for (int shard = 0; shard < shardCount; shard++) {
+            this.cursorTables[shard] = new CursorTable(CURSORS_PREFIX + shard + ".json");
+        }
+        this.loadExecutor = loadExecutor;
+        this.loadFailures = meterRegistry.counter("sessions.load.failures");
+        this.cursorPruneFailures = meterRegistry.counter("sessions.cursors.prune.failures");
     }
 
     @Override
     public void delete(String spaceId) {
         String blobName = formatBlobName(spaceId);
-        if (this.bucket.get(blobName) != null) {
-            this.bucket
-                    .get(blobName)
-                    .delete();
+        // Forgetting always wins, so this isn't conditional
+        this.bucket
+                .getStorage()
+                .delete(
+                        this.bucket.getName(),
+                        blobName);
+        this.generations.remove(blobName);
+
+        // The cursor would never apply again - drop it so the table only
+        // holds spaces that are registered. The space is gone either way, and
+        // a leftover cursor never applies to a later registration, so failing
+        // to drop it doesn't fail the delete
+        final CursorTable table = tableOf(spaceId);
+        try {
+            synchronized (table) {
+                writeCursors(
+                        table,
+                        () -> table.cursors.remove(spaceId) != null);
+            }
+        } catch (final IOException | RuntimeException e) {
+            LOG.warn("Failed to drop the cursor for {}", spaceId, e);
+            this.cursorPruneFailures.increment();
         }
     }
 
     @Override
-    public List<Session> findAll() {
-        List<Session> sessions = new ArrayList<>();
-
-        for (Blob blob : this.bucket.list().iterateAll()) {
-            Optional<Session> oneSessionOptional = getSessionFromBlob(blob);
-
-            if (oneSessionOptional.isPresent()) {
-                Session oneSession = oneSessionOptional.get();
-                sessions.add(oneSession);
-            }
-        }
+    public List<Session> findAll()
+            throws IOException {
+        final List<Session> sessions = new ArrayList<>();
+        forEachPage(
+                LIST_PAGE_SIZE,
+                sessions::addAll);
         return sessions;
     }
 
@@ -67,7 +174,12 @@ public class GoogleStorageRepository
         String blobName = formatBlobName(spaceId);
         Blob current = this.bucket.get(blobName);
 
-        Optional<Session> sessionOpt = getSessionFromBlob(current);
+        final Optional<Session> sessionOpt;
+        try {
+            sessionOpt = getSessionFromBlob(current);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
         if (sessionOpt.isPresent()) {
             session = sessionOpt.get();
         }
@@ -75,7 +187,60 @@ public class GoogleStorageRepository
     }
 
     @Override
-    public void make(
+    public void forEachPage(
+            final int pageSize,
+            final Consumer<List<Session>> consumer)
+            throws IOException {
+        // Re-read each table when it's next needed, in case other replicas
+        // wrote it
+        for (final CursorTable table : this.cursorTables) {
+            synchronized (table) {
+                table.loaded = false;
+            }
+        }
+
+        // Sessions live at the top of the bucket - anything under a prefix
+        // belongs to something else
+        Page<Blob> page =
+                this.bucket.list(
+                        Storage.BlobListOption.currentDirectory(),
+                        Storage.BlobListOption.pageSize(pageSize));
+        int blobs = 0;
+        int loaded = 0;
+        while (page != null) {
+            final List<Future<Optional<Session>>> downloads = new ArrayList<>();
+            for (final Blob blob : page.getValues()) {
+                if (!blob.isDirectory()) {
+                    downloads.add(
+                            this.loadExecutor.submit(
+                                    () -> getSessionFromBlob(blob)));
+                }
+            }
+
+            // List the next page while this one is downloading
+            final Page<Blob> next =
+                    page.hasNextPage()
+                            ? page.getNextPage()
+                            : null;
+
+            final List<Session> sessions = awaitAll(downloads);
+            blobs += downloads.size();
+            loaded += sessions.size();
+            if (!sessions.isEmpty()) {
+                consumer.accept(sessions);
+            }
+            page = next;
+        }
+
+        if (loaded < blobs) {
+            LOG.warn("Loaded {} sessions - {} blobs couldn't be read",
+                    loaded,
+                    blobs - loaded);
+        }
+    }
+
+    @Override
+    public Session make(
             final String spaceId,
             final int clientId,
             final String apiKey,
@@ -94,11 +259,20 @@ public class GoogleStorageRepository
                         .clientId(clientId)
                         .spaceId(spaceId)
                         .build();
-        // This creates and stores the blob.
-        this.bucket.create(
-                blobName,
-                this.objectMapper.writeValueAsBytes(session),
-                ContentType.APPLICATION_JSON.getMimeType());
+        // This creates and stores the blob, replacing the session that was
+        // last seen for the space, if there was one.
+        final Long generation = this.generations.get(blobName);
+        try {
+            write(
+                    blobName,
+                    session,
+                    generation != null
+                            ? Bucket.BlobTargetOption.generationMatch(generation)
+                            : Bucket.BlobTargetOption.doesNotExist());
+        } catch (final StorageException e) {
+            throw toConflict(spaceId, e);
+        }
+        return session;
     }
 
     @Override
@@ -107,12 +281,123 @@ public class GoogleStorageRepository
             Session session)
             throws IOException {
         String blobName = formatBlobName(spaceId);
-        if (this.bucket.get(blobName) != null) {
-            delete(spaceId);
-            this.bucket.create(
+        Long generation = this.generations.get(blobName);
+        if (generation == null) {
+            // Never seen - find out whether it exists and which generation
+            // to replace
+            final Blob current = this.bucket.get(blobName);
+            if (current == null) {
+                return;
+            }
+            generation = current.getGeneration();
+        }
+        try {
+            write(
                     blobName,
-                    this.objectMapper.writeValueAsBytes(session));
+                    session,
+                    Bucket.BlobTargetOption.generationMatch(generation));
+        } catch (final StorageException e) {
+            if (e.getCode() == PRECONDITION_FAILED &&
+                    this.bucket.get(blobName) == null) {
+                // Deleted in the meantime - sessions are only saved if
+                // they still exist
+                this.generations.remove(blobName);
+                return;
+            }
+            throw toConflict(spaceId, e);
+        }
+    }
+
+    @Override
+    public void saveCursors(final Collection<SessionCursor> cursors)
+            throws IOException {
+        final Map<CursorTable, List<SessionCursor>> byTable = new HashMap<>();
+        for (final SessionCursor cursor : cursors) {
+            byTable
+                    .computeIfAbsent(
+                            tableOf(cursor.getSpaceId()),
+                            table -> new ArrayList<>())
+                    .add(cursor);
+        }
+        // A table that can't be written doesn't hold up the others
+        IOException failure = null;
+        for (final Map.Entry<CursorTable, List<SessionCursor>> entry : byTable.entrySet()) {
+            final CursorTable table = entry.getKey();
+            try {
+                synchronized (table) {
+                    writeCursors(
+                            table,
+                            () -> {
+                                entry.getValue().forEach(cursor ->
+                                        mergeCursor(
+                                                table,
+                                                cursor));
+                                return true;
+                            });
+                }
+            } catch (final IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Advances the provided session to its cursor from the cursor table, if
+     * the table has one for its registration.
+     *
+     * @param session The session.
+     */
+    private void applyCursor(final Session session) {
+        final CursorTable table = tableOf(session.getSpaceId());
+        synchronized (table) {
+            if (!table.loaded) {
+                try {
+                    readCursors(table);
+                } catch (final IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            final SessionCursor cursor = table.cursors.get(session.getSpaceId());
+            if (cursor != null &&
+                    cursor.appliesTo(session) &&
+                    cursor.getLastNotificationId() > session.getLastNotificationId()) {
+                session.setLastNotificationId(cursor.getLastNotificationId());
+            }
+        }
+    }
+
+    /**
+     * Waits for the provided downloads to finish.
+     *
+     * @param downloads The downloads.
+     *
+     * @return The sessions that were downloaded.
+     *
+     * @throws IOException on failure.
+     */
+    private static List<Session> awaitAll(final List<Future<Optional<Session>>> downloads)
+            throws IOException {
+        final List<Session> sessions = new ArrayList<>(downloads.size());
+        try {
+            for (final Future<Optional<Session>> download : downloads) {
+                download.get().ifPresent(sessions::add);
+            }
+        } catch (final InterruptedException e) {
+            downloads.forEach(download -> download.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading sessions");
+        } catch (final ExecutionException e) {
+            downloads.forEach(download -> download.cancel(true));
+            throw new IOException("Failed to load sessions", e.getCause());
         }
+        return sessions;
     }
 
     /**
@@ -136,20 +421,242 @@ public class GoogleStorageRepository
     }
 
     /**
-     * This method is for getting the session back from blob content.
+     * This method is for getting the session back from blob content. Blobs
+     * that can't be read as a session are reported and skipped, but failing
+     * to download a blob fails the read.
      *
      * @param blob a blob containing session data.
      *
      * @return a {@link Session}.
+     *
+     * @throws IOException on failure.
      */
-    private Optional<Session> getSessionFromBlob(Blob blob) {
+    private Optional<Session> getSessionFromBlob(Blob blob)
+            throws IOException {
+        if (blob == null) {
+            return Optional.empty();
+        }
+        final byte[] content;
+        try {
+            content = blob.getContent();
+        } catch (final StorageException e) {
+            if (e.getCode() == NOT_FOUND) {
+                // Rewritten or deleted since it was listed
+                return getSessionFromBlob(this.bucket.get(blob.getName()));
+            }
+            throw e;
+        }
+        final Optional<Session> session;
         try {
-            return Optional.ofNullable(this.objectMapper.readValue(
-                    blob.getContent(),
-                    Session.class));
-        } catch (Exception e) {
+            session =
+                    Optional.ofNullable(this.objectMapper.readValue(
+                            content,
+                            Session.class));
+        } catch (final JsonProcessingException e) {
+            LOG.error("Failed to read a session from {}", blob.getName(), e);
+            this.loadFailures.increment();
             return Optional.empty();
         }
+        this.generations.put(
+                blob.getName(),
+                blob.getGeneration());
+        session.ifPresent(this::applyCursor);
+        return session;
+    }
+
+    /**
+     * Merges the provided cursor into the cursor table. A cursor for a later
+     * registration replaces the one in the table; otherwise, the further
+     * along of the two wins.
+     *
+     * @param table  The cursor table.
+     * @param cursor The cursor.
+     */
+    private static void mergeCursor(
+            final CursorTable table,
+            final SessionCursor cursor) {
+        final SessionCursor existing = table.cursors.get(cursor.getSpaceId());
+        if (existing == null ||
+                existing.getDateRegistered() == null ||
+                (cursor.getDateRegistered() != null &&
+                        cursor.getDateRegistered().isAfter(existing.getDateRegistered())) ||
+                (cursor.getDateRegistered() != null &&
+                        cursor.getDateRegistered().equals(existing.getDateRegistered()) &&
+                        cursor.getLastNotificationId() > existing.getLastNotificationId())) {
+            table.cursors.put(
+                    cursor.getSpaceId(),
+                    cursor);
+        }
+    }
+
+    /**
+     * Replaces the provided cursor table with the one in the bucket. Must be
+     * called while holding the table's lock.
+     *
+     * @param table The cursor table.
+     *
+     * @throws IOException on failure.
+     */
+    private void readCursors(final CursorTable table)
+            throws IOException {
+        try {
+            final Blob blob = this.bucket.get(table.name);
+            table.cursors.clear();
+            if (blob != null) {
+                table.cursors.putAll(
+                        this.objectMapper.readValue(
+                                blob.getContent(),
+                                CURSORS_TYPE));
+                table.generation = blob.getGeneration();
+            } else {
+                table.generation = null;
+            }
+            table.loaded = true;
+        } catch (final StorageException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Returns the cursor table for the provided space.
+     *
+     * @param spaceId The space ID.
+     *
+     * @return The cursor table.
+     */
+    private CursorTable tableOf(final String spaceId) {
+        return this.cursorTables[
+                ShardLeaseManager.shardOf(
+                        spaceId,
+                        this.cursorTables.length)];
+    }
+
+    /**
+     * Converts a failed conditional write into a
+     * {@link SessionConflictException}, forgetting the generation that no
+     * longer matches.
+     *
+     * @param spaceId The space whose session was being written.
+     * @param e       The failure.
+     *
+     * @return The exception to throw.
+     */
+    private IOException toConflict(
+            final String spaceId,
+            final StorageException e) {
+        if (e.getCode() == PRECONDITION_FAILED) {
+            this.generations.remove(formatBlobName(spaceId));
+            return new SessionConflictException(spaceId, e);
+        }
+        return new IOException(e);
+    }
+
+    /**
+     * Writes the provided session to its blob in a single request, recording
+     * the generation that was written.
+     *
+     * @param blobName     The blob name.
+     * @param session      The session.
+     * @param precondition The condition the current blob must meet.
+     *
+     * @throws IOException on failure.
+     */
+    private void write(
+            final String blobName,
+            final Session session,
+            final Bucket.BlobTargetOption precondition)
+            throws IOException {
+        final Blob blob =
+                this.bucket.create(
+                        blobName,
+                        this.objectMapper.writeValueAsBytes(session),
+                        ContentType.APPLICATION_JSON.getMimeType(),
+                        precondition);
+        this.generations.put(
+                blobName,
+                blob.getGeneration());
     }
 
+    /**
+     * Applies the provided change to the latest version of the provided
+     * cursor table and writes it with a single conditional request,
+     * re-reading the table and applying the change again whenever it was
+     * written elsewhere first. Must be called while holding the table's lock.
+     *
+     * @param table  The cursor table.
+     * @param change Changes the table, returning whether anything changed.
+     *
+     * @throws IOException on failure.
+     */
+    private void writeCursors(
+            final CursorTable table,
+            final CursorChange change)
+            throws IOException {
+        if (!table.loaded) {
+            readCursors(table);
+        }
+        for (int attempt = 1; ; attempt++) {
+            if (!change.apply()) {
+                return;
+            }
+            try {
+                final Blob blob =
+                        this.bucket.create(
+                                table.name,
+                                this.objectMapper.writeValueAsBytes(table.cursors),
+                                ContentType.APPLICATION_JSON.getMimeType(),
+                                table.generation != null
+                                        ? Bucket.BlobTargetOption.generationMatch(table.generation)
+                                        : Bucket.BlobTargetOption.doesNotExist());
+                table.generation = blob.getGeneration();
+                return;
+            } catch (final StorageException e) {
+                if (e.getCode() != PRECONDITION_FAILED) {
+                    throw new IOException(e);
+                }
+                if (attempt >= MAX_CURSOR_ATTEMPTS) {
+                    throw new SessionConflictException(table.name, e);
+                }
+                // Written elsewhere - apply the change to the latest table
+                readCursors(table);
+            }
+        }
+    }
+
+    /** A change to the cursor table. */
+    @FunctionalInterface
+    private interface CursorChange {
+
+        /**
+         * Applies the change.
+         *
+         * @return Whether the table changed.
+         */
+        boolean apply();
+    }
+
+    /** The cursors of the spaces in one shard. */
+    private static class CursorTable {
+
+        /** The cursors, as last read or written, by space ID. */
+        private final Map<String, SessionCursor> cursors = new HashMap<>();
+
+        /** The generation of the table, or null if it doesn't exist. */
+        private Long generation;
+
+        /** Whether the table has been read. */
+        private boolean loaded;
+
+        /** The name of the table's blob. */
+        private final String name;
+
+        /**
+         * Constructor.
+         *
+         * @param name The name of the table's blob.
+         */
+        private CursorTable(final String name) {
+            this.name = name;
+        }
+    }
 }
@@ -6,7 +6,7 @@ import java.time.Instant;
 
 /** A {@link Session} represents a session for each registered chat Id */
 @Data
-@Builder
+@Builder(toBuilder = true)
 @Setter
 @NoArgsConstructor
 @AllArgsConstructor
@@ -0,0 +1,80 @@
+package mn.foreman.googelchatbot.session;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+import java.util.Map;
+
+/** A record in the session change log. */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class SessionChange {
+
+    /** The cursors, for {@link Type#CURSORS}. */
+    private List<SessionCursor> cursors;
+
+    /** The session, for {@link Type#MAKE} and {@link Type#SAVE}. */
+    private Session session;
+
+    /** The position of the change in the log. */
+    private long sequence;
+
+    /** The space that changed, unless the type is {@link Type#CURSORS}. */
+    private String spaceId;
+
+    /** What changed. */
+    private Type type;
+
+    /**
+     * Applies this change to the provided sessions. The change's session is
+     * copied, since whoever made the change keeps their reference to it.
+     *
+     * @param sessions The sessions, by space ID.
+     */
+    public void applyTo(final Map<String, Session> sessions) {
+        switch (this.type) {
+            case CURSORS:
+                for (final SessionCursor cursor : this.cursors) {
+                    final Session session = sessions.get(cursor.getSpaceId());
+                    if (session != null && cursor.appliesTo(session)) {
+                        session.setLastNotificationId(cursor.getLastNotificationId());
+                    }
+                }
+                break;
+            case DELETE:
+                sessions.remove(this.spaceId);
+                break;
+            case MAKE:
+                sessions.put(
+                        this.spaceId,
+                        this.session.toBuilder().build());
+                break;
+            case SAVE:
+                sessions.computeIfPresent(
+                        this.spaceId,
+                        (spaceId, current) -> this.session.toBuilder().build());
+                break;
+        }
+    }
+
+    /** The kinds of changes. */
+    public enum Type {
+
+        /** The cursors of existing sessions were advanced. */
+        CURSORS,
+
+        /** The session was deleted. */
+        DELETE,
+
+        /** The session was made, replacing any existing one. */
+        MAKE,
+
+        /** An existing session was updated. */
+        SAVE
+    }
+}
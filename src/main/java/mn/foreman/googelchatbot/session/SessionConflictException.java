@@ -0,0 +1,24 @@
+package mn.foreman.googelchatbot.session;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a {@link Session} couldn't be written because it was changed
+ * since it was last read. The write can be retried after the session has been
+ * read again.
+ */
+public class SessionConflictException
+        extends IOException {
+
+    /**
+     * Constructor.
+     *
+     * @param spaceId The space whose session changed.
+     * @param cause   The cause.
+     */
+    public SessionConflictException(
+            final String spaceId,
+            final Throwable cause) {
+        super("Session for " + spaceId + " was changed concurrently", cause);
+    }
+}
@@ -0,0 +1,45 @@
+package mn.foreman.googelchatbot.session;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.Instant;
+import java.util.Objects;
+
+/**
+ * How far a {@link Session} has been notified. Cursors change with every
+ * alert, so they're stored apart from the rest of the session, which only
+ * changes when a space registers.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class SessionCursor {
+
+    /**
+     * When the session registered. A cursor only applies to the registration
+     * it was recorded for.
+     */
+    private Instant dateRegistered;
+
+    /** The last notification id. */
+    private int lastNotificationId;
+
+    /** The id of the space that the user is using. */
+    private String spaceId;
+
+    /**
+     * Checks whether this cursor was recorded for the provided session.
+     *
+     * @param session The session.
+     *
+     * @return Whether this cursor applies to the session.
+     */
+    public boolean appliesTo(final Session session) {
+        return this.spaceId.equals(session.getSpaceId()) &&
+                Objects.equals(this.dateRegistered, session.getDateRegistered());
+    }
+}
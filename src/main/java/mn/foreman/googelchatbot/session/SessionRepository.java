@@ -2,8 +2,10 @@ package mn.foreman.googelchatbot.session;
 
 import java.io.IOException;
 import java.time.Instant;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Consumer;
 
 /** The storage repository for the {@link Session}. */
 public interface SessionRepository {
@@ -33,6 +35,30 @@ public interface SessionRepository {
      */
     Optional<Session> findBySpaceId(String spaceId);
 
+    /**
+     * Hands every session to the provided consumer, a page at a time, so
+     * sessions can be processed before they've all been read.
+     *
+     * <p>By default, every session is read and then split into pages.</p>
+     *
+     * @param pageSize The max number of sessions in a page.
+     * @param consumer The consumer of each page.
+     *
+     * @throws IOException on failure.
+     */
+    default void forEachPage(
+            final int pageSize,
+            final Consumer<List<Session>> consumer)
+            throws IOException {
+        final List<Session> sessions = findAll();
+        for (int start = 0; start < sessions.size(); start += pageSize) {
+            consumer.accept(
+                    sessions.subList(
+                            start,
+                            Math.min(sessions.size(), start + pageSize)));
+        }
+    }
+
     /**
      * Makes a new blob and the corresponding session to be stored there then
      * stores the blob in the bucket
@@ -42,26 +68,65 @@ public interface SessionRepository {
      * @param apiKey         the apiKey obtained from foreman.
      * @param dateRegistered the date the user registered.
      *
-     * @throws IOException throws an IO exception
+     * @return the new {@link Session}.
+     *
+     * @throws SessionConflictException if the space's session was changed
+     *                                  since it was last read.
+     * @throws IOException              throws an IO exception
      */
-    void make(
+    Session make(
             String spaceId,
             int clientId,
             String apiKey,
             Instant dateRegistered) throws IOException;
 
     /**
-     * Saves an updated session with an updated last notification id. the blob
-     * has to be deleted then recreated because the update method from Google
-     * doesn't work correctly
+     * Discards anything held in memory so that later reads reflect what's
+     * in storage, including changes made by other replicas. Does nothing by
+     * default.
+     *
+     * @throws IOException on failure.
+     */
+    default void reload() throws IOException {
+    }
+
+    /**
+     * Saves an updated session with an updated last notification id. Nothing
+     * is saved if the session no longer exists.
      *
      * @param spaceId the space where the user bot is added.
      * @param session the {@link Session}.
      *
-     * @throws IOException throws an IO exception.
+     * @throws SessionConflictException if the session was changed since it was
+     *                                  last read.
+     * @throws IOException              throws an IO exception.
      */
     void save(
             String spaceId,
             Session session) throws IOException;
 
+    /**
+     * Saves the provided cursors, without rewriting the rest of each
+     * session. Cursors for sessions that no longer exist, or that have
+     * re-registered since the cursor was recorded, are ignored.
+     *
+     * <p>By default, each session is saved in full.</p>
+     *
+     * @param cursors The cursors.
+     *
+     * @throws IOException on failure.
+     */
+    default void saveCursors(final Collection<SessionCursor> cursors)
+            throws IOException {
+        for (final SessionCursor cursor : cursors) {
+            final Optional<Session> sessionOpt = findBySpaceId(cursor.getSpaceId());
+            if (sessionOpt.isPresent() && cursor.appliesTo(sessionOpt.get())) {
+                final Session session = sessionOpt.get();
+                session.setLastNotificationId(cursor.getLastNotificationId());
+                save(
+                        cursor.getSpaceId(),
+                        session);
+            }
+        }
+    }
 }
@@ -0,0 +1,22 @@
+package mn.foreman.googelchatbot.session;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/** Every session, as of a position in the session change log. */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class SessionSnapshot {
+
+    /** The last change that's reflected in the snapshot. */
+    private long sequence;
+
+    /** The sessions. */
+    private List<Session> sessions;
+}
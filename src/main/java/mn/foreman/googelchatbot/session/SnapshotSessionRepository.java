@@ -0,0 +1,400 @@
+package mn.foreman.googelchatbot.session;
+
+import mn.foreman.googelchatbot.storage.BlobStore;
+import mn.foreman.googelchatbot.storage.StoredBlob;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link SessionRepository} that stores every session in a single snapshot
+ * blob, plus a log of the changes made since the snapshot was taken. Each
+ * change is its own blob, named by its position in the log, and is only
+ * created if that position is free, so concurrent writers can't overwrite
+ * each other's changes.
+ *
+ * <p>Loading reads the snapshot and replays the changes after it, and the
+ * log is periodically folded back into the snapshot, so a full load takes a
+ * handful of reads regardless of how many sessions there are. Compaction
+ * always leaves the newest change in place so that other readers can tell
+ * when they've fallen behind a newer snapshot.</p>
+ */
+public class SnapshotSessionRepository
+        implements SessionRepository {
+
+    /** The prefix for everything stored by this repository. */
+    public static final String PREFIX = "sessions/";
+
+    /** The prefix for the change log. */
+    private static final String LOG_PREFIX = PREFIX + "log/";
+
+    /** The logger for this class. */
+    private static final Logger LOG =
+            LoggerFactory.getLogger(SnapshotSessionRepository.class);
+
+    /** The name of the snapshot. */
+    private static final String SNAPSHOT = PREFIX + "snapshot.json";
+
+    /** The store for the snapshot and the change log. */
+    private final BlobStore blobStore;
+
+    /** The number of changes after which the log is compacted. */
+    private final int compactionThreshold;
+
+    /** The number of times the log was compacted. */
+    private final Counter compactions;
+
+    /** Whether the snapshot has been read. */
+    private boolean loaded;
+
+    /** The mapper for reading and writing the snapshot and changes. */
+    private final ObjectMapper objectMapper;
+
+    /** The last change that was applied. */
+    private long sequence;
+
+    /** The sessions, by space ID. */
+    private final Map<String, Session> sessions = new HashMap<>();
+
+    /** The last change that's reflected in the stored snapshot. */
+    private long snapshotSequence;
+
+    /**
+     * Constructor.
+     *
+     * @param objectMapper        The mapper for reading and writing the
+     *                            snapshot and changes.
+     * @param blobStore           The store for the snapshot and change log.
+     * @param compactionThreshold The number of changes after which the log
+     *                            is compacted.
+     * @param compactor           The executor that compacts the log in the
+     *                            background.
+     * @param compactionDelay     How often to check whether the log needs
+     *                            compacting.
+     * @param meterRegistry       The registry for the compaction metrics.
+     */
+    public SnapshotSessionRepository(
+            final ObjectMapper objectMapper,
+            final BlobStore blobStore,
+            final int compactionThreshold,
+            final ScheduledExecutorService compactor,
+            final Duration compactionDelay,
+            final MeterRegistry meterRegistry) {
+        this.objectMapper = objectMapper;
+        this.blobStore = blobStore;
+        this.compactionThreshold = compactionThreshold;
+        this.compactions = meterRegistry.counter("sessions.log.compactions");
+        compactor.scheduleWithFixedDelay(
+                () -> {
+                    try {
+                        compact();
+                    } catch (final Exception e) {
+                        LOG.warn("Failed to compact the session log", e);
+                    }
+                },
+                compactionDelay.toMillis(),
+                compactionDelay.toMillis(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Folds the change log into a new snapshot once enough changes have
+     * accumulated, then deletes the changes that the snapshot covers. The
+     * snapshot is only written if nobody else has written one since it was
+     * read, so a writer that loses the race leaves the log alone and picks
+     * up the winner's snapshot instead.
+     *
+     * @throws IOException on failure.
+     */
+    public synchronized void compact()
+            throws IOException {
+        // Read before catching up, so the new snapshot can't be older than
+        // the one it replaces
+        final Optional<StoredBlob> current = this.blobStore.get(SNAPSHOT);
+        catchUp();
+        if (this.sequence - this.snapshotSequence < this.compactionThreshold) {
+            return;
+        }
+
+        final byte[] snapshot =
+                this.objectMapper.writeValueAsBytes(
+                        SessionSnapshot
+                                .builder()
+                                .sequence(this.sequence)
+                                .sessions(new ArrayList<>(this.sessions.values()))
+                                .build());
+        final boolean written =
+                current.isPresent()
+                        ? this.blobStore.replace(
+                        SNAPSHOT,
+                        snapshot,
+                        current.get().getVersion())
+                        : this.blobStore.create(
+                                SNAPSHOT,
+                                snapshot);
+        if (!written) {
+            LOG.info("The session log was compacted elsewhere first");
+            readSnapshot();
+            catchUp();
+            return;
+        }
+        this.snapshotSequence = this.sequence;
+
+        for (final String name : this.blobStore.list(LOG_PREFIX)) {
+            if (toSequence(name) < this.snapshotSequence) {
+                this.blobStore.delete(name);
+            }
+        }
+        this.compactions.increment();
+        LOG.info("Compacted {} sessions as of change {}",
+                this.sessions.size(),
+                this.snapshotSequence);
+    }
+
+    @Override
+    public synchronized void delete(final String spaceId) {
+        try {
+            append(
+                    SessionChange
+                            .builder()
+                            .type(SessionChange.Type.DELETE)
+                            .spaceId(spaceId)
+                            .build());
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public synchronized List<Session> findAll()
+            throws IOException {
+        catchUp();
+        final List<Session> copies = new ArrayList<>(this.sessions.size());
+        this.sessions
+                .values()
+                .forEach(session -> copies.add(session.toBuilder().build()));
+        return copies;
+    }
+
+    @Override
+    public synchronized Optional<Session> findBySpaceId(final String spaceId) {
+        try {
+            if (!this.loaded || !this.sessions.containsKey(spaceId)) {
+                // Might have been made elsewhere
+                catchUp();
+            }
+            return Optional
+                    .ofNullable(this.sessions.get(spaceId))
+                    .map(session -> session.toBuilder().build());
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public synchronized Session make(
+            final String spaceId,
+            final int clientId,
+            final String apiKey,
+            final Instant dateRegistered)
+            throws IOException {
+        final Session session =
+                Session
+                        .builder()
+                        .apiKey(apiKey)
+                        .dateRegistered(dateRegistered)
+                        .clientId(clientId)
+                        .spaceId(spaceId)
+                        .build();
+        append(
+                SessionChange
+                        .builder()
+                        .type(SessionChange.Type.MAKE)
+                        .spaceId(spaceId)
+                        .session(session)
+                        .build());
+        return session;
+    }
+
+    @Override
+    public synchronized void save(
+            final String spaceId,
+            final Session session)
+            throws IOException {
+        if (!this.sessions.containsKey(spaceId)) {
+            catchUp();
+            if (!this.sessions.containsKey(spaceId)) {
+                return;
+            }
+        }
+        append(
+                SessionChange
+                        .builder()
+                        .type(SessionChange.Type.SAVE)
+                        .spaceId(spaceId)
+                        .session(session)
+                        .build());
+    }
+
+    @Override
+    public synchronized void saveCursors(final Collection<SessionCursor> cursors)
+            throws IOException {
+        append(
+                SessionChange
+                        .builder()
+                        .type(SessionChange.Type.CURSORS)
+                        .cursors(new ArrayList<>(cursors))
+                        .build());
+    }
+
+    /**
+     * Appends the provided change to the log and applies it. If another
+     * writer took the next position first, its changes are applied and the
+     * append moves to the position after them.
+     *
+     * @param change The change.
+     *
+     * @throws IOException on failure.
+     */
+    private void append(final SessionChange change)
+            throws IOException {
+        catchUp();
+        while (true) {
+            change.setSequence(this.sequence + 1);
+            if (this.blobStore.create(
+                    toName(change.getSequence()),
+                    this.objectMapper.writeValueAsBytes(change))) {
+                apply(change);
+                return;
+            }
+            catchUp();
+        }
+    }
+
+
+    /**
+     * Applies the provided change to the sessions.
+     *
+     * @param change The change.
+     */
+    private void apply(final SessionChange change) {
+        change.applyTo(this.sessions);
+        this.sequence = change.getSequence();
+    }
+
+    /**
+     * Applies every change that was appended since the last one that was
+     * applied, reading the snapshot first if it hasn't been read or if the
+     * changes that are needed have already been compacted into it.
+     *
+     * @throws IOException on failure.
+     */
+    private void catchUp()
+            throws IOException {
+        if (!this.loaded) {
+            readSnapshot();
+        }
+        for (final String name : this.blobStore.list(LOG_PREFIX)) {
+            final long changeSequence = toSequence(name);
+            if (changeSequence <= this.sequence) {
+                continue;
+            }
+            final Optional<byte[]> content =
+                    changeSequence == this.sequence + 1
+                            ? this.blobStore.read(name)
+                            : Optional.empty();
+            if (content.isEmpty()) {
+                // Compacted past what's been applied
+                final long applied = this.sequence;
+                readSnapshot();
+                if (this.sequence <= applied) {
+                    throw new IOException(
+                            "Change log is missing changes after " + applied);
+                }
+                catchUp();
+                return;
+            }
+            apply(
+                    this.objectMapper.readValue(
+                            content.get(),
+                            SessionChange.class));
+        }
+    }
+
+    /**
+     * Replaces the sessions with those in the stored snapshot.
+     *
+     * @throws IOException on failure.
+     */
+    private void readSnapshot()
+            throws IOException {
+        final Optional<byte[]> content = this.blobStore.read(SNAPSHOT);
+        final SessionSnapshot snapshot =
+                content.isPresent()
+                        ? this.objectMapper.readValue(
+                        content.get(),
+                        SessionSnapshot.class)
+                        : SessionSnapshot
+                                .builder()
+                                .sessions(new ArrayList<>())
+                                .build();
+        this.sessions.clear();
+        snapshot
+                .getSessions()
+                .forEach(
+                        session ->
+                                this.sessions.put(
+                                        session.getSpaceId(),
+                                        session));
+        this.sequence = snapshot.getSequence();
+        this.snapshotSequence = snapshot.getSequence();
+        this.loaded = true;
+        LOG.info("Read {} sessions as of change {}",
+                this.sessions.size(),
+                this.sequence);
+    }
+
+    /**
+     * Returns the name of the change at the provided position.
+     *
+     * @param sequence The position.
+     *
+     * @return The name.
+     */
+    private static String toName(final long sequence) {
+        return String.format(
+                "%s%019d.json",
+                LOG_PREFIX,
+                sequence);
+    }
+
+    /**
+     * Returns the position of the change with the provided name.
+     *
+     * @param name The name.
+     *
+     * @return The position.
+     */
+    private static long toSequence(final String name) {
+        return Long.parseLong(
+                name.substring(
+                        LOG_PREFIX.length(),
+                        name.length() - ".json".length()));
+    }
+}
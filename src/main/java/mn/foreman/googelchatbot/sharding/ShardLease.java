@@ -0,0 +1,25 @@
+package mn.foreman.googelchatbot.sharding;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.Instant;
+
+/**
+ * A time-bounded claim by a replica, either on a shard or, as a heartbeat, on
+ * being alive.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class ShardLease {
+
+    /** When the claim lapses unless it's renewed. */
+    private Instant expiresAt;
+
+    /** The replica making the claim. */
+    private String owner;
+}
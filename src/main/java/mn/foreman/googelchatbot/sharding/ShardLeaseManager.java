@@ -0,0 +1,567 @@
+package mn.foreman.googelchatbot.sharding;
+
+import mn.foreman.googelchatbot.storage.BlobStore;
+import mn.foreman.googelchatbot.storage.StoredBlob;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Divides the poll workload between bot replicas. The space of space ID hashes
+ * is split into a fixed number of contiguous ranges, or shards, and a replica
+ * only polls the sessions in the shards that it holds a lease on.
+ *
+ * <p>Leases are stored in a {@link BlobStore} and are only taken with a
+ * conditional write, so no two replicas can hold the same shard. Every
+ * replica also keeps a heartbeat lease alive. On each rebalance, a replica
+ * counts the live heartbeats, renews its leases up to its fair share,
+ * releases any beyond that, and takes free or lapsed shards until it has its
+ * share. A replica that stops renewing loses its shards once its leases
+ * lapse. Rebalances run on their own scheduler thread, so a slow poll or
+ * delivery pass can never hold up a renewal.</p>
+ *
+ * <p>A newly acquired shard isn't worked on until it's been
+ * {@link #markSynced(int, long) synced}, meaning that its sessions and queued
+ * messages have been re-read from where the previous owner left them. Work
+ * on a space is fenced by {@link #runIfOwned(String, OwnedTask)}, which
+ * checks the lease under the shard's lock right before the work runs.
+ * A shard is only released once none of its work is in flight and the
+ * before-release hook, which checkpoints the cursors, has run, so the next
+ * owner picks up exactly where this replica stopped. A shard that's busy
+ * when it would be released is renewed and released on a later rebalance
+ * instead.</p>
+ *
+ * <p>When sharding is disabled, this replica owns everything.</p>
+ */
+public class ShardLeaseManager {
+
+    /** The prefix for heartbeats. */
+    private static final String HEARTBEAT_PREFIX = "leases/replicas/";
+
+    /** The logger for this class. */
+    private static final Logger LOG =
+            LoggerFactory.getLogger(ShardLeaseManager.class);
+
+    /** The prefix for shard leases. */
+    private static final String SHARD_PREFIX = "leases/shards/";
+
+    /** The source of the last acquisition ID. */
+    private final AtomicLong acquisitions = new AtomicLong();
+
+    /** Runs before a shard is released, once its work has stopped. */
+    private final Runnable beforeRelease;
+
+    /** The store for the leases. */
+    private final BlobStore blobStore;
+
+    /** The clock used to time leases. */
+    private final Clock clock;
+
+    /** Whether sharding is enabled. */
+    private final boolean enabled;
+
+    /** The shards held by this replica. */
+    private final Map<Integer, Held> held = new ConcurrentHashMap<>();
+
+    /** How long a lease lasts without being renewed. */
+    private final Duration leaseDuration;
+
+    /**
+     * The lock for each shard. Work holds the read lock; releasing the shard
+     * takes the write lock.
+     */
+    private final ReadWriteLock[] locks;
+
+    /** The mapper for reading and writing leases. */
+    private final ObjectMapper objectMapper;
+
+    /** How often leases are renewed. */
+    private final Duration renewDelay;
+
+    /** The ID of this replica. */
+    private final String replicaId;
+
+    /** The number of shards. */
+    private final int shardCount;
+
+    /**
+     * Constructor.
+     *
+     * @param enabled       Whether sharding is enabled.
+     * @param blobStore     The store for the leases. Unused when sharding is
+     *                      disabled.
+     * @param objectMapper  The mapper for reading and writing leases.
+     * @param replicaId     The ID of this replica.
+     * @param shardCount    The number of shards.
+     * @param leaseDuration How long a lease lasts without being renewed.
+     * @param renewDelay    How often leases are renewed.
+     * @param beforeRelease Runs before a shard is released, once its work has
+     *                      stopped.
+     * @param clock         The clock used to time leases.
+     * @param scheduler     The scheduler that runs each rebalance.
+     * @param meterRegistry The registry for the shard metrics.
+     */
+    public ShardLeaseManager(
+            final boolean enabled,
+            final BlobStore blobStore,
+            final ObjectMapper objectMapper,
+            final String replicaId,
+            final int shardCount,
+            final Duration leaseDuration,
+            final Duration renewDelay,
+            final Runnable beforeRelease,
+            final Clock clock,
+            final ScheduledExecutorService scheduler,
+            final MeterRegistry meterRegistry) {
+        this.enabled = enabled;
+        this.blobStore = blobStore;
+        this.objectMapper = objectMapper;
+        this.replicaId = replicaId;
+        this.shardCount = shardCount;
+        this.leaseDuration = leaseDuration;
+        this.renewDelay = renewDelay;
+        this.beforeRelease = beforeRelease;
+        this.clock = clock;
+        this.locks = new ReadWriteLock[shardCount];
+        for (int shard = 0; shard < shardCount; shard++) {
+            this.locks[shard] = new ReentrantReadWriteLock();
+        }
+        meterRegistry.gaugeMapSize(
+                "shards.owned",
+                Tags.empty(),
+                this.held);
+        if (enabled) {
+            scheduler.scheduleWithFixedDelay(
+                    () -> {
+                        try {
+                            rebalance();
+                        } catch (final Exception e) {
+                            LOG.error("Failed to rebalance shards", e);
+                        }
+                    },
+                    0,
+                    renewDelay.toMillis(),
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Returns the shards that this replica currently holds, synced or not,
+     * each with the ID of the acquisition it's held under. A shard that was
+     * lost and acquired again has a new ID, since another replica may have
+     * advanced its sessions in the meantime. Nothing is held when sharding is
+     * disabled.
+     *
+     * @return The acquisition IDs, by shard.
+     */
+    public Map<Integer, Long> activeShards() {
+        final Map<Integer, Long> active = new HashMap<>();
+        final long now = this.clock.millis();
+        this.held.forEach(
+                (shard, held) -> {
+                    if (now < held.validUntil) {
+                        active.put(
+                                shard,
+                                held.acquisition);
+                    }
+                });
+        return active;
+    }
+
+    /**
+     * Records that the provided shard has been synced, allowing work on its
+     * spaces. Does nothing if the shard has since been lost or acquired
+     * again.
+     *
+     * @param shard       The shard.
+     * @param acquisition The acquisition the shard was synced under.
+     */
+    public void markSynced(
+            final int shard,
+            final long acquisition) {
+        final Held held = this.held.get(shard);
+        if (held != null && held.acquisition == acquisition) {
+            held.synced = true;
+        }
+    }
+
+    /**
+     * Checks whether this replica should poll the provided space. Work on the
+     * space should still be run through {@link #runIfOwned(String,
+     * OwnedTask)}, since the shard can be lost at any time.
+     *
+     * @param spaceId The space.
+     *
+     * @return Whether this replica owns the space.
+     */
+    public boolean owns(final String spaceId) {
+        return !this.enabled || isValid(this.held.get(shardOf(spaceId)));
+    }
+
+    /**
+     * Renews, releases and acquires shard leases so that this replica holds
+     * its fair share of the shards.
+     *
+     * @throws IOException on failure.
+     */
+    public synchronized void rebalance()
+            throws IOException {
+        if (!this.enabled) {
+            return;
+        }
+
+        final Instant now = this.clock.instant();
+        final ShardLease lease =
+                ShardLease
+                        .builder()
+                        .owner(this.replicaId)
+                        .expiresAt(now.plus(this.leaseDuration))
+                        .build();
+        final byte[] leaseContent = this.objectMapper.writeValueAsBytes(lease);
+        // Trust the lease for a renewal less than it lasts, in case clocks
+        // disagree or a renewal is late
+        final long validUntil =
+                now
+                        .plus(this.leaseDuration)
+                        .minus(this.renewDelay)
+                        .toEpochMilli();
+
+        this.blobStore.write(
+                HEARTBEAT_PREFIX + this.replicaId + ".json",
+                leaseContent);
+        final int replicas = countLiveReplicas(now);
+        final int fairShare = (this.shardCount + replicas - 1) / replicas;
+
+        final List<Integer> mine = new ArrayList<>();
+        final List<Integer> free = new ArrayList<>();
+        final Map<Integer, StoredBlob> current = new HashMap<>();
+        for (int shard = 0; shard < this.shardCount; shard++) {
+            final Optional<StoredBlob> stored = this.blobStore.get(toName(shard));
+            if (stored.isEmpty()) {
+                free.add(shard);
+                continue;
+            }
+            current.put(
+                    shard,
+                    stored.get());
+            final ShardLease existing =
+                    this.objectMapper.readValue(
+                            stored.get().getContent(),
+                            ShardLease.class);
+            if (existing.getExpiresAt().isBefore(now)) {
+                free.add(shard);
+            } else if (this.replicaId.equals(existing.getOwner())) {
+                mine.add(shard);
+            }
+        }
+
+        // Renew the shards that are already being polled first
+        mine.sort(Comparator.comparing(shard -> !this.held.containsKey(shard)));
+        final Set<Integer> kept = new HashSet<>();
+        for (final int shard : mine) {
+            final StoredBlob stored = current.get(shard);
+            if (kept.size() >= fairShare &&
+                    release(
+                            shard,
+                            stored)) {
+                continue;
+            }
+            // Renewed even beyond the fair share while its work is in flight
+            if (this.blobStore.replace(
+                    toName(shard),
+                    leaseContent,
+                    stored.getVersion())) {
+                kept.add(shard);
+                hold(
+                        shard,
+                        validUntil);
+            }
+        }
+
+        for (final int shard : free) {
+            if (kept.size() >= fairShare) {
+                break;
+            }
+            final StoredBlob stored = current.get(shard);
+            final boolean acquired =
+                    stored != null
+                            ? this.blobStore.replace(
+                            toName(shard),
+                            leaseContent,
+                            stored.getVersion())
+                            : this.blobStore.create(
+                            toName(shard),
+                            leaseContent);
+            if (acquired) {
+                kept.add(shard);
+                // A lapsed lease is a new hold, even if it was this replica's
+                this.held.remove(shard);
+                hold(
+                        shard,
+                        validUntil);
+                LOG.info("Acquired shard {}", shard);
+            }
+        }
+
+        // Anything else was lost to another replica or lapsed
+        this.held.keySet().retainAll(kept);
+    }
+
+    /** Releases every shard held by this replica so others can take them. */
+    @PreDestroy
+    public synchronized void releaseAll() {
+        if (!this.enabled) {
+            return;
+        }
+        for (final int shard : new ArrayList<>(this.held.keySet())) {
+            try {
+                final Optional<StoredBlob> stored = this.blobStore.get(toName(shard));
+                if (stored.isPresent() &&
+                        !release(
+                                shard,
+                                stored.get())) {
+                    LOG.warn("Shard {} is busy - leaving it to lapse", shard);
+                }
+            } catch (final IOException e) {
+                LOG.warn("Failed to release shard {}", shard, e);
+            }
+        }
+        try {
+            this.blobStore.delete(HEARTBEAT_PREFIX + this.replicaId + ".json");
+        } catch (final IOException e) {
+            LOG.warn("Failed to remove heartbeat", e);
+        }
+    }
+
+    /**
+     * Runs the provided work on a space, but only if this replica owns it and
+     * has synced its shard. The shard can't be released while the work runs.
+     *
+     * @param spaceId The space.
+     * @param task    The work.
+     *
+     * @return Whether the work was run.
+     *
+     * @throws Exception if the work failed.
+     */
+    public boolean runIfOwned(
+            final String spaceId,
+            final OwnedTask task)
+            throws Exception {
+        if (!this.enabled) {
+            task.run();
+            return true;
+        }
+        final int shard = shardOf(spaceId);
+        final Lock lock = this.locks[shard].readLock();
+        lock.lock();
+        try {
+            if (!isValid(this.held.get(shard))) {
+                return false;
+            }
+            task.run();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the shard containing the provided space. Shards are contiguous
+     * ranges of the space ID's hash.
+     *
+     * @param spaceId The space.
+     *
+     * @return The shard.
+     */
+    public int shardOf(final String spaceId) {
+        return shardOf(
+                spaceId,
+                this.shardCount);
+    }
+
+    /**
+     * Returns the shard containing the provided space when spaces are split
+     * into the provided number of shards. Shards are contiguous ranges of the
+     * space ID's hash.
+     *
+     * @param spaceId    The space.
+     * @param shardCount The number of shards.
+     *
+     * @return The shard.
+     */
+    public static int shardOf(
+            final String spaceId,
+            final int shardCount) {
+        return (int) (((spaceId.hashCode() & 0xffffffffL) * shardCount) >>> 32);
+    }
+
+    /**
+     * Counts the replicas whose heartbeats haven't lapsed, including this one.
+     *
+     * @param now The current time.
+     *
+     * @return The number of live replicas.
+     *
+     * @throws IOException on failure.
+     */
+    private int countLiveReplicas(final Instant now)
+            throws IOException {
+        int live = 0;
+        for (final String name : this.blobStore.list(HEARTBEAT_PREFIX)) {
+            final Optional<byte[]> content = this.blobStore.read(name);
+            if (content.isPresent() &&
+                    this.objectMapper
+                            .readValue(content.get(), ShardLease.class)
+                            .getExpiresAt()
+                            .isAfter(now)) {
+                live++;
+            }
+        }
+        return Math.max(live, 1);
+    }
+
+    /**
+     * Records that this replica holds the provided shard. A shard that wasn't
+     * already held gets a new acquisition ID.
+     *
+     * @param shard      The shard.
+     * @param validUntil When this replica stops trusting the lease.
+     */
+    private void hold(
+            final int shard,
+            final long validUntil) {
+        this.held
+                .computeIfAbsent(
+                        shard,
+                        key -> new Held(this.acquisitions.incrementAndGet()))
+                .validUntil = validUntil;
+    }
+
+    /**
+     * Checks whether the provided hold is synced and can still be trusted.
+     *
+     * @param held The hold, or null if the shard isn't held.
+     *
+     * @return Whether the hold is valid.
+     */
+    private boolean isValid(final Held held) {
+        return held != null &&
+                held.synced &&
+                this.clock.millis() < held.validUntil;
+    }
+
+    /**
+     * Gives up the provided shard by marking its lease as lapsed, unless work
+     * on it is in flight.
+     *
+     * @param shard  The shard.
+     * @param stored The shard's lease, as last read.
+     *
+     * @return Whether the shard was released.
+     */
+    private boolean release(
+            final int shard,
+            final StoredBlob stored) {
+        // Stop the work before anyone else can start
+        final Lock lock = this.locks[shard].writeLock();
+        if (!lock.tryLock()) {
+            return false;
+        }
+        try {
+            this.held.remove(shard);
+        } finally {
+            lock.unlock();
+        }
+        this.beforeRelease.run();
+        try {
+            this.blobStore.replace(
+                    toName(shard),
+                    this.objectMapper.writeValueAsBytes(
+                            ShardLease
+                                    .builder()
+                                    .owner(this.replicaId)
+                                    .expiresAt(Instant.EPOCH)
+                                    .build()),
+                    stored.getVersion());
+            LOG.info("Released shard {}", shard);
+        } catch (final IOException e) {
+            // It'll lapse on its own
+            LOG.warn("Failed to release shard {}", shard, e);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the name of the lease for the provided shard.
+     *
+     * @param shard The shard.
+     *
+     * @return The name.
+     */
+    private static String toName(final int shard) {
+        return String.format(
+                "%s%04d.json",
+                SHARD_PREFIX,
+                shard);
+    }
+
+    /** Work on a space that must only run while the space is owned. */
+    @FunctionalInterface
+    public interface OwnedTask {
+
+        /**
+         * Runs the work.
+         *
+         * @throws Exception on failure.
+         */
+        void run() throws Exception;
+    }
+
+    /** A shard held by this replica. */
+    private static class Held {
+
+        /** The ID of the acquisition the shard is held under. */
+        private final long acquisition;
+
+        /** Whether the shard has been synced. */
+        private volatile boolean synced;
+
+        /** When this replica stops trusting its lease. */
+        private volatile long validUntil;
+
+        /**
+         * Constructor.
+         *
+         * @param acquisition The ID of the acquisition the shard is held
+         *                    under.
+         */
+        private Held(final long acquisition) {
+            this.acquisition = acquisition;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package mn.foreman.googelchatbot.storage;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
+
+/** A store of named blobs, such as a bucket. */
+public interface BlobStore {
+
+    /**
+     * Stores the provided content under the provided name, but only if there
+     * isn't a blob with that name already.
+     *
+     * @param name    The name.
+     * @param content The content.
+     *
+     * @return Whether the blob was created.
+     *
+     * @throws IOException on failure.
+     */
+    boolean create(
+            String name,
+            byte[] content) throws IOException;
+
+    /**
+     * Deletes the blob with the provided name, if it exists.
+     *
+     * @param name The name.
+     *
+     * @throws IOException on failure.
+     */
+    void delete(String name) throws IOException;
+
+    /**
+     * Reads the blob with the provided name, along with its version.
+     *
+     * @param name The name.
+     *
+     * @return The blob, if it exists.
+     *
+     * @throws IOException on failure.
+     */
+    Optional<StoredBlob> get(String name) throws IOException;
+
+    /**
+     * Lists the names of the blobs that start with the provided prefix, in
+     * lexicographic order.
+     *
+     * @param prefix The prefix.
+     *
+     * @return The names.
+     *
+     * @throws IOException on failure.
+     */
+    List<String> list(String prefix) throws IOException;
+
+    /**
+     * Reads the blob with the provided name.
+     *
+     * @param name The name.
+     *
+     * @return The content, if the blob exists.
+     *
+     * @throws IOException on failure.
+     */
+    default Optional<byte[]> read(final String name)
+            throws IOException {
+        return get(name).map(StoredBlob::getContent);
+    }
+
+    /**
+     * Replaces the blob with the provided name, but only if it hasn't been
+     * written since it was read at the provided version.
+     *
+     * @param name    The name.
+     * @param content The content.
+     * @param version The version the blob was read at.
+     *
+     * @return Whether the blob was replaced.
+     *
+     * @throws IOException on failure.
+     */
+    boolean replace(
+            String name,
+            byte[] content,
+            long version) throws IOException;
+
+    /**
+     * Stores the provided content under the provided name, replacing any blob
+     * with that name.
+     *
+     * @param name    The name.
+     * @param content The content.
+     *
+     * @throws IOException on failure.
+     */
+    void write(
+            String name,
+            byte[] content) throws IOException;
+}
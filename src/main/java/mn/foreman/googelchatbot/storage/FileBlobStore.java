@@ -0,0 +1,260 @@
+package mn.foreman.googelchatbot.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A {@link BlobStore} that stores each blob as a file under a local
+ * directory, with any slashes in a blob's name becoming subdirectories. It
+ * stands in for the bucket in development and tests, including for several
+ * bot processes that share a directory.
+ *
+ * <p>Blobs are written to a temporary file, synced, and atomically renamed
+ * into place. Every write and delete holds an exclusive lock on the
+ * directory, so they're safe across processes. A blob's version is its
+ * generation, which is taken from a counter kept in the lock file every time
+ * the blob is written and stored in front of its content. Generations never
+ * repeat, so a blob that's rewritten with the same content still gets a new
+ * version.</p>
+ */
+public class FileBlobStore
+        implements BlobStore {
+
+    /** The size of the generation in front of each blob's content. */
+    private static final int GENERATION_BYTES = Long.BYTES;
+
+    /**
+     * The name of the file that's locked for writes, which also holds the
+     * last generation.
+     */
+    private static final String LOCK = ".lock";
+
+    /** The suffix for blobs that are still being written. */
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /** The directory containing the blobs. */
+    private final Path directory;
+
+    /**
+     * Constructor.
+     *
+     * @param directory The directory containing the blobs.
+     *
+     * @throws IOException on failure.
+     */
+    public FileBlobStore(final Path directory)
+            throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+    }
+
+    @Override
+    public synchronized boolean create(
+            final String name,
+            final byte[] content)
+            throws IOException {
+        try (final FileChannel lock = openLock();
+             final FileLock ignored = lock.lock()) {
+            if (Files.exists(toPath(name))) {
+                return false;
+            }
+            store(
+                    lock,
+                    name,
+                    content);
+            return true;
+        }
+    }
+
+    @Override
+    public synchronized void delete(final String name)
+            throws IOException {
+        try (final FileChannel lock = openLock();
+             final FileLock ignored = lock.lock()) {
+            Files.deleteIfExists(toPath(name));
+        }
+    }
+
+    @Override
+    public Optional<StoredBlob> get(final String name)
+            throws IOException {
+        try {
+            final byte[] stored = Files.readAllBytes(toPath(name));
+            if (stored.length < GENERATION_BYTES) {
+                throw new IOException("Blob " + name + " has no generation");
+            }
+            return Optional.of(
+                    new StoredBlob(
+                            Arrays.copyOfRange(
+                                    stored,
+                                    GENERATION_BYTES,
+                                    stored.length),
+                            ByteBuffer.wrap(stored).getLong()));
+        } catch (final NoSuchFileException e) {
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public List<String> list(final String prefix)
+            throws IOException {
+        try (final Stream<Path> paths = Files.walk(this.directory)) {
+            return paths
+                    .filter(Files::isRegularFile)
+                    .map(path -> this.directory.relativize(path).toString().replace('\\', '/'))
+                    .filter(name -> !name.equals(LOCK) && !name.endsWith(TEMP_SUFFIX))
+                    .filter(name -> name.startsWith(prefix))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    @Override
+    public synchronized boolean replace(
+            final String name,
+            final byte[] content,
+            final long version)
+            throws IOException {
+        try (final FileChannel lock = openLock();
+             final FileLock ignored = lock.lock()) {
+            final Optional<StoredBlob> current = get(name);
+            if (current.isEmpty() || current.get().getVersion() != version) {
+                return false;
+            }
+            store(
+                    lock,
+                    name,
+                    content);
+            return true;
+        }
+    }
+
+    @Override
+    public synchronized void write(
+            final String name,
+            final byte[] content)
+            throws IOException {
+        try (final FileChannel lock = openLock();
+             final FileLock ignored = lock.lock()) {
+            store(
+                    lock,
+                    name,
+                    content);
+        }
+    }
+
+    /**
+     * Takes the next generation from the counter in the lock file. The
+     * counter is synced before the generation is used, so a crash can skip
+     * generations but never repeat one.
+     *
+     * @param lock The locked lock file.
+     *
+     * @return The generation.
+     *
+     * @throws IOException on failure.
+     */
+    private static long nextGeneration(final FileChannel lock)
+            throws IOException {
+        final ByteBuffer last = ByteBuffer.allocate(GENERATION_BYTES);
+        int read = 0;
+        while (last.hasRemaining() && read >= 0) {
+            read = lock.read(last, last.position());
+        }
+        final long generation =
+                (!last.hasRemaining()
+                        ? last.getLong(0)
+                        : 0) + 1;
+        final ByteBuffer next =
+                ByteBuffer
+                        .allocate(GENERATION_BYTES)
+                        .putLong(0, generation);
+        while (next.hasRemaining()) {
+            lock.write(next, next.position());
+        }
+        lock.force(true);
+        return generation;
+    }
+
+    /**
+     * Opens the file that's locked for writes.
+     *
+     * @return The channel for the lock file.
+     *
+     * @throws IOException on failure.
+     */
+    private FileChannel openLock()
+            throws IOException {
+        return FileChannel.open(
+                this.directory.resolve(LOCK),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Writes the provided content under the provided name with a new
+     * generation. Must be called with the lock held.
+     *
+     * @param lock    The locked lock file.
+     * @param name    The name.
+     * @param content The content.
+     *
+     * @throws IOException on failure.
+     */
+    private void store(
+            final FileChannel lock,
+            final String name,
+            final byte[] content)
+            throws IOException {
+        final Path path = toPath(name);
+        Files.createDirectories(path.getParent());
+
+        final Path temp = path.resolveSibling(path.getFileName() + TEMP_SUFFIX);
+        try (final FileChannel channel =
+                     FileChannel.open(
+                             temp,
+                             StandardOpenOption.CREATE,
+                             StandardOpenOption.TRUNCATE_EXISTING,
+                             StandardOpenOption.WRITE)) {
+            final ByteBuffer buffer =
+                    ByteBuffer
+                            .allocate(GENERATION_BYTES + content.length)
+                            .putLong(nextGeneration(lock))
+                            .put(content)
+                            .flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(
+                temp,
+                path,
+                StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Returns the path of the blob with the provided name.
+     *
+     * @param name The name.
+     *
+     * @return The path.
+     */
+    private Path toPath(final String name) {
+        return this.directory.resolve(name);
+    }
+}
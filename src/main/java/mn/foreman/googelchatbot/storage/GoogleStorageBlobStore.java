@@ -0,0 +1,143 @@
+package mn.foreman.googelchatbot.storage;
+
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.Bucket;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageException;
+import org.apache.http.entity.ContentType;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/** A {@link BlobStore} backed by the bot's Google Cloud Storage bucket. */
+public class GoogleStorageBlobStore
+        implements BlobStore {
+
+    /** The status code for a missing blob. */
+    private static final int NOT_FOUND = 404;
+
+    /** The status code for a failed precondition. */
+    private static final int PRECONDITION_FAILED = 412;
+
+    /** The Google Cloud Bucket */
+    private final Bucket bucket;
+
+    /**
+     * Constructor.
+     *
+     * @param bucket The bucket where blobs will be stored.
+     */
+    public GoogleStorageBlobStore(final Bucket bucket) {
+        this.bucket = bucket;
+    }
+
+    @Override
+    public boolean create(
+            final String name,
+            final byte[] content)
+            throws IOException {
+        try {
+            this.bucket.create(
+                    name,
+                    content,
+                    ContentType.APPLICATION_JSON.getMimeType(),
+                    Bucket.BlobTargetOption.doesNotExist());
+            return true;
+        } catch (final StorageException e) {
+            if (e.getCode() == PRECONDITION_FAILED) {
+                return false;
+            }
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void delete(final String name)
+            throws IOException {
+        try {
+            this.bucket
+                    .getStorage()
+                    .delete(
+                            BlobId.of(
+                                    this.bucket.getName(),
+                                    name));
+        } catch (final StorageException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public Optional<StoredBlob> get(final String name)
+            throws IOException {
+        try {
+            final Blob blob = this.bucket.get(name);
+            return blob != null
+                    ? Optional.of(
+                    new StoredBlob(
+                            blob.getContent(),
+                            blob.getGeneration()))
+                    : Optional.empty();
+        } catch (final StorageException e) {
+            if (e.getCode() == NOT_FOUND) {
+                // Deleted between the lookup and the download
+                return Optional.empty();
+            }
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public List<String> list(final String prefix)
+            throws IOException {
+        try {
+            final List<String> names = new ArrayList<>();
+            for (final Blob blob : this.bucket.list(Storage.BlobListOption.prefix(prefix)).iterateAll()) {
+                names.add(blob.getName());
+            }
+            Collections.sort(names);
+            return names;
+        } catch (final StorageException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public boolean replace(
+            final String name,
+            final byte[] content,
+            final long version)
+            throws IOException {
+        try {
+            this.bucket.create(
+                    name,
+                    content,
+                    ContentType.APPLICATION_JSON.getMimeType(),
+                    Bucket.BlobTargetOption.generationMatch(version));
+            return true;
+        } catch (final StorageException e) {
+            if (e.getCode() == PRECONDITION_FAILED) {
+                return false;
+            }
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void write(
+            final String name,
+            final byte[] content)
+            throws IOException {
+        try {
+            this.bucket.create(
+                    name,
+                    content,
+                    ContentType.APPLICATION_JSON.getMimeType());
+        } catch (final StorageException e) {
+            throw new IOException(e);
+        }
+    }
+}
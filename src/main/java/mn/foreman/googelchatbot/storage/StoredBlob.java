@@ -0,0 +1,14 @@
+package mn.foreman.googelchatbot.storage;
+
+import lombok.Value;
+
+/** The content of a blob, along with the version it was read at. */
+@Value
+public class StoredBlob {
+
+    /** The content. */
+    byte[] content;
+
+    /** The version, which changes every time the blob is written. */
+    long version;
+}
@@ -0,0 +1,135 @@
+package mn.foreman.googelchatbot.utils;
+
+import mn.foreman.api.ForemanApi;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import lombok.Value;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded cache of {@link ForemanApi} clients keyed by the credentials that
+ * authenticate them. Building a client allocates a new web utility on every
+ * call, which adds up quickly when every session is polled every cycle, so
+ * clients are built once and reused until they're evicted or invalidated.
+ */
+public class ForemanApiCache {
+
+    /** The cached clients. */
+    private final Cache<Credentials, ForemanApi> cache;
+
+    /** The Foreman API URL. */
+    private final String foremanApiUrl;
+
+    /** The mapper shared by every client. */
+    private final ObjectMapper objectMapper;
+
+    /**
+     * Constructor.
+     *
+     * @param foremanApiUrl The Foreman API URL.
+     * @param objectMapper  The mapper shared by every client.
+     * @param maxSize       The max number of clients to retain.
+     * @param expiry        How long an unused client is retained.
+     * @param meterRegistry The registry for the cache metrics.
+     */
+    public ForemanApiCache(
+            final String foremanApiUrl,
+            final ObjectMapper objectMapper,
+            final long maxSize,
+            final Duration expiry,
+            final MeterRegistry meterRegistry) {
+        this.foremanApiUrl = foremanApiUrl;
+        this.objectMapper = objectMapper;
+        this.cache =
+                CacheBuilder
+                        .newBuilder()
+                        .maximumSize(maxSize)
+                        .expireAfterAccess(
+                                expiry.toMillis(),
+                                TimeUnit.MILLISECONDS)
+                        .recordStats()
+                        .build();
+        GuavaCacheMetrics.monitor(
+                meterRegistry,
+                this.cache,
+                "foreman.api.clients");
+    }
+
+    /**
+     * Returns the client for the provided credentials, building one if one
+     * isn't cached.
+     *
+     * @param clientId The client ID.
+     * @param apiKey   The client API key.
+     *
+     * @return The client.
+     */
+    public ForemanApi get(
+            final int clientId,
+            final String apiKey) {
+        try {
+            return this.cache.get(
+                    new Credentials(
+                            clientId,
+                            apiKey),
+                    () -> ForemanUtils.toApi(
+                            clientId,
+                            apiKey,
+                            this.foremanApiUrl,
+                            this.objectMapper));
+        } catch (final ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Returns the number of lookups that were served from the cache.
+     *
+     * @return The hit count.
+     */
+    public long hits() {
+        return this.cache.stats().hitCount();
+    }
+
+    /**
+     * Discards the client for the provided credentials, if one is cached.
+     *
+     * @param clientId The client ID.
+     * @param apiKey   The client API key.
+     */
+    public void invalidate(
+            final int clientId,
+            final String apiKey) {
+        this.cache.invalidate(
+                new Credentials(
+                        clientId,
+                        apiKey));
+    }
+
+    /**
+     * Returns the number of lookups that required a new client.
+     *
+     * @return The miss count.
+     */
+    public long misses() {
+        return this.cache.stats().missCount();
+    }
+
+    /** The credentials that identify a client. */
+    @Value
+    private static class Credentials {
+
+        /** The client ID. */
+        int clientId;
+
+        /** The client API key. */
+        String apiKey;
+    }
+}
@@ -17,17 +17,19 @@ public class ForemanUtils {
      * @param clientId       the client ID.
      * @param apiKey         the client API key.
      * @param foremanBaseUrl the Foreman base URL.
+     * @param objectMapper   the mapper for the API responses.
      *
      * @return the new API handler.
      */
     public static ForemanApi toApi(
             final int clientId,
             final String apiKey,
-            final String foremanBaseUrl) {
+            final String foremanBaseUrl,
+            final ObjectMapper objectMapper) {
         return new ForemanApiImpl(
                 Integer.toString(clientId),
                 "",
-                new ObjectMapper(),
+                objectMapper,
                 new JdkWebUtil(
                         foremanBaseUrl,
                         apiKey,
@@ -0,0 +1,123 @@
+package mn.foreman.googelchatbot.utils;
+
+import com.vdurmont.emoji.EmojiParser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A message template that's compiled once, up front. Emoji aliases in the
+ * template are resolved to unicode at compile time and the template is split
+ * around its <code>{}</code> placeholders, so rendering is nothing more than
+ * appending the literal segments and the arguments in turn - no format
+ * parsing happens per message, and the literal segments are never scanned
+ * again.
+ *
+ * <p>Emoji aliases in arguments, such as a subject written in Foreman, are
+ * resolved as they're appended. Every alias contains a colon, so an argument
+ * without one is appended without being scanned.</p>
+ */
+public class MessageTemplate {
+
+    /** The placeholder for an argument. */
+    private static final String PLACEHOLDER = "{}";
+
+    /** The combined length of the literal segments. */
+    private final int literalLength;
+
+    /** The literal segments that surround the placeholders. */
+    private final String[] segments;
+
+    /**
+     * Constructor.
+     *
+     * @param segments The literal segments that surround the placeholders.
+     */
+    private MessageTemplate(final String[] segments) {
+        this.segments = segments;
+        int length = 0;
+        for (final String segment : segments) {
+            length += segment.length();
+        }
+        this.literalLength = length;
+    }
+
+    /**
+     * Appends the provided text, resolving any emoji aliases in it.
+     *
+     * @param builder The destination.
+     * @param text    The text.
+     *
+     * @return The destination.
+     */
+    public static StringBuilder appendResolved(
+            final StringBuilder builder,
+            final String text) {
+        return builder.append(
+                text.indexOf(':') >= 0
+                        ? EmojiParser.parseToUnicode(text)
+                        : text);
+    }
+
+    /**
+     * Compiles the provided template.
+     *
+     * @param template The template, with <code>{}</code> marking where each
+     *                 argument goes.
+     *
+     * @return The compiled template.
+     */
+    public static MessageTemplate compile(final String template) {
+        final List<String> segments = new ArrayList<>();
+        int start = 0;
+        int placeholder;
+        while ((placeholder = template.indexOf(PLACEHOLDER, start)) >= 0) {
+            segments.add(EmojiParser.parseToUnicode(template.substring(start, placeholder)));
+            start = placeholder + PLACEHOLDER.length();
+        }
+        segments.add(EmojiParser.parseToUnicode(template.substring(start)));
+        return new MessageTemplate(segments.toArray(new String[0]));
+    }
+
+    /**
+     * Resolves the emoji aliases in a template that has no arguments.
+     *
+     * @param template The template.
+     *
+     * @return The resolved message.
+     */
+    public static String resolve(final String template) {
+        return EmojiParser.parseToUnicode(template);
+    }
+
+    /**
+     * Returns the combined length of the literal segments, which is a lower
+     * bound for the length of a rendered message.
+     *
+     * @return The literal length.
+     */
+    public int literalLength() {
+        return this.literalLength;
+    }
+
+    /**
+     * Renders the template with the provided arguments.
+     *
+     * @param builder The destination.
+     * @param args    The arguments, in placeholder order.
+     *
+     * @return The destination.
+     */
+    public StringBuilder render(
+            final StringBuilder builder,
+            final Object... args) {
+        builder.append(this.segments[0]);
+        for (int i = 1; i < this.segments.length; i++) {
+            appendResolved(
+                    builder,
+                    String.valueOf(args[i - 1]))
+                    .append(this.segments[i]);
+        }
+        return builder;
+    }
+}
@@ -0,0 +1,29 @@
+package com.google.cloud.storage;
+
+/**
+ * Creates {@link Bucket} handles without asking the service for them. Lives
+ * in the client's package because {@link Bucket}'s constructor isn't public,
+ * and lets the bot's code run against a local {@link Storage}.
+ */
+public final class LocalBuckets {
+
+    /** Not instantiable. */
+    private LocalBuckets() {
+    }
+
+    /**
+     * Returns a handle for the named bucket in the provided storage.
+     *
+     * @param storage The storage.
+     * @param name    The bucket name.
+     *
+     * @return The bucket.
+     */
+    public static Bucket of(
+            final Storage storage,
+            final String name) {
+        return new Bucket(
+                storage,
+                new BucketInfo.BuilderImpl(name));
+    }
+}
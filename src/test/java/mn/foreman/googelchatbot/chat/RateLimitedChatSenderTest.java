@@ -0,0 +1,161 @@
+package mn.foreman.googelchatbot.chat;
+
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/** Tests for {@link RateLimitedChatSender}. */
+class RateLimitedChatSenderTest {
+
+    /** The sender being rate limited. */
+    private final ChatSender delegate = mock(ChatSender.class);
+
+    /** The registry for the limiter metrics. */
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void backoffNeverWaitsLongerThanMaxWait()
+            throws Exception {
+        doThrow(failure(503, null))
+                .doNothing()
+                .when(this.delegate).send(
+                        "spaces/a",
+                        "text");
+
+        final long start = System.nanoTime();
+        newSender(Duration.ofMillis(50)).send(
+                "spaces/a",
+                "text");
+
+        assertThat(Duration.ofNanos(System.nanoTime() - start))
+                .isLessThan(Duration.ofSeconds(5));
+        verify(this.delegate, times(2)).send(
+                "spaces/a",
+                "text");
+    }
+
+    @Test
+    void busySpacesDontTakeGlobalTokens()
+            throws Exception {
+        // One global token every 500ms, and a space never gets a second
+        final RateLimitedChatSender sender =
+                new RateLimitedChatSender(
+                        this.delegate,
+                        2,
+                        0.001,
+                        Duration.ofMillis(600),
+                        3,
+                        Duration.ofSeconds(10),
+                        this.meterRegistry);
+        sender.send(
+                "spaces/a",
+                "text");
+
+        final long start = System.nanoTime();
+        assertThatThrownBy(() ->
+                sender.send(
+                        "spaces/a",
+                        "text"))
+                .isInstanceOf(IOException.class);
+
+        // Rejected without waiting for, or taking, a global token
+        assertThat(Duration.ofNanos(System.nanoTime() - start))
+                .isLessThan(Duration.ofMillis(250));
+        assertThat(this.meterRegistry.counter("chat.ratelimit.rejected").count())
+                .isEqualTo(1);
+        sender.send(
+                "spaces/b",
+                "text");
+        verify(this.delegate).send(
+                "spaces/b",
+                "text");
+    }
+
+    @Test
+    void longRetryAfterIsThrownForLater()
+            throws Exception {
+        doThrow(failure(429, "120"))
+                .when(this.delegate).send(
+                        "spaces/a",
+                        "text");
+
+        assertThatThrownBy(() ->
+                newSender(Duration.ofSeconds(1)).send(
+                        "spaces/a",
+                        "text"))
+                .isInstanceOf(HttpResponseException.class);
+        verify(this.delegate).send(
+                "spaces/a",
+                "text");
+        assertThat(this.meterRegistry.counter("chat.retries.deferred").count())
+                .isEqualTo(1);
+    }
+
+    @Test
+    void shortRetryAfterIsRetried()
+            throws Exception {
+        doThrow(failure(429, "0"))
+                .doNothing()
+                .when(this.delegate).send(
+                        "spaces/a",
+                        "text");
+
+        newSender(Duration.ofSeconds(1)).send(
+                "spaces/a",
+                "text");
+
+        verify(this.delegate, times(2)).send(
+                "spaces/a",
+                "text");
+        assertThat(this.meterRegistry.counter("chat.retries").count())
+                .isEqualTo(1);
+    }
+
+    /**
+     * Creates a failed response.
+     *
+     * @param status     The status code.
+     * @param retryAfter The <code>Retry-After</code> header, if any.
+     *
+     * @return The failure.
+     */
+    private static HttpResponseException failure(
+            final int status,
+            final String retryAfter) {
+        return new HttpResponseException.Builder(
+                status,
+                null,
+                new HttpHeaders().setRetryAfter(retryAfter))
+                .build();
+    }
+
+    /**
+     * Returns a sender with plenty of tokens that retries slowly.
+     *
+     * @param maxWait The longest a send will wait.
+     *
+     * @return The sender.
+     */
+    private RateLimitedChatSender newSender(final Duration maxWait) {
+        return new RateLimitedChatSender(
+                this.delegate,
+                1000,
+                1000,
+                maxWait,
+                3,
+                Duration.ofSeconds(10),
+                this.meterRegistry);
+    }
+}
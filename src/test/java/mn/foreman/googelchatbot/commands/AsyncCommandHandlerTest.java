@@ -0,0 +1,153 @@
+package mn.foreman.googelchatbot.commands;
+
+import mn.foreman.googelchatbot.chat.ChatSender;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+/** Tests for {@link AsyncCommandHandler}. */
+class AsyncCommandHandlerTest {
+
+    /** The immediate reply. */
+    private static final String ACKNOWLEDGEMENT = "On it...";
+
+    /** How long to wait for a reply to be sent. */
+    private static final long TIMEOUT_MILLIS = 5_000;
+
+    /** Sends the results. */
+    private ChatSender chatSender;
+
+    /** The executor that runs the commands, with no room to queue. */
+    private ExecutorService executor;
+
+    /** The registry for the command metrics. */
+    private MeterRegistry meterRegistry;
+
+    @Test
+    void failuresAreReported()
+            throws Exception {
+        final String reply =
+                newHandler((rest, spaceId) -> {
+                    throw new IllegalStateException("Foreman is down");
+                })
+                        .handle(
+                                "1 key",
+                                "spaces/a");
+
+        assertThat(reply).isEqualTo(ACKNOWLEDGEMENT);
+        verify(this.chatSender, timeout(TIMEOUT_MILLIS)).send(
+                "spaces/a",
+                "Sorry, something went wrong - please try that again.");
+        assertThat(counter("commands.async.failures")).isEqualTo(1);
+    }
+
+    @Test
+    void resultsAreSentToTheSpace()
+            throws Exception {
+        final String reply =
+                newHandler((rest, spaceId) -> spaceId + ":" + rest)
+                        .handle(
+                                "1 key",
+                                "spaces/a");
+
+        assertThat(reply).isEqualTo(ACKNOWLEDGEMENT);
+        verify(this.chatSender, timeout(TIMEOUT_MILLIS)).send(
+                "spaces/a",
+                "spaces/a:1 key");
+        assertThat(counter("commands.async.failures")).isZero();
+    }
+
+    @Test
+    void saturatedExecutorsTurnCommandsAway()
+            throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        this.executor.execute(() -> {
+            try {
+                release.await();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        final String reply =
+                newHandler((rest, spaceId) -> "done")
+                        .handle(
+                                "1 key",
+                                "spaces/a");
+        release.countDown();
+
+        assertThat(reply).isEqualTo("I'm a little busy right now - please try that again in a minute.");
+        assertThat(counter("commands.async.rejected")).isEqualTo(1);
+        verify(this.chatSender, never()).send(
+                eq("spaces/a"),
+                anyString());
+    }
+
+    @BeforeEach
+    void setUp() {
+        this.chatSender = mock(ChatSender.class);
+        this.executor =
+                new ThreadPoolExecutor(
+                        1,
+                        1,
+                        0,
+                        TimeUnit.MILLISECONDS,
+                        new SynchronousQueue<>());
+        this.meterRegistry = new SimpleMeterRegistry();
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Returns the count of the provided counter for the test command.
+     *
+     * @param name The counter name.
+     *
+     * @return The count.
+     */
+    private double counter(final String name) {
+        return this.meterRegistry
+                .counter(
+                        name,
+                        "command",
+                        "/register")
+                .count();
+    }
+
+    /**
+     * Returns a handler that runs the provided handler on the executor.
+     *
+     * @param delegate The handler that runs the command.
+     *
+     * @return The handler.
+     */
+    private AsyncCommandHandler newHandler(final CommandHandler delegate) {
+        return new AsyncCommandHandler(
+                "/register",
+                delegate,
+                this.executor,
+                this.chatSender,
+                ACKNOWLEDGEMENT,
+                this.meterRegistry);
+    }
+}
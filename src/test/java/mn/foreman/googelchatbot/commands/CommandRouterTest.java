@@ -0,0 +1,90 @@
+package mn.foreman.googelchatbot.commands;
+
+import mn.foreman.googelchatbot.event.ChatEvent;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/** Tests for {@link CommandRouter}. */
+class CommandRouterTest {
+
+    /** The router, which echoes what the /echo handler is given. */
+    private final CommandRouter commandRouter =
+            new CommandRouter(
+                    Collections.singletonMap(
+                            "/echo",
+                            (rest, spaceId) -> spaceId + ":" + rest));
+
+    @Test
+    void commandsWithoutArgumentsGetNoRest()
+            throws IOException {
+        assertThat(route(
+                "/echo",
+                "spaces/a"))
+                .hasValue("spaces/a:");
+    }
+
+    @Test
+    void commandsAreRoutedWithTheirArguments()
+            throws IOException {
+        assertThat(route(
+                "/echo 1234 key with spaces",
+                "spaces/a"))
+                .hasValue("spaces/a:1234 key with spaces");
+    }
+
+    @Test
+    void messagesThatArentCommandsAreIgnored()
+            throws IOException {
+        assertThat(route(
+                "hello /echo",
+                "spaces/a"))
+                .isEmpty();
+        assertThat(this.commandRouter.messageEvent(new ChatEvent())).isEmpty();
+    }
+
+    @Test
+    void unknownCommandsAreInvalid()
+            throws IOException {
+        assertThat(route(
+                "/unknown 1",
+                "spaces/a"))
+                .hasValue("Invalid command");
+    }
+
+    /**
+     * Routes a message.
+     *
+     * @param text      The message text.
+     * @param spaceName The space where the message was posted.
+     *
+     * @return The reply.
+     *
+     * @throws IOException on failure.
+     */
+    private Optional<String> route(
+            final String text,
+            final String spaceName)
+            throws IOException {
+        return this.commandRouter.messageEvent(
+                ChatEvent
+                        .builder()
+                        .type("MESSAGE")
+                        .message(
+                                ChatEvent.Message
+                                        .builder()
+                                        .text(text)
+                                        .build())
+                        .space(
+                                ChatEvent.Space
+                                        .builder()
+                                        .name(spaceName)
+                                        .build())
+                        .build());
+    }
+}
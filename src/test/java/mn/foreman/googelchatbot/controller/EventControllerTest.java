@@ -0,0 +1,163 @@
+package mn.foreman.googelchatbot.controller;
+
+import mn.foreman.googelchatbot.event.ChatEvent;
+
+import com.google.api.services.chat.v1.model.Message;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/** Tests for {@link EventController}. */
+class EventControllerTest {
+
+    /** The event. */
+    private static final ChatEvent EVENT = ChatEvent.builder().type("MESSAGE").build();
+
+    /** The executor that works out the replies. */
+    private final ExecutorService eventExecutor = Executors.newSingleThreadExecutor();
+
+    /** The registry for the reply metrics. */
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    /** Works out the replies. */
+    private final EventResponder responder = mock(EventResponder.class);
+
+    @Test
+    void failureAsksForARedelivery()
+            throws Exception {
+        when(this.responder.toReply(EVENT)).thenThrow(new IOException("Storage down"));
+
+        final ResponseEntity<Message> response = newController().onEvent(EVENT);
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.INTERNAL_SERVER_ERROR);
+    }
+
+    @Test
+    void lateReplyIsSentThroughTheApi()
+            throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        when(this.responder.toReply(EVENT)).thenAnswer(invocation -> {
+            release.await();
+            return Optional.of("Done");
+        });
+
+        final ResponseEntity<Message> response =
+                newController(
+                        this.eventExecutor,
+                        Duration.ofMillis(50)).onEvent(EVENT);
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(response.getBody()).isNull();
+        assertThat(this.meterRegistry.counter("events.replies.late").count())
+                .isEqualTo(1);
+        verify(this.responder, never()).doReply(
+                EVENT,
+                "Done");
+
+        release.countDown();
+
+        verify(this.responder, timeout(5000)).doReply(
+                EVENT,
+                "Done");
+    }
+
+    @Test
+    void replyIsReturnedInline()
+            throws Exception {
+        when(this.responder.toReply(EVENT)).thenReturn(Optional.of("Hi"));
+
+        final ResponseEntity<Message> response = newController().onEvent(EVENT);
+
+        assertThat(response.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(response.getBody().getText()).isEqualTo("Hi");
+    }
+
+    @Test
+    void saturatedExecutorAsksForARedelivery()
+            throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final ExecutorService saturated =
+                new ThreadPoolExecutor(
+                        1,
+                        1,
+                        0,
+                        TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<>(1));
+        try {
+            // One task running and one waiting
+            for (int i = 0; i < 2; i++) {
+                saturated.submit(() -> {
+                    release.await();
+                    return null;
+                });
+            }
+
+            final ResponseEntity<Message> response =
+                    newController(
+                            saturated,
+                            Duration.ofSeconds(5)).onEvent(EVENT);
+
+            assertThat(response.getStatusCode()).isEqualTo(HttpStatus.SERVICE_UNAVAILABLE);
+            assertThat(this.meterRegistry.counter("events.rejected").count())
+                    .isEqualTo(1);
+            verify(this.responder, never()).toReply(EVENT);
+        } finally {
+            release.countDown();
+            saturated.shutdownNow();
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.eventExecutor.shutdownNow();
+    }
+
+    /**
+     * Returns a controller that waits a while for replies.
+     *
+     * @return The controller.
+     */
+    private EventController newController() {
+        return newController(
+                this.eventExecutor,
+                Duration.ofSeconds(5));
+    }
+
+    /**
+     * Returns a controller.
+     *
+     * @param eventExecutor The executor that works out the replies.
+     * @param replyDeadline How long to wait for a reply.
+     *
+     * @return The controller.
+     */
+    private EventController newController(
+            final ExecutorService eventExecutor,
+            final Duration replyDeadline) {
+        return new EventController(
+                this.responder,
+                eventExecutor,
+                replyDeadline,
+                this.meterRegistry);
+    }
+}
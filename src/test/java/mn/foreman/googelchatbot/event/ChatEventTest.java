@@ -0,0 +1,78 @@
+package mn.foreman.googelchatbot.event;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/** Tests for binding {@link ChatEvent ChatEvents}. */
+class ChatEventTest {
+
+    /** The object mapper. */
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    void addedToSpaceEventsBind()
+            throws IOException {
+        final ChatEvent event = read("added-to-space.json");
+
+        assertThat(event.getType()).isEqualTo("ADDED_TO_SPACE");
+        assertThat(event.getMessage()).isNull();
+        assertThat(event.text()).isEmpty();
+        assertThat(event.spaceName()).isEqualTo("spaces/AAAAx1sWfZo");
+        assertThat(event.getUser().getDisplayName()).isEqualTo("Jane Miner");
+    }
+
+    @Test
+    void messageEventsBind()
+            throws IOException {
+        final ChatEvent event = read("message.json");
+
+        assertThat(event.getType()).isEqualTo("MESSAGE");
+        assertThat(event.getEventTime()).isEqualTo("2022-06-14T17:42:09.514207Z");
+        assertThat(event.getMessage().getName())
+                .isEqualTo("spaces/AAAAx1sWfZo/messages/Qvh6Y1ApmUo.Qvh6Y1ApmUo");
+        assertThat(event.text())
+                .isEqualTo("/register 1234 0a1b2c3d4e5f60718293a4b5c6d7e8f9");
+        assertThat(event.spaceName()).isEqualTo("spaces/AAAAx1sWfZo");
+        assertThat(event.getSpace().getDisplayName()).isEqualTo("Mining Ops");
+        assertThat(event.getSpace().getType()).isEqualTo("ROOM");
+        assertThat(event.getUser().getDisplayName()).isEqualTo("Jane Miner");
+    }
+
+    @Test
+    void missingFieldsReadAsEmpty()
+            throws IOException {
+        final ChatEvent event =
+                this.objectMapper.readValue(
+                        "{\"type\":\"MESSAGE\",\"message\":{},\"space\":{}}",
+                        ChatEvent.class);
+
+        assertThat(event.text()).isEmpty();
+        assertThat(event.spaceName()).isEmpty();
+        assertThat(new ChatEvent().text()).isEmpty();
+        assertThat(new ChatEvent().spaceName()).isEmpty();
+    }
+
+    /**
+     * Binds a recorded event.
+     *
+     * @param name The name of the recorded event.
+     *
+     * @return The event.
+     *
+     * @throws IOException on failure.
+     */
+    private ChatEvent read(final String name)
+            throws IOException {
+        try (final InputStream inputStream =
+                     ChatEventTest.class.getResourceAsStream("/events/" + name)) {
+            return this.objectMapper.readValue(
+                    inputStream,
+                    ChatEvent.class);
+        }
+    }
+}
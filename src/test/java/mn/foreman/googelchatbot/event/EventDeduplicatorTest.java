@@ -0,0 +1,168 @@
+package mn.foreman.googelchatbot.event;
+
+import mn.foreman.googelchatbot.storage.InMemoryBlobStore;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/** Tests for {@link EventDeduplicator}. */
+class EventDeduplicatorTest {
+
+    /** The registry for the hit metrics. */
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void eventsWithoutAnIdentityAreAlwaysNew() {
+        final EventDeduplicator deduplicator = newDeduplicator(null);
+        final ChatEvent event = ChatEvent.builder().type("MESSAGE").build();
+
+        assertThat(deduplicator.firstSeen(event)).isTrue();
+        assertThat(deduplicator.firstSeen(event)).isTrue();
+    }
+
+    @Test
+    void forgottenEventsAreNewAgain() {
+        final InMemoryBlobStore store = new InMemoryBlobStore();
+        final EventDeduplicator deduplicator = newDeduplicator(store);
+        final ChatEvent event = message("spaces/a/messages/1");
+        assertThat(deduplicator.firstSeen(event)).isTrue();
+
+        deduplicator.forget(event);
+
+        assertThat(newDeduplicator(store).firstSeen(event)).isTrue();
+        assertThat(deduplicator.firstSeen(event)).isFalse();
+    }
+
+    @Test
+    void redeliveriesAreCaughtLocally() {
+        final EventDeduplicator deduplicator = newDeduplicator(null);
+
+        assertThat(deduplicator.firstSeen(message("spaces/a/messages/1"))).isTrue();
+        assertThat(deduplicator.firstSeen(message("spaces/a/messages/1"))).isFalse();
+        assertThat(deduplicator.firstSeen(message("spaces/a/messages/2"))).isTrue();
+
+        assertThat(this.meterRegistry.counter(
+                "events.dedup.hits",
+                "source",
+                "local").count()).isEqualTo(1);
+        assertThat(this.meterRegistry.counter("events.dedup.misses").count())
+                .isEqualTo(2);
+    }
+
+    @Test
+    void redeliveriesToAnotherReplicaAreCaughtByTheSharedStore() {
+        final InMemoryBlobStore store = new InMemoryBlobStore();
+
+        assertThat(newDeduplicator(store).firstSeen(message("spaces/a/messages/1")))
+                .isTrue();
+        assertThat(newDeduplicator(store).firstSeen(message("spaces/a/messages/1")))
+                .isFalse();
+
+        assertThat(this.meterRegistry.counter(
+                "events.dedup.hits",
+                "source",
+                "shared").count()).isEqualTo(1);
+    }
+
+    @Test
+    void sweepDeletesExpiredKeys()
+            throws Exception {
+        final InMemoryBlobStore store = new InMemoryBlobStore();
+        final EventDeduplicator deduplicator =
+                newDeduplicator(
+                        store,
+                        Duration.ofMillis(1));
+        assertThat(deduplicator.firstSeen(message("spaces/a/messages/1"))).isTrue();
+        Thread.sleep(5);
+
+        deduplicator.sweep();
+
+        assertThat(store.list("events/")).isEmpty();
+        assertThat(this.meterRegistry.counter("events.dedup.swept").count())
+                .isEqualTo(1);
+    }
+
+    @Test
+    void sweepKeepsKeysWithinTheirTtl()
+            throws Exception {
+        final InMemoryBlobStore store = new InMemoryBlobStore();
+        final EventDeduplicator deduplicator = newDeduplicator(store);
+        assertThat(deduplicator.firstSeen(message("spaces/a/messages/1"))).isTrue();
+
+        deduplicator.sweep();
+
+        assertThat(store.list("events/")).hasSize(1);
+        assertThat(newDeduplicator(store).firstSeen(message("spaces/a/messages/1")))
+                .isFalse();
+    }
+
+    @Test
+    void unreachableSharedStoreIsCountedAndIgnored() {
+        final EventDeduplicator deduplicator =
+                newDeduplicator(
+                        new InMemoryBlobStore(
+                                Duration.ZERO,
+                                1));
+
+        assertThat(deduplicator.firstSeen(message("spaces/a/messages/1"))).isTrue();
+        assertThat(deduplicator.firstSeen(message("spaces/a/messages/1"))).isFalse();
+
+        assertThat(this.meterRegistry.counter("events.dedup.shared.errors").count())
+                .isEqualTo(1);
+    }
+
+    /**
+     * Creates a message event.
+     *
+     * @param name The message name.
+     *
+     * @return The event.
+     */
+    private static ChatEvent message(final String name) {
+        return ChatEvent
+                .builder()
+                .type("MESSAGE")
+                .message(
+                        ChatEvent.Message
+                                .builder()
+                                .name(name)
+                                .build())
+                .build();
+    }
+
+    /**
+     * Returns a deduplicator.
+     *
+     * @param sharedStore The shared store, if any.
+     *
+     * @return The deduplicator.
+     */
+    private EventDeduplicator newDeduplicator(final InMemoryBlobStore sharedStore) {
+        return newDeduplicator(
+                sharedStore,
+                Duration.ofMinutes(10));
+    }
+
+    /**
+     * Returns a deduplicator.
+     *
+     * @param sharedStore The shared store, if any.
+     * @param ttl         How long a key is remembered.
+     *
+     * @return The deduplicator.
+     */
+    private EventDeduplicator newDeduplicator(
+            final InMemoryBlobStore sharedStore,
+            final Duration ttl) {
+        return new EventDeduplicator(
+                ttl,
+                100,
+                sharedStore,
+                this.meterRegistry);
+    }
+}
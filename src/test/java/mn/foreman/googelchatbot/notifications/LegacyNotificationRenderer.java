@@ -0,0 +1,113 @@
+package mn.foreman.googelchatbot.notifications;
+
+import mn.foreman.api.endpoints.notifications.Notifications;
+
+import com.vdurmont.emoji.EmojiParser;
+
+import java.util.List;
+
+/**
+ * Renders notifications the way {@link NotificationProcessorImpl} did before
+ * it used compiled templates: every line goes through
+ * {@link String#format(String, Object...)} and the whole message through
+ * {@link EmojiParser}. Kept to check the templates against, and to measure
+ * them against.
+ */
+public class LegacyNotificationRenderer {
+
+    /** Base URl for Foreman. */
+    private final String foremanDashboardUrl;
+
+    /** The max miners to show. */
+    private final int maxNotifications;
+
+    /**
+     * Constructor.
+     *
+     * @param foremanDashboardUrl Base URl for Foreman.
+     * @param maxNotifications    The max miners to show.
+     */
+    public LegacyNotificationRenderer(
+            final String foremanDashboardUrl,
+            final int maxNotifications) {
+        this.foremanDashboardUrl = foremanDashboardUrl;
+        this.maxNotifications = maxNotifications;
+    }
+
+    /**
+     * Converts the provided notification to a message to be sent.
+     *
+     * @param notification The notification to process.
+     *
+     * @return The message sent through the emoji parser.
+     */
+    public String render(final Notifications.Notification notification) {
+        final StringBuilder messageBuilder =
+                new StringBuilder();
+
+        messageBuilder.append(
+                String.format(
+                        "%s *%s*",
+                        !notification.failingMiners.isEmpty()
+                                ? ":x:"
+                                : ":white_check_mark:",
+                        notification.subject));
+
+        final List<Notifications.Notification.FailingMiner> failingMiners =
+                notification.failingMiners;
+
+        if (!failingMiners.isEmpty()) {
+            messageBuilder.append("\n\n");
+            failingMiners
+                    .stream()
+                    .limit(this.maxNotifications)
+                    .forEach(
+                            miner ->
+                                    appendMiner(
+                                            miner,
+                                            messageBuilder));
+
+            if (failingMiners.size() > this.maxNotifications) {
+                messageBuilder
+                        .append("\n\n")
+                        .append(
+                                String.format(
+                                        "*...and %d more",
+                                        failingMiners.size() - this.maxNotifications))
+                        .append(
+                                String.format(
+                                        "Head to [your dashboard](%s/dashboard/) to see the rest",
+                                        this.foremanDashboardUrl));
+            }
+        }
+        return EmojiParser.parseToUnicode(messageBuilder.toString());
+    }
+
+    /**
+     * Adds the miner's information and link to the message.
+     *
+     * @param failingMiner  The miner.
+     * @param stringBuilder The message.
+     */
+    private void appendMiner(
+            final Notifications.Notification.FailingMiner failingMiner,
+            final StringBuilder stringBuilder) {
+        stringBuilder
+                .append(
+                        String.format(
+                                "<%s/dashboard/miners/%d/details/|%s>",
+                                this.foremanDashboardUrl,
+                                failingMiner.minerId,
+                                failingMiner.miner))
+                .append("\n");
+        failingMiner
+                .diagnosis
+                .forEach(
+                        diag ->
+                                stringBuilder
+                                        .append(diag)
+                                        .append("\n"));
+        stringBuilder
+                .append("\n");
+    }
+}
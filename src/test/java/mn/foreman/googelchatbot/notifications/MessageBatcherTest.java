@@ -0,0 +1,152 @@
+package mn.foreman.googelchatbot.notifications;
+
+import mn.foreman.googelchatbot.outbox.OutboundMessage;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/** Tests for {@link MessageBatcher}. */
+class MessageBatcherTest {
+
+    /** The registry for the batching metrics. */
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void disabledBatcherLeavesMessagesAlone() {
+        final List<OutboundMessage> messages =
+                Arrays.asList(
+                        message(
+                                1,
+                                "a"),
+                        message(
+                                2,
+                                "b"));
+
+        assertThat(
+                newBatcher(
+                        false,
+                        100).batch(messages))
+                .isSameAs(messages);
+    }
+
+    @Test
+    void fullBatchesStartANewMessage() {
+        final List<OutboundMessage> batches =
+                newBatcher(
+                        true,
+                        10).batch(
+                        Arrays.asList(
+                                message(
+                                        1,
+                                        "aaaa"),
+                                message(
+                                        2,
+                                        "bbbb"),
+                                message(
+                                        3,
+                                        "cccc")));
+
+        assertThat(batches)
+                .extracting(OutboundMessage::getText)
+                .containsExactly(
+                        "aaaa\n\nbbbb",
+                        "cccc");
+        assertThat(batches)
+                .extracting(OutboundMessage::getNotificationId)
+                .containsExactly(
+                        2,
+                        3);
+        assertThat(this.meterRegistry.counter("notifications.sends.saved").count())
+                .isEqualTo(1);
+    }
+
+    @Test
+    void oversizedMessagesAreSentAlone() {
+        final List<OutboundMessage> batches =
+                newBatcher(
+                        true,
+                        10).batch(
+                        Arrays.asList(
+                                message(
+                                        1,
+                                        "a"),
+                                message(
+                                        2,
+                                        "bbbbbbbbbbbbbbb"),
+                                message(
+                                        3,
+                                        "c")));
+
+        assertThat(batches)
+                .extracting(OutboundMessage::getText)
+                .containsExactly(
+                        "a",
+                        "bbbbbbbbbbbbbbb",
+                        "c");
+    }
+
+    @Test
+    void smallMessagesShareOneMessageInOrder() {
+        final List<OutboundMessage> batches =
+                newBatcher(
+                        true,
+                        100).batch(
+                        Arrays.asList(
+                                message(
+                                        1,
+                                        "a"),
+                                message(
+                                        2,
+                                        "b"),
+                                message(
+                                        3,
+                                        "c")));
+
+        assertThat(batches).hasSize(1);
+        assertThat(batches.get(0).getText()).isEqualTo("a\n\nb\n\nc");
+        assertThat(batches.get(0).getNotificationId()).isEqualTo(3);
+        assertThat(batches.get(0).getSpaceId()).isEqualTo("spaces/a");
+    }
+
+    /**
+     * Creates a message for the same space as every other.
+     *
+     * @param notificationId The ID of the notification in the message.
+     * @param text           The text.
+     *
+     * @return The message.
+     */
+    private static OutboundMessage message(
+            final int notificationId,
+            final String text) {
+        return OutboundMessage
+                .builder()
+                .spaceId("spaces/a")
+                .notificationId(notificationId)
+                .text(text)
+                .build();
+    }
+
+    /**
+     * Returns a batcher.
+     *
+     * @param enabled   Whether batching is enabled.
+     * @param maxLength The max length of a batched message.
+     *
+     * @return The batcher.
+     */
+    private MessageBatcher newBatcher(
+            final boolean enabled,
+            final int maxLength) {
+        return new MessageBatcher(
+                enabled,
+                maxLength,
+                this.meterRegistry);
+    }
+}
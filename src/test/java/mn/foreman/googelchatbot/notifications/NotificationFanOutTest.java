@@ -0,0 +1,196 @@
+package mn.foreman.googelchatbot.notifications;
+
+import mn.foreman.googelchatbot.config.BotConfig;
+import mn.foreman.googelchatbot.session.Session;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/** Tests for {@link NotificationFanOut}. */
+class NotificationFanOutTest {
+
+    /** The deadline for every session, kept short for the tests. */
+    private static final Duration DEADLINE = Duration.ofMillis(100);
+
+    /** The executor that processes the sessions. */
+    private ExecutorService executor;
+
+    /** The registry for the fan-out metrics. */
+    private MeterRegistry meterRegistry;
+
+    /** Interrupts sessions that exceed their deadline. */
+    private ScheduledExecutorService watchdog;
+
+    @Test
+    void deadlineInterruptsDontLeakIntoTheNextSession() {
+        // One worker, so both sessions run on the same thread
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final Set<String> interrupted = ConcurrentHashMap.newKeySet();
+        try {
+            new NotificationFanOut(
+                    executor,
+                    this.watchdog,
+                    DEADLINE,
+                    this.meterRegistry)
+                    .processAll(
+                            Arrays.asList(
+                                    session("spaces/slow"),
+                                    session("spaces/next")),
+                            session -> {
+                                if (session.getSpaceId().equals("spaces/slow")) {
+                                    try {
+                                        Thread.sleep(10_000);
+                                    } catch (final InterruptedException e) {
+                                        // Swallowed, as a careless task would
+                                        interrupted.add(session.getSpaceId());
+                                    }
+                                } else if (Thread.currentThread().isInterrupted()) {
+                                    interrupted.add(session.getSpaceId());
+                                }
+                            });
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(interrupted).containsExactly("spaces/slow");
+    }
+
+    @Test
+    void failingSessionsDontStopTheRest() {
+        final Set<String> processed = ConcurrentHashMap.newKeySet();
+        final List<Session> sessions =
+                Arrays.asList(
+                        session("spaces/a"),
+                        session("spaces/b"),
+                        session("spaces/c"));
+
+        newFanOut().processAll(
+                sessions,
+                session -> {
+                    if (session.getSpaceId().equals("spaces/b")) {
+                        throw new IllegalStateException("Foreman is down");
+                    }
+                    processed.add(session.getSpaceId());
+                });
+
+        assertThat(processed).containsExactlyInAnyOrder(
+                "spaces/a",
+                "spaces/c");
+        assertThat(this.meterRegistry.counter("notifications.deadline.exceeded").count())
+                .isZero();
+    }
+
+    @Test
+    void sessionsOverTheirDeadlineAreInterrupted() {
+        final Set<String> processed = ConcurrentHashMap.newKeySet();
+        final Set<String> interrupted = ConcurrentHashMap.newKeySet();
+
+        final long start = System.nanoTime();
+        newFanOut().processAll(
+                Arrays.asList(
+                        session("spaces/slow"),
+                        session("spaces/fast")),
+                session -> {
+                    if (session.getSpaceId().equals("spaces/slow")) {
+                        try {
+                            Thread.sleep(10_000);
+                        } catch (final InterruptedException e) {
+                            interrupted.add(session.getSpaceId());
+                            throw e;
+                        }
+                    }
+                    processed.add(session.getSpaceId());
+                });
+
+        assertThat(Duration.ofNanos(System.nanoTime() - start))
+                .isLessThan(Duration.ofSeconds(5));
+        assertThat(interrupted).containsExactly("spaces/slow");
+        assertThat(processed).containsExactly("spaces/fast");
+        assertThat(this.meterRegistry.counter("notifications.deadline.exceeded").count())
+                .isEqualTo(1);
+    }
+
+    @Test
+    void virtualThreadsFallBackToPlatformThreads()
+            throws Exception {
+        final boolean available =
+                Arrays
+                        .stream(Executors.class.getMethods())
+                        .anyMatch(method -> method.getName().equals("newVirtualThreadPerTaskExecutor"));
+        final ExecutorService executor =
+                new BotConfig().notificationExecutor(
+                        2,
+                        true);
+        try {
+            final String name =
+                    executor
+                            .submit(() -> Thread.currentThread().getName())
+                            .get();
+
+            // Virtual threads are unnamed
+            if (available) {
+                assertThat(name).isEmpty();
+            } else {
+                assertThat(name).isEqualTo("notifier-0");
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @BeforeEach
+    void setUp() {
+        this.executor = Executors.newFixedThreadPool(4);
+        this.meterRegistry = new SimpleMeterRegistry();
+        this.watchdog = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.executor.shutdownNow();
+        this.watchdog.shutdownNow();
+    }
+
+    /**
+     * Returns a session for the provided space.
+     *
+     * @param spaceId The space.
+     *
+     * @return The session.
+     */
+    private static Session session(final String spaceId) {
+        return Session
+                .builder()
+                .spaceId(spaceId)
+                .clientId(1)
+                .apiKey("key")
+                .build();
+    }
+
+    /**
+     * Returns a fan-out over the shared executor.
+     *
+     * @return The fan-out.
+     */
+    private NotificationFanOut newFanOut() {
+        return new NotificationFanOut(
+                this.executor,
+                this.watchdog,
+                DEADLINE,
+                this.meterRegistry);
+    }
+}
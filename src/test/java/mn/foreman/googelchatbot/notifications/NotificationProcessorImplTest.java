@@ -0,0 +1,135 @@
+package mn.foreman.googelchatbot.notifications;
+
+import mn.foreman.api.endpoints.notifications.Notifications;
+import mn.foreman.googelchatbot.outbox.OutboundQueue;
+import mn.foreman.googelchatbot.utils.ForemanApiCache;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+/** Tests for {@link NotificationProcessorImpl}. */
+class NotificationProcessorImplTest {
+
+    /** The dashboard URL. */
+    private static final String DASHBOARD_URL = "https://dashboard.foreman.mn";
+
+    /** The max miners shown in a message. */
+    private static final int MAX_NOTIFICATIONS = 3;
+
+    /** Renders messages the way they were rendered before the templates. */
+    private final LegacyNotificationRenderer legacy =
+            new LegacyNotificationRenderer(
+                    DASHBOARD_URL,
+                    MAX_NOTIFICATIONS);
+
+    /** The processor. */
+    private final NotificationProcessorImpl processor =
+            new NotificationProcessorImpl(
+                    DASHBOARD_URL,
+                    MAX_NOTIFICATIONS,
+                    mock(ForemanApiCache.class),
+                    Instant.now(),
+                    mock(OutboundQueue.class),
+                    mock(MessageBatcher.class));
+
+    @Test
+    void aliasesInTheNotificationResolveAsBefore() {
+        final Notifications.Notification notification =
+                notification(
+                        "Rig on :fire:",
+                        1);
+        notification.failingMiners.get(0).diagnosis =
+                Arrays.asList(
+                        "Fan 1 is at 0 RPM :warning:",
+                        "Uptime 12:30");
+
+        final String message = this.processor.toNotificationMessage(notification);
+
+        assertThat(message)
+                .isEqualTo(this.legacy.render(notification))
+                .startsWith("\u274c *Rig on \ud83d\udd25*")
+                .doesNotContain(":warning:")
+                .contains("Uptime 12:30\n");
+    }
+
+    @Test
+    void failingMinersRenderAsBefore() {
+        final Notifications.Notification notification =
+                notification(
+                        "Hash rate dropped",
+                        2);
+
+        final String message = this.processor.toNotificationMessage(notification);
+
+        assertThat(message)
+                .isEqualTo(this.legacy.render(notification))
+                .startsWith("\u274c *Hash rate dropped*\n\n")
+                .contains("<" + DASHBOARD_URL + "/dashboard/miners/1/details/|miner1>\n");
+    }
+
+    @Test
+    void minersPastTheMaxAreSummarized() {
+        final Notifications.Notification notification =
+                notification(
+                        "Miners offline",
+                        MAX_NOTIFICATIONS + 4);
+
+        final String message = this.processor.toNotificationMessage(notification);
+
+        assertThat(message)
+                .isEqualTo(this.legacy.render(notification))
+                .contains("*...and 4 more")
+                .doesNotContain("miner" + (MAX_NOTIFICATIONS + 1));
+    }
+
+    @Test
+    void resolvedNotificationsRenderAsBefore() {
+        final Notifications.Notification notification =
+                notification(
+                        "All miners healthy",
+                        0);
+
+        assertThat(this.processor.toNotificationMessage(notification))
+                .isEqualTo(this.legacy.render(notification))
+                .isEqualTo("\u2705 *All miners healthy*");
+    }
+
+    /**
+     * Creates a notification.
+     *
+     * @param subject The subject.
+     * @param miners  The number of failing miners.
+     *
+     * @return The notification.
+     */
+    static Notifications.Notification notification(
+            final String subject,
+            final int miners) {
+        final List<Notifications.Notification.FailingMiner> failingMiners =
+                new ArrayList<>(miners);
+        for (int i = 1; i <= miners; i++) {
+            final Notifications.Notification.FailingMiner failingMiner =
+                    new Notifications.Notification.FailingMiner();
+            failingMiner.minerId = i;
+            failingMiner.miner = "miner" + i;
+            failingMiner.diagnosis =
+                    Arrays.asList(
+                            "Hash rate is 0 GH/s",
+                            "Board 2 is missing chips");
+            failingMiners.add(failingMiner);
+        }
+        final Notifications.Notification notification =
+                new Notifications.Notification();
+        notification.id = 1;
+        notification.subject = subject;
+        notification.failingMiners = failingMiners;
+        return notification;
+    }
+}
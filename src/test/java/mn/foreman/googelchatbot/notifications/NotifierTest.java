@@ -0,0 +1,182 @@
+package mn.foreman.googelchatbot.notifications;
+
+import mn.foreman.googelchatbot.outbox.OutboundQueue;
+import mn.foreman.googelchatbot.session.Session;
+import mn.foreman.googelchatbot.session.SessionRepository;
+import mn.foreman.googelchatbot.sharding.ShardLeaseManager;
+import mn.foreman.googelchatbot.utils.ForemanApiCache;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+/** Tests for {@link Notifier}. */
+class NotifierTest {
+
+    /** When the sessions first registered. */
+    private static final Instant REGISTERED = Instant.parse("2022-06-01T00:00:00Z");
+
+    /** The notifier. */
+    private Notifier notifier;
+
+    /** The scheduler that the notifier keeps in sync. */
+    private SessionScheduler sessionScheduler;
+
+    /** The stored sessions. */
+    private final List<Session> stored = new ArrayList<>();
+
+    @Test
+    void syncCancelsSessionsForgottenElsewhere()
+            throws Exception {
+        this.stored.add(
+                session(
+                        "spaces/a",
+                        "key",
+                        REGISTERED));
+        this.stored.add(
+                session(
+                        "spaces/b",
+                        "key",
+                        REGISTERED));
+        this.notifier.sendNotifications();
+
+        this.stored.remove(1);
+        this.notifier.sendNotifications();
+
+        assertThat(this.sessionScheduler.scheduled()).containsOnlyKeys("spaces/a");
+    }
+
+    @Test
+    void syncReplacesSessionsRegisteredAgainElsewhere()
+            throws Exception {
+        this.stored.add(
+                session(
+                        "spaces/a",
+                        "old",
+                        REGISTERED));
+        this.stored.add(
+                session(
+                        "spaces/b",
+                        "key",
+                        REGISTERED));
+        this.notifier.sendNotifications();
+
+        final Instant later = REGISTERED.plusSeconds(60);
+        this.stored.set(
+                0,
+                session(
+                        "spaces/a",
+                        "new",
+                        REGISTERED));
+        this.stored.set(
+                1,
+                session(
+                        "spaces/b",
+                        "key",
+                        later));
+        this.notifier.sendNotifications();
+
+        assertThat(this.sessionScheduler.scheduled().get("spaces/a").getApiKey())
+                .isEqualTo("new");
+        assertThat(this.sessionScheduler.scheduled().get("spaces/b").getDateRegistered())
+                .isEqualTo(later);
+    }
+
+    @Test
+    void syncSchedulesSessionsMissedByTheLoad()
+            throws Exception {
+        this.notifier.sendNotifications();
+        assertThat(this.sessionScheduler.scheduled()).isEmpty();
+
+        this.stored.add(
+                session(
+                        "spaces/a",
+                        "key",
+                        REGISTERED));
+        this.notifier.sendNotifications();
+
+        assertThat(this.sessionScheduler.scheduled()).containsOnlyKeys("spaces/a");
+    }
+
+    @BeforeEach
+    void setUp()
+            throws Exception {
+        final SessionRepository sessionRepository = mock(SessionRepository.class);
+        doAnswer(invocation -> {
+            final Consumer<List<Session>> consumer = invocation.getArgument(1);
+            consumer.accept(new ArrayList<>(this.stored));
+            return null;
+        }).when(sessionRepository).forEachPage(
+                anyInt(),
+                any());
+        this.sessionScheduler =
+                new SessionScheduler(
+                        Duration.ofHours(1),
+                        Duration.ofHours(1),
+                        2,
+                        new SimpleMeterRegistry());
+        this.notifier =
+                new Notifier(
+                        "http://localhost",
+                        10,
+                        mock(ForemanApiCache.class),
+                        REGISTERED,
+                        sessionRepository,
+                        mock(OutboundQueue.class),
+                        mock(NotificationFanOut.class),
+                        this.sessionScheduler,
+                        mock(MessageBatcher.class),
+                        100,
+                        new ShardLeaseManager(
+                                false,
+                                null,
+                                new ObjectMapper(),
+                                "a",
+                                1,
+                                Duration.ofMinutes(1),
+                                Duration.ofSeconds(15),
+                                () -> {
+                                },
+                                Clock.systemUTC(),
+                                mock(ScheduledExecutorService.class),
+                                new SimpleMeterRegistry()),
+                        Duration.ZERO);
+    }
+
+    /**
+     * Creates a session.
+     *
+     * @param spaceId        The space ID.
+     * @param apiKey         The API key.
+     * @param dateRegistered When the space registered.
+     *
+     * @return The session.
+     */
+    private static Session session(
+            final String spaceId,
+            final String apiKey,
+            final Instant dateRegistered) {
+        return Session
+                .builder()
+                .spaceId(spaceId)
+                .clientId(1)
+                .apiKey(apiKey)
+                .dateRegistered(dateRegistered)
+                .build();
+    }
+}
@@ -0,0 +1,197 @@
+package mn.foreman.googelchatbot.notifications;
+
+import mn.foreman.googelchatbot.session.Session;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/** Tests for {@link SessionScheduler}. */
+class SessionSchedulerTest {
+
+    /** The shortest interval between checks, kept short for the tests. */
+    private static final Duration INTERVAL = Duration.ofMillis(100);
+
+    @Test
+    void cancelledSessionsAreNeverDue()
+            throws Exception {
+        final SessionScheduler scheduler = newScheduler(INTERVAL);
+        scheduler.schedule(
+                session(
+                        "spaces/a",
+                        "key"));
+
+        scheduler.cancel("spaces/a");
+        Thread.sleep(INTERVAL.toMillis() * 2);
+
+        assertThat(scheduler.contains("spaces/a")).isFalse();
+        assertThat(scheduler.size()).isZero();
+        assertThat(scheduler.pollDue()).isEmpty();
+    }
+
+    @Test
+    void emptyChecksBackOffAndNotificationsReset() {
+        final SessionScheduler scheduler = newScheduler(Duration.ofSeconds(10));
+        final Session session =
+                session(
+                        "spaces/a",
+                        "key");
+        scheduler.schedule(session);
+
+        scheduler.recordResult(
+                session,
+                false);
+        scheduler.recordResult(
+                session,
+                false);
+        assertThat(scheduler.backedOff()).isEqualTo(1);
+        assertThat(scheduler.meanIntervalSeconds()).isEqualTo(40);
+
+        scheduler.recordResult(
+                session,
+                false);
+        assertThat(scheduler.meanIntervalSeconds()).isEqualTo(60);
+
+        scheduler.recordResult(
+                session,
+                true);
+        assertThat(scheduler.backedOff()).isZero();
+        assertThat(scheduler.meanIntervalSeconds()).isEqualTo(10);
+    }
+
+    @Test
+    void resultsForAReplacedSessionAreIgnored() {
+        final SessionScheduler scheduler = newScheduler(Duration.ofSeconds(10));
+        final Session old =
+                session(
+                        "spaces/a",
+                        "old");
+        scheduler.schedule(old);
+        scheduler.schedule(
+                session(
+                        "spaces/a",
+                        "new"));
+
+        scheduler.recordResult(
+                old,
+                false);
+
+        assertThat(scheduler.size()).isEqualTo(1);
+        assertThat(scheduler.scheduled().get("spaces/a").getApiKey()).isEqualTo("new");
+        assertThat(scheduler.backedOff()).isZero();
+    }
+
+    @Test
+    void sessionsAreDueOncePerIntervalUntilRescheduled()
+            throws Exception {
+        final SessionScheduler scheduler = newScheduler(INTERVAL);
+        scheduler.schedule(
+                session(
+                        "spaces/a",
+                        "key"));
+
+        final List<Session> due = pollUntilDue(scheduler);
+        assertThat(due)
+                .extracting(Session::getSpaceId)
+                .containsExactly("spaces/a");
+        Thread.sleep(INTERVAL.toMillis() * 2);
+        assertThat(scheduler.pollDue()).isEmpty();
+
+        scheduler.reschedule(due);
+        assertThat(pollUntilDue(scheduler)).hasSize(1);
+    }
+
+    @Test
+    void sessionsAreSpreadAcrossTheInterval()
+            throws Exception {
+        final SessionScheduler scheduler = newScheduler(INTERVAL);
+        for (int i = 0; i < 50; i++) {
+            scheduler.schedule(
+                    session(
+                            "spaces/space" + i,
+                            "key"));
+        }
+
+        // Every session comes due within an interval, but not all at once
+        final Set<String> seen = new HashSet<>();
+        int polls = 0;
+        final long deadline = System.currentTimeMillis() + INTERVAL.toMillis() * 2;
+        while (seen.size() < 50 && System.currentTimeMillis() < deadline) {
+            final List<Session> due = scheduler.pollDue();
+            if (!due.isEmpty()) {
+                polls++;
+                due.forEach(session -> seen.add(session.getSpaceId()));
+            }
+            Thread.sleep(1);
+        }
+
+        assertThat(seen).hasSize(50);
+        assertThat(polls).isGreaterThan(1);
+    }
+
+    /**
+     * Returns a scheduler that doubles the interval of idle sessions, up to
+     * six times the floor.
+     *
+     * @param interval The shortest interval between checks.
+     *
+     * @return The scheduler.
+     */
+    private static SessionScheduler newScheduler(final Duration interval) {
+        return new SessionScheduler(
+                interval,
+                interval.multipliedBy(6),
+                2,
+                new SimpleMeterRegistry());
+    }
+
+    /**
+     * Polls the provided scheduler until something is due, for up to two
+     * intervals.
+     *
+     * @param scheduler The scheduler.
+     *
+     * @return The due sessions, if any.
+     *
+     * @throws InterruptedException if interrupted.
+     */
+    private static List<Session> pollUntilDue(final SessionScheduler scheduler)
+            throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + INTERVAL.toMillis() * 2;
+        while (System.currentTimeMillis() < deadline) {
+            final List<Session> due = scheduler.pollDue();
+            if (!due.isEmpty()) {
+                return new ArrayList<>(due);
+            }
+            Thread.sleep(1);
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Creates a session.
+     *
+     * @param spaceId The space ID.
+     * @param apiKey  The API key.
+     *
+     * @return The session.
+     */
+    private static Session session(
+            final String spaceId,
+            final String apiKey) {
+        return Session
+                .builder()
+                .spaceId(spaceId)
+                .clientId(1)
+                .apiKey(apiKey)
+                .build();
+    }
+}
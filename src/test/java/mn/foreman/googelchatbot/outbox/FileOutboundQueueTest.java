@@ -0,0 +1,118 @@
+package mn.foreman.googelchatbot.outbox;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for {@link FileOutboundQueue}, and the index it shares with the other
+ * queues.
+ */
+class FileOutboundQueueTest {
+
+    /** The mapper for the messages. */
+    private final ObjectMapper objectMapper =
+            new ObjectMapper().registerModule(new JavaTimeModule());
+
+    /** The directory for the queue. */
+    @TempDir
+    Path directory;
+
+    @Test
+    void forgetLeavesMessagesInStorage()
+            throws Exception {
+        final FileOutboundQueue queue = newQueue();
+        add(queue, "spaces/a", 1);
+        add(queue, "spaces/b", 1);
+
+        queue.forget("spaces/a"::equals);
+
+        assertThat(queue.pendingBySpace()).containsOnlyKeys("spaces/b");
+        assertThat(queue.highWaterMark("spaces/a")).isZero();
+        assertThat(newQueue().pendingBySpace()).containsOnlyKeys("spaces/a", "spaces/b");
+    }
+
+    @Test
+    void loadsMessagesQueuedBeforeARestart()
+            throws Exception {
+        add(newQueue(), "spaces/a", 1);
+        add(newQueue(), "spaces/a", 2);
+        Files.write(
+                this.directory.resolve("partial.tmp"),
+                new byte[]{'{'});
+
+        final FileOutboundQueue queue = newQueue();
+
+        assertThat(queue.pendingBySpace().get("spaces/a"))
+                .extracting(OutboundMessage::getNotificationId)
+                .containsExactly(1, 2);
+        assertThat(queue.highWaterMark("spaces/a")).isEqualTo(2);
+        assertThat(this.directory.resolve("partial.tmp")).doesNotExist();
+    }
+
+    @Test
+    void reloadReplacesOnlyTheMatchingSpaces()
+            throws Exception {
+        final FileOutboundQueue mine = newQueue();
+        final FileOutboundQueue theirs = newQueue();
+        add(mine, "spaces/a", 1);
+        add(theirs, "spaces/b", 7);
+        final OutboundMessage delivered = mine.pendingBySpace().get("spaces/a").get(0);
+        theirs.remove(delivered);
+
+        mine.reload("spaces/b"::equals);
+
+        assertThat(mine.highWaterMark("spaces/b")).isEqualTo(7);
+        // Not reloaded, so still tracked even though it's gone from storage
+        assertThat(mine.highWaterMark("spaces/a")).isEqualTo(1);
+
+        mine.reload(spaceId -> true);
+        assertThat(mine.pendingBySpace()).containsOnlyKeys("spaces/b");
+    }
+
+    /**
+     * Queues a message.
+     *
+     * @param queue          The queue.
+     * @param spaceId        The space.
+     * @param notificationId The notification.
+     *
+     * @throws IOException on failure.
+     */
+    private static void add(
+            final OutboundQueue queue,
+            final String spaceId,
+            final int notificationId)
+            throws IOException {
+        queue.add(
+                Collections.singletonList(
+                        OutboundMessage
+                                .builder()
+                                .spaceId(spaceId)
+                                .notificationId(notificationId)
+                                .text("text")
+                                .build()));
+    }
+
+    /**
+     * Returns a queue over the shared directory.
+     *
+     * @return The queue.
+     *
+     * @throws IOException on failure.
+     */
+    private FileOutboundQueue newQueue()
+            throws IOException {
+        return new FileOutboundQueue(
+                this.directory,
+                this.objectMapper);
+    }
+}
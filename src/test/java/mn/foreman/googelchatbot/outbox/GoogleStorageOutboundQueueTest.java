@@ -0,0 +1,169 @@
+package mn.foreman.googelchatbot.outbox;
+
+import mn.foreman.googelchatbot.storage.FakeStorage;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.google.cloud.storage.Bucket;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/** Tests for {@link GoogleStorageOutboundQueue}, against {@link FakeStorage}. */
+class GoogleStorageOutboundQueueTest {
+
+    /** The bucket shared by every queue. */
+    private Bucket bucket;
+
+    /** The mapper for the messages. */
+    private final ObjectMapper objectMapper =
+            new ObjectMapper().registerModule(new JavaTimeModule());
+
+    @Test
+    void loadsMessagesQueuedBeforeARestart()
+            throws Exception {
+        add(newQueue(), "spaces/a", 1);
+        add(newQueue(), "spaces/a", 2);
+        this.bucket.create(
+                GoogleStorageOutboundQueue.PREFIX + "bad",
+                "not a message".getBytes(StandardCharsets.UTF_8));
+        this.bucket.create(
+                "elsewhere.json",
+                "{}".getBytes(StandardCharsets.UTF_8));
+
+        final GoogleStorageOutboundQueue queue = newQueue();
+
+        assertThat(queue.pendingBySpace()).containsOnlyKeys("spaces/a");
+        assertThat(queue.pendingBySpace().get("spaces/a"))
+                .extracting(OutboundMessage::getNotificationId)
+                .containsExactly(1, 2);
+        assertThat(queue.highWaterMark("spaces/a")).isEqualTo(2);
+    }
+
+    @Test
+    void reloadReplacesOnlyTheMatchingSpaces()
+            throws Exception {
+        final GoogleStorageOutboundQueue mine = newQueue();
+        final GoogleStorageOutboundQueue theirs = newQueue();
+        add(mine, "spaces/a", 1);
+        add(theirs, "spaces/b", 7);
+        final OutboundMessage delivered = mine.pendingBySpace().get("spaces/a").get(0);
+        theirs.remove(delivered);
+
+        mine.reload("spaces/b"::equals);
+
+        assertThat(mine.highWaterMark("spaces/b")).isEqualTo(7);
+        // Not reloaded, so still tracked even though it's gone from storage
+        assertThat(mine.highWaterMark("spaces/a")).isEqualTo(1);
+
+        mine.reload(spaceId -> true);
+        assertThat(mine.pendingBySpace()).containsOnlyKeys("spaces/b");
+    }
+
+    @Test
+    void removeDeletesTheMessage()
+            throws Exception {
+        final GoogleStorageOutboundQueue queue = newQueue();
+        add(queue, "spaces/a", 1);
+        add(queue, "spaces/a", 2);
+        final OutboundMessage delivered = queue.pendingBySpace().get("spaces/a").get(0);
+
+        queue.remove(delivered);
+        // Already gone, as when another replica delivered it
+        newQueue().remove(delivered);
+
+        assertThat(queue.size()).isEqualTo(1);
+        assertThat(newQueue().pendingBySpace().get("spaces/a"))
+                .extracting(OutboundMessage::getNotificationId)
+                .containsExactly(2);
+        assertThat(listOutbox()).hasSize(1);
+    }
+
+    @Test
+    void writesNeverReplaceAQueuedMessage()
+            throws Exception {
+        final GoogleStorageOutboundQueue queue = newQueue();
+        add(queue, "spaces/a", 1);
+        final OutboundMessage queued = queue.pendingBySpace().get("spaces/a").get(0);
+        final OutboundMessage replacement =
+                OutboundMessage
+                        .builder()
+                        .id(queued.getId())
+                        .spaceId("spaces/a")
+                        .notificationId(2)
+                        .text("replacement")
+                        .build();
+
+        assertThatThrownBy(() -> queue.write(replacement))
+                .isInstanceOfSatisfying(
+                        StorageException.class,
+                        e -> assertThat(e.getCode()).isEqualTo(412));
+        assertThat(newQueue().pendingBySpace().get("spaces/a"))
+                .extracting(OutboundMessage::getNotificationId)
+                .containsExactly(1);
+    }
+
+    @BeforeEach
+    void setUp() {
+        this.bucket = FakeStorage.newBucket("outbox");
+    }
+
+    /**
+     * Queues a message.
+     *
+     * @param queue          The queue.
+     * @param spaceId        The space.
+     * @param notificationId The notification.
+     *
+     * @throws IOException on failure.
+     */
+    private static void add(
+            final OutboundQueue queue,
+            final String spaceId,
+            final int notificationId)
+            throws IOException {
+        queue.add(
+                Collections.singletonList(
+                        OutboundMessage
+                                .builder()
+                                .spaceId(spaceId)
+                                .notificationId(notificationId)
+                                .text("text")
+                                .build()));
+    }
+
+    /**
+     * Returns the names of the queued message blobs.
+     *
+     * @return The blob names.
+     */
+    private List<String> listOutbox() {
+        final List<String> names = new ArrayList<>();
+        this.bucket
+                .list(Storage.BlobListOption.prefix(GoogleStorageOutboundQueue.PREFIX))
+                .iterateAll()
+                .forEach(blob -> names.add(blob.getName()));
+        return names;
+    }
+
+    /**
+     * Returns a queue over the shared bucket, as another replica would have.
+     *
+     * @return The queue.
+     */
+    private GoogleStorageOutboundQueue newQueue() {
+        return new GoogleStorageOutboundQueue(
+                this.objectMapper,
+                this.bucket);
+    }
+}
@@ -0,0 +1,272 @@
+package mn.foreman.googelchatbot.outbox;
+
+import mn.foreman.googelchatbot.chat.ChatSender;
+import mn.foreman.googelchatbot.session.CursorCheckpointer;
+import mn.foreman.googelchatbot.session.Session;
+import mn.foreman.googelchatbot.session.SessionRepository;
+import mn.foreman.googelchatbot.sharding.ShardLeaseManager;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import com.google.cloud.storage.StorageException;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.InOrder;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+/** Tests for {@link OutboxDispatcher}. */
+class OutboxDispatcherTest {
+
+    /** The space being delivered to. */
+    private static final String SPACE = "spaces/abc";
+
+    /** Sends the messages. */
+    private ChatSender chatSender;
+
+    /** Checkpoints the cursors. */
+    private CursorCheckpointer cursorCheckpointer;
+
+    /** The registry for the delivery metrics. */
+    private MeterRegistry meterRegistry;
+
+    /** The queue of pending messages. */
+    private OutboundQueue outboundQueue;
+
+    /** The repository containing the sessions. */
+    private SessionRepository sessionRepository;
+
+    /** Decides which spaces are delivered to. */
+    private ShardLeaseManager shardLeaseManager;
+
+    /** The directory for the queue. */
+    @TempDir
+    Path directory;
+
+    @Test
+    void deliversInOrderAndAdvancesTheCursor()
+            throws Exception {
+        queue(1, 2);
+        whenSessionExists();
+
+        newDispatcher().dispatch();
+
+        final InOrder inOrder = inOrder(this.chatSender, this.cursorCheckpointer);
+        inOrder.verify(this.chatSender).send(SPACE, "1");
+        inOrder.verify(this.cursorCheckpointer).advance(SPACE, 1);
+        inOrder.verify(this.chatSender).send(SPACE, "2");
+        inOrder.verify(this.cursorCheckpointer).advance(SPACE, 2);
+        assertThat(this.outboundQueue.size()).isZero();
+    }
+
+    @Test
+    void dropsMessagesChatRejects()
+            throws Exception {
+        queue(1);
+        whenSessionExists();
+        doThrow(newFailure(404)).when(this.chatSender).send(anyString(), anyString());
+
+        newDispatcher().dispatch();
+
+        assertThat(this.outboundQueue.size()).isZero();
+        assertThat(this.meterRegistry.counter("outbox.dropped").count()).isEqualTo(1);
+        verify(this.cursorCheckpointer).advance(SPACE, 1);
+    }
+
+    @Test
+    void dropsMessagesForAForgottenSpace()
+            throws Exception {
+        queue(1, 2);
+        when(this.sessionRepository.findBySpaceId(SPACE)).thenReturn(Optional.empty());
+
+        newDispatcher().dispatch();
+
+        verifyNoInteractions(this.chatSender);
+        assertThat(this.outboundQueue.size()).isZero();
+        assertThat(this.meterRegistry.counter("outbox.dropped").count()).isEqualTo(2);
+    }
+
+    @Test
+    void keepsMessagesWhenTheSessionCantBeLookedUp()
+            throws Exception {
+        queue(1, 2);
+        when(this.sessionRepository.findBySpaceId(SPACE))
+                .thenThrow(new StorageException(503, "Unavailable"));
+
+        newDispatcher().dispatch();
+
+        verifyNoInteractions(this.chatSender);
+        assertThat(this.outboundQueue.size()).isEqualTo(2);
+        assertThat(this.meterRegistry.counter("outbox.dropped").count()).isZero();
+    }
+
+    @Test
+    void leavesSpacesItDoesntOwn()
+            throws Exception {
+        queue(1);
+        whenSessionExists();
+        this.shardLeaseManager = mock(ShardLeaseManager.class);
+
+        newDispatcher().dispatch();
+
+        verifyNoInteractions(this.chatSender);
+        assertThat(this.outboundQueue.size()).isEqualTo(1);
+    }
+
+    @Test
+    void retriesTransientFailuresInOrder()
+            throws Exception {
+        queue(1, 2);
+        whenSessionExists();
+        doThrow(newFailure(503)).when(this.chatSender).send(SPACE, "1");
+
+        newDispatcher().dispatch();
+
+        verify(this.chatSender, never()).send(SPACE, "2");
+        verify(this.cursorCheckpointer, never()).advance(anyString(), anyInt());
+        assertThat(this.outboundQueue.size()).isEqualTo(2);
+    }
+
+    @BeforeEach
+    void setUp()
+            throws Exception {
+        this.chatSender = mock(ChatSender.class);
+        this.cursorCheckpointer = mock(CursorCheckpointer.class);
+        this.meterRegistry = new SimpleMeterRegistry();
+        this.outboundQueue =
+                new FileOutboundQueue(
+                        this.directory,
+                        new ObjectMapper().registerModule(new JavaTimeModule()));
+        this.sessionRepository = mock(SessionRepository.class);
+        this.shardLeaseManager =
+                new ShardLeaseManager(
+                        false,
+                        null,
+                        null,
+                        "replica",
+                        1,
+                        Duration.ofMinutes(1),
+                        Duration.ofSeconds(15),
+                        () -> {
+                        },
+                        null,
+                        mock(ScheduledExecutorService.class),
+                        this.meterRegistry);
+    }
+
+    @Test
+    void stopsOnceTheSpaceIsHandedOver()
+            throws Exception {
+        queue(1, 2);
+        whenSessionExists();
+        this.shardLeaseManager = mock(ShardLeaseManager.class);
+        when(this.shardLeaseManager.owns(SPACE)).thenReturn(true);
+        final AtomicInteger fenced = new AtomicInteger();
+        when(this.shardLeaseManager.runIfOwned(eq(SPACE), any()))
+                .thenAnswer(invocation -> {
+                    if (fenced.getAndIncrement() > 0) {
+                        return false;
+                    }
+                    invocation.<ShardLeaseManager.OwnedTask>getArgument(1).run();
+                    return true;
+                });
+
+        newDispatcher().dispatch();
+
+        verify(this.chatSender).send(SPACE, "1");
+        verify(this.chatSender, never()).send(SPACE, "2");
+        assertThat(this.outboundQueue.size()).isEqualTo(1);
+    }
+
+    /**
+     * Returns a failure from the Chat API.
+     *
+     * @param status The status code.
+     *
+     * @return The failure.
+     */
+    private static HttpResponseException newFailure(final int status) {
+        return new HttpResponseException.Builder(
+                status,
+                "Failed",
+                new HttpHeaders())
+                .build();
+    }
+
+    /**
+     * Returns a dispatcher that delivers on the calling thread and is never
+     * scheduled.
+     *
+     * @return The dispatcher.
+     */
+    private OutboxDispatcher newDispatcher() {
+        return new OutboxDispatcher(
+                this.outboundQueue,
+                this.chatSender,
+                this.sessionRepository,
+                this.cursorCheckpointer,
+                this.shardLeaseManager,
+                MoreExecutors.newDirectExecutorService(),
+                mock(ScheduledExecutorService.class),
+                Duration.ZERO,
+                Duration.ofSeconds(5),
+                this.meterRegistry);
+    }
+
+    /**
+     * Queues a message for each of the provided notifications, with the
+     * notification ID as its text.
+     *
+     * @param notificationIds The notifications.
+     *
+     * @throws Exception on failure.
+     */
+    private void queue(final Integer... notificationIds)
+            throws Exception {
+        for (final int notificationId : Arrays.asList(notificationIds)) {
+            this.outboundQueue.add(
+                    Arrays.asList(
+                            OutboundMessage
+                                    .builder()
+                                    .spaceId(SPACE)
+                                    .notificationId(notificationId)
+                                    .text(Integer.toString(notificationId))
+                                    .build()));
+        }
+    }
+
+    /** Makes the space's session exist. */
+    private void whenSessionExists() {
+        when(this.sessionRepository.findBySpaceId(SPACE))
+                .thenReturn(
+                        Optional.of(
+                                Session
+                                        .builder()
+                                        .spaceId(SPACE)
+                                        .build()));
+    }
+}
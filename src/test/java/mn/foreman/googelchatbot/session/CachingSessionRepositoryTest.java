@@ -0,0 +1,229 @@
+package mn.foreman.googelchatbot.session;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/** Tests for {@link CachingSessionRepository}. */
+class CachingSessionRepositoryTest {
+
+    /** When the sessions registered. */
+    private static final Instant REGISTERED = Instant.parse("2022-06-01T00:00:00Z");
+
+    /** The repository being cached. */
+    private final SessionRepository delegate = mock(SessionRepository.class);
+
+    /** The threads that use the repository at the same time. */
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    /** The registry for the cache metrics. */
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void concurrentLookupsShareOneLoad()
+            throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        when(this.delegate.findAll()).thenAnswer(invocation -> {
+            started.countDown();
+            release.await();
+            return Collections.singletonList(session("spaces/a"));
+        });
+        final CachingSessionRepository repository = newRepository();
+
+        final List<Future<Optional<Session>>> lookups = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            lookups.add(this.executor.submit(() -> repository.findBySpaceId("spaces/a")));
+        }
+        assertThat(started.await(
+                5,
+                TimeUnit.SECONDS)).isTrue();
+        // Give the other lookups time to arrive while the load is blocked
+        Thread.sleep(100);
+        release.countDown();
+
+        for (final Future<Optional<Session>> lookup : lookups) {
+            assertThat(lookup.get(
+                    5,
+                    TimeUnit.SECONDS)).isPresent();
+        }
+        verify(this.delegate, times(1)).findAll();
+        verify(this.delegate, never()).findBySpaceId("spaces/a");
+    }
+
+    @Test
+    void concurrentReconcilesKeepWritesMadeDuringTheFirst()
+            throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger reads = new AtomicInteger();
+        when(this.delegate.findAll()).thenAnswer(invocation -> {
+            if (reads.getAndIncrement() == 0) {
+                // Read before the session below was made
+                started.countDown();
+                release.await();
+                return Collections.emptyList();
+            }
+            return Collections.singletonList(session("spaces/c"));
+        });
+        when(this.delegate.make(
+                "spaces/c",
+                1,
+                "key",
+                REGISTERED)).thenReturn(session("spaces/c"));
+        final CachingSessionRepository repository = newRepository();
+
+        final Future<?> first = this.executor.submit(() -> {
+            repository.reconcile();
+            return null;
+        });
+        assertThat(started.await(
+                5,
+                TimeUnit.SECONDS)).isTrue();
+        repository.make(
+                "spaces/c",
+                1,
+                "key",
+                REGISTERED);
+        final Future<?> second = this.executor.submit(() -> {
+            repository.reconcile();
+            return null;
+        });
+        // Give the second reconciliation time to start while the first is
+        // blocked
+        Thread.sleep(100);
+        release.countDown();
+        first.get(
+                5,
+                TimeUnit.SECONDS);
+        second.get(
+                5,
+                TimeUnit.SECONDS);
+
+        assertThat(repository.findBySpaceId("spaces/c")).isPresent();
+        verify(this.delegate, never()).findBySpaceId("spaces/c");
+    }
+
+    @Test
+    void conflictForgetsThatASpaceWasAbsent()
+            throws Exception {
+        when(this.delegate.findAll()).thenReturn(Collections.emptyList());
+        when(this.delegate.findBySpaceId("spaces/b")).thenReturn(
+                Optional.empty(),
+                Optional.of(session("spaces/b")));
+        when(this.delegate.make(
+                "spaces/b",
+                1,
+                "key",
+                REGISTERED)).thenThrow(new SessionConflictException(
+                        "spaces/b",
+                        null));
+        final CachingSessionRepository repository = newRepository();
+        assertThat(repository.findBySpaceId("spaces/b")).isEmpty();
+
+        // Registered through another replica since
+        assertThatThrownBy(() ->
+                repository.make(
+                        "spaces/b",
+                        1,
+                        "key",
+                        REGISTERED))
+                .isInstanceOf(SessionConflictException.class);
+
+        assertThat(repository.findBySpaceId("spaces/b")).isPresent();
+        verify(this.delegate, times(2)).findBySpaceId("spaces/b");
+    }
+
+    @Test
+    void findBySpaceIdLoadsBeforeLookingUp()
+            throws Exception {
+        when(this.delegate.findAll()).thenReturn(
+                Collections.singletonList(
+                        Session
+                                .builder()
+                                .spaceId("spaces/a")
+                                .clientId(1)
+                                .apiKey("key")
+                                .dateRegistered(Instant.parse("2022-06-01T00:00:00Z"))
+                                .build()));
+        final CachingSessionRepository repository = newRepository();
+
+        assertThat(repository.findBySpaceId("spaces/a")).isPresent();
+
+        verify(this.delegate).findAll();
+        verify(this.delegate, never()).findBySpaceId("spaces/a");
+    }
+
+    @Test
+    void findBySpaceIdRemembersAbsentSpaces()
+            throws Exception {
+        when(this.delegate.findAll()).thenReturn(Collections.emptyList());
+        when(this.delegate.findBySpaceId("spaces/b")).thenReturn(Optional.empty());
+        final CachingSessionRepository repository = newRepository();
+
+        assertThat(repository.findBySpaceId("spaces/b")).isEmpty();
+        assertThat(repository.findBySpaceId("spaces/b")).isEmpty();
+
+        verify(this.delegate, times(1)).findAll();
+        verify(this.delegate, times(1)).findBySpaceId("spaces/b");
+        assertThat(this.meterRegistry.counter("sessions.lookups.absent").count())
+                .isEqualTo(1);
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Returns a session for the provided space.
+     *
+     * @param spaceId The space ID.
+     *
+     * @return The session.
+     */
+    private static Session session(final String spaceId) {
+        return Session
+                .builder()
+                .spaceId(spaceId)
+                .clientId(1)
+                .apiKey("key")
+                .dateRegistered(REGISTERED)
+                .build();
+    }
+
+    /**
+     * Returns a repository over the mocked delegate.
+     *
+     * @return The repository.
+     */
+    private CachingSessionRepository newRepository() {
+        return new CachingSessionRepository(
+                this.delegate,
+                Duration.ofMinutes(5),
+                100,
+                this.meterRegistry);
+    }
+}
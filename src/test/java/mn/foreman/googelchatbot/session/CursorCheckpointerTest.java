@@ -0,0 +1,235 @@
+package mn.foreman.googelchatbot.session;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/** Tests for {@link CursorCheckpointer}. */
+class CursorCheckpointerTest {
+
+    /** When the sessions registered. */
+    private static final Instant REGISTERED = Instant.parse("2022-06-01T00:00:00Z");
+
+    /** The checkpointer being tested. */
+    private CursorCheckpointer checkpointer;
+
+    /** The registry for the checkpoint metrics. */
+    private MeterRegistry meterRegistry;
+
+    /** The repository the cursors are written to. */
+    private FakeSessionRepository sessionRepository;
+
+    @Test
+    void advancesAreCoalescedIntoOneWrite() {
+        this.checkpointer.advance(
+                "spaces/a",
+                1);
+        this.checkpointer.advance(
+                "spaces/a",
+                2);
+        this.checkpointer.advance(
+                "spaces/b",
+                7);
+        this.checkpointer.advance(
+                "spaces/a",
+                3);
+
+        this.checkpointer.flush();
+        this.checkpointer.flush();
+
+        assertThat(this.sessionRepository.batches).hasSize(1);
+        assertThat(this.sessionRepository.batches.get(0)).hasSize(2);
+        assertThat(cursorOf("spaces/a")).isEqualTo(3);
+        assertThat(cursorOf("spaces/b")).isEqualTo(7);
+        assertThat(this.meterRegistry.counter("session.cursors.coalesced").count())
+                .isEqualTo(2);
+        assertThat(this.meterRegistry.counter("session.cursors.written").count())
+                .isEqualTo(2);
+    }
+
+    @Test
+    void advancesKeepTheFurthestCursor() {
+        this.checkpointer.advance(
+                "spaces/a",
+                5);
+        this.checkpointer.advance(
+                "spaces/a",
+                3);
+        this.checkpointer.flush();
+
+        // Behind what's stored, so there's nothing to write
+        this.checkpointer.advance(
+                "spaces/a",
+                4);
+        this.checkpointer.flush();
+
+        assertThat(cursorOf("spaces/a")).isEqualTo(5);
+        assertThat(this.sessionRepository.batches).hasSize(1);
+    }
+
+    @Test
+    void failedFlushesAreRetried() {
+        this.checkpointer.advance(
+                "spaces/a",
+                5);
+        this.sessionRepository.failing = true;
+        this.checkpointer.flush();
+
+        this.checkpointer.advance(
+                "spaces/a",
+                4);
+        this.sessionRepository.failing = false;
+        this.checkpointer.flush();
+
+        assertThat(cursorOf("spaces/a")).isEqualTo(5);
+        assertThat(this.sessionRepository.batches).hasSize(1);
+    }
+
+    @Test
+    void forgottenSpacesAreSkipped() {
+        this.checkpointer.advance(
+                "spaces/unknown",
+                5);
+
+        this.checkpointer.flush();
+
+        assertThat(this.sessionRepository.batches).isEmpty();
+        assertThat(this.meterRegistry.get("session.cursors.pending").gauge().value())
+                .isZero();
+    }
+
+    @Test
+    void pendingCursorsAreWrittenOnShutdown() {
+        try (final AnnotationConfigApplicationContext context =
+                     new AnnotationConfigApplicationContext()) {
+            context.registerBean(
+                    CursorCheckpointer.class,
+                    () -> this.checkpointer);
+            context.refresh();
+
+            this.checkpointer.advance(
+                    "spaces/a",
+                    5);
+        }
+
+        assertThat(cursorOf("spaces/a")).isEqualTo(5);
+    }
+
+    @BeforeEach
+    void setUp() {
+        this.meterRegistry = new SimpleMeterRegistry();
+        this.sessionRepository = new FakeSessionRepository();
+        for (final String spaceId : new String[]{"spaces/a", "spaces/b"}) {
+            this.sessionRepository.make(
+                    spaceId,
+                    1,
+                    "key",
+                    REGISTERED);
+        }
+        this.checkpointer =
+                new CursorCheckpointer(
+                        this.sessionRepository,
+                        this.meterRegistry);
+    }
+
+    /**
+     * Returns the stored cursor of the provided space.
+     *
+     * @param spaceId The space.
+     *
+     * @return The last notification ID.
+     */
+    private int cursorOf(final String spaceId) {
+        return this.sessionRepository
+                .findBySpaceId(spaceId)
+                .orElseThrow()
+                .getLastNotificationId();
+    }
+
+    /** A {@link SessionRepository} in memory that records cursor writes. */
+    private static class FakeSessionRepository
+            implements SessionRepository {
+
+        /** Every batch of cursors that was written. */
+        private final List<List<SessionCursor>> batches = new ArrayList<>();
+
+        /** Whether writes fail. */
+        private volatile boolean failing;
+
+        /** The sessions, by space. */
+        private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+        @Override
+        public void delete(final String spaceId) {
+            this.sessions.remove(spaceId);
+        }
+
+        @Override
+        public List<Session> findAll() {
+            return new ArrayList<>(this.sessions.values());
+        }
+
+        @Override
+        public Optional<Session> findBySpaceId(final String spaceId) {
+            return Optional
+                    .ofNullable(this.sessions.get(spaceId))
+                    .map(session -> session.toBuilder().build());
+        }
+
+        @Override
+        public Session make(
+                final String spaceId,
+                final int clientId,
+                final String apiKey,
+                final Instant dateRegistered) {
+            final Session session =
+                    Session
+                            .builder()
+                            .spaceId(spaceId)
+                            .clientId(clientId)
+                            .apiKey(apiKey)
+                            .dateRegistered(dateRegistered)
+                            .build();
+            this.sessions.put(
+                    spaceId,
+                    session);
+            return session;
+        }
+
+        @Override
+        public void save(
+                final String spaceId,
+                final Session session)
+                throws IOException {
+            if (this.failing) {
+                throw new IOException("Unavailable");
+            }
+            this.sessions.computeIfPresent(
+                    spaceId,
+                    (key, stored) -> session.toBuilder().build());
+        }
+
+        @Override
+        public void saveCursors(final Collection<SessionCursor> cursors)
+                throws IOException {
+            if (this.failing) {
+                throw new IOException("Unavailable");
+            }
+            this.batches.add(new ArrayList<>(cursors));
+            SessionRepository.super.saveCursors(cursors);
+        }
+    }
+}
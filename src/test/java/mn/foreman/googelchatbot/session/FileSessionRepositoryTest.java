@@ -0,0 +1,235 @@
+package mn.foreman.googelchatbot.session;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/** Tests for {@link FileSessionRepository}. */
+class FileSessionRepositoryTest {
+
+    /** When the sessions registered. */
+    private static final Instant REGISTERED = Instant.parse("2022-06-01T00:00:00Z");
+
+    /** The executor that would compact the log in the background. */
+    private ScheduledExecutorService compactor;
+
+    /** The directory for the log. */
+    @TempDir
+    Path directory;
+
+    /** The registry for the log metrics. */
+    private MeterRegistry meterRegistry;
+
+    /** The object mapper. */
+    private final ObjectMapper objectMapper =
+            new ObjectMapper()
+                    .findAndRegisterModules()
+                    .registerModule(new JavaTimeModule());
+
+    @Test
+    void compactKeepsEverySession()
+            throws Exception {
+        final FileSessionRepository repository = open();
+        for (int i = 0; i < 10; i++) {
+            make(
+                    repository,
+                    "spaces/space" + i);
+        }
+        for (int i = 0; i < 10; i++) {
+            save(
+                    repository,
+                    "spaces/space" + i,
+                    i);
+        }
+
+        repository.compact();
+        save(
+                repository,
+                "spaces/space0",
+                100);
+        repository.close();
+
+        assertThat(this.meterRegistry.counter("sessions.log.compactions").count())
+                .isEqualTo(1);
+        final FileSessionRepository recovered = open();
+        assertThat(recovered.findAll()).hasSize(10);
+        assertThat(recovered.findBySpaceId("spaces/space0"))
+                .hasValueSatisfying(session ->
+                        assertThat(session.getLastNotificationId()).isEqualTo(100));
+        assertThat(recovered.findBySpaceId("spaces/space9"))
+                .hasValueSatisfying(session ->
+                        assertThat(session.getLastNotificationId()).isEqualTo(9));
+        assertThat(this.directory.resolve("sessions.log.compact")).doesNotExist();
+    }
+
+    @Test
+    void concurrentWritersShareSyncs()
+            throws Exception {
+        final FileSessionRepository repository = open();
+        final ExecutorService writers = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<?>> writes = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                final String spaceId = "spaces/space" + i;
+                writes.add(writers.submit(() -> {
+                    make(
+                            repository,
+                            spaceId);
+                    // Visible as soon as the write returns
+                    assertThat(repository.findBySpaceId(spaceId)).isPresent();
+                    return null;
+                }));
+            }
+            for (final Future<?> write : writes) {
+                write.get();
+            }
+        } finally {
+            writers.shutdownNow();
+        }
+
+        assertThat(repository.findAll()).hasSize(200);
+        assertThat(this.meterRegistry.counter("sessions.log.fsyncs").count())
+                .isLessThanOrEqualTo(200);
+    }
+
+    @Test
+    void recoversUpToATornRecord()
+            throws Exception {
+        final FileSessionRepository repository = open();
+        make(
+                repository,
+                "spaces/a");
+        make(
+                repository,
+                "spaces/b");
+        repository.delete("spaces/a");
+        repository.close();
+        final Path log = this.directory.resolve("sessions.log");
+        final long size = Files.size(log);
+        Files.write(
+                log,
+                new byte[]{0, 0, 1, 0, 42},
+                StandardOpenOption.APPEND);
+
+        final FileSessionRepository recovered = open();
+
+        assertThat(recovered.findAll())
+                .extracting(Session::getSpaceId)
+                .containsExactly("spaces/b");
+        assertThat(Files.size(log)).isEqualTo(size);
+        make(
+                recovered,
+                "spaces/c");
+        recovered.close();
+        assertThat(open().findAll()).hasSize(2);
+    }
+
+    @Test
+    void saveIgnoresMissingSessions()
+            throws Exception {
+        final FileSessionRepository repository = open();
+
+        save(
+                repository,
+                "spaces/missing",
+                1);
+
+        assertThat(repository.findAll()).isEmpty();
+        assertThat(Files.size(this.directory.resolve("sessions.log"))).isZero();
+    }
+
+    @BeforeEach
+    void setUp() {
+        this.compactor = Executors.newSingleThreadScheduledExecutor();
+        this.meterRegistry = new SimpleMeterRegistry();
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.compactor.shutdownNow();
+    }
+
+    /**
+     * Makes a session for the provided space.
+     *
+     * @param repository The repository.
+     * @param spaceId    The space ID.
+     *
+     * @throws IOException on failure.
+     */
+    private static void make(
+            final SessionRepository repository,
+            final String spaceId)
+            throws IOException {
+        repository.make(
+                spaceId,
+                1,
+                "key",
+                REGISTERED);
+    }
+
+    /**
+     * Opens the log in the temporary directory. It compacts whenever asked
+     * to, but never on its own.
+     *
+     * @return The repository.
+     *
+     * @throws IOException on failure.
+     */
+    private FileSessionRepository open()
+            throws IOException {
+        return new FileSessionRepository(
+                this.directory.resolve("sessions.log"),
+                this.objectMapper,
+                1,
+                this.compactor,
+                Duration.ofHours(1),
+                this.meterRegistry);
+    }
+
+    /**
+     * Saves the session for the provided space with the provided cursor.
+     *
+     * @param repository         The repository.
+     * @param spaceId            The space ID.
+     * @param lastNotificationId The cursor.
+     *
+     * @throws IOException on failure.
+     */
+    private static void save(
+            final SessionRepository repository,
+            final String spaceId,
+            final int lastNotificationId)
+            throws IOException {
+        repository.save(
+                spaceId,
+                Session
+                        .builder()
+                        .apiKey("key")
+                        .clientId(1)
+                        .dateRegistered(REGISTERED)
+                        .lastNotificationId(lastNotificationId)
+                        .spaceId(spaceId)
+                        .build());
+    }
+}
@@ -0,0 +1,410 @@
+package mn.foreman.googelchatbot.session;
+
+import mn.foreman.googelchatbot.sharding.ShardLeaseManager;
+import mn.foreman.googelchatbot.storage.FakeStorage;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.Bucket;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.AdditionalAnswers;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/** Tests for {@link GoogleStorageRepository}, against {@link FakeStorage}. */
+class GoogleStorageRepositoryTest {
+
+    /** When the sessions registered. */
+    private static final Instant REGISTERED = Instant.parse("2022-06-01T00:00:00Z");
+
+    /** The number of cursor tables. */
+    private static final int SHARDS = 8;
+
+    /** The bucket shared by every repository. */
+    private Bucket bucket;
+
+    /** The executor that downloads sessions. */
+    private ExecutorService loadExecutor;
+
+    /** The registry for the repository metrics. */
+    private MeterRegistry meterRegistry;
+
+    /** The object mapper. */
+    private final ObjectMapper objectMapper =
+            new ObjectMapper()
+                    .findAndRegisterModules()
+                    .registerModule(new JavaTimeModule());
+
+    @Test
+    void deleteDropsTheCursor()
+            throws Exception {
+        final GoogleStorageRepository repository = newRepository();
+        for (final String spaceId : new String[]{"spaces/a", "spaces/b"}) {
+            repository.make(
+                    spaceId,
+                    1,
+                    "key",
+                    REGISTERED);
+        }
+        repository.saveCursors(
+                Arrays.asList(
+                        new SessionCursor(
+                                REGISTERED,
+                                5,
+                                "spaces/a"),
+                        new SessionCursor(
+                                REGISTERED,
+                                7,
+                                "spaces/b")));
+
+        newRepository().delete("spaces/a");
+
+        assertThat(readTable("spaces/a")).doesNotContainKey("spaces/a");
+        assertThat(readTable("spaces/b")).containsKey("spaces/b");
+        assertThat(newRepository().findBySpaceId("spaces/b"))
+                .hasValueSatisfying(session ->
+                        assertThat(session.getLastNotificationId()).isEqualTo(7));
+    }
+
+    @Test
+    void deleteSucceedsWhenTheCursorCantBeDropped()
+            throws Exception {
+        final GoogleStorageRepository repository = newRepository();
+        repository.make(
+                "spaces/a",
+                1,
+                "key",
+                REGISTERED);
+        repository.saveCursors(
+                Collections.singletonList(
+                        new SessionCursor(
+                                REGISTERED,
+                                5,
+                                "spaces/a")));
+        final Bucket failingCursors =
+                mock(
+                        Bucket.class,
+                        AdditionalAnswers.delegatesTo(this.bucket));
+        doThrow(new StorageException(
+                503,
+                "Unavailable"))
+                .when(failingCursors)
+                .create(
+                        startsWith("cursors/"),
+                        any(byte[].class),
+                        anyString(),
+                        any());
+
+        newRepository(failingCursors).delete("spaces/a");
+
+        assertThat(newRepository().findBySpaceId("spaces/a")).isEmpty();
+        assertThat(this.meterRegistry.counter("sessions.cursors.prune.failures").count())
+                .isEqualTo(1);
+    }
+
+    @Test
+    void findAllHandsOverPagesAndSkipsOtherPrefixes()
+            throws Exception {
+        final GoogleStorageRepository repository = newRepository();
+        for (int i = 0; i < 25; i++) {
+            repository.make(
+                    "spaces/space" + i,
+                    i,
+                    "key" + i,
+                    REGISTERED);
+        }
+        repository.saveCursors(
+                Collections.singletonList(
+                        new SessionCursor(
+                                REGISTERED,
+                                42,
+                                "spaces/space3")));
+
+        final List<Integer> pageSizes = new ArrayList<>();
+        final List<Session> sessions = new ArrayList<>();
+        newRepository().forEachPage(
+                10,
+                page -> {
+                    pageSizes.add(page.size());
+                    sessions.addAll(page);
+                });
+
+        // The cursors/ prefix takes up a slot in a listing page
+        assertThat(pageSizes)
+                .hasSize(3)
+                .allMatch(size -> size <= 10);
+        assertThat(sessions).hasSize(25);
+        assertThat(sessions)
+                .filteredOn(session -> session.getSpaceId().equals("spaces/space3"))
+                .extracting(Session::getLastNotificationId)
+                .containsExactly(42);
+    }
+
+    @Test
+    void findAllSkipsUnreadableBlobs()
+            throws Exception {
+        final GoogleStorageRepository repository = newRepository();
+        repository.make(
+                "spaces/good",
+                1,
+                "key",
+                REGISTERED);
+        this.bucket.create(
+                "bad.json",
+                "not a session".getBytes(StandardCharsets.UTF_8));
+
+        assertThat(repository.findAll())
+                .extracting(Session::getSpaceId)
+                .containsExactly("spaces/good");
+        assertThat(this.meterRegistry.counter("sessions.load.failures").count())
+                .isEqualTo(1);
+    }
+
+    @Test
+    void findBySpaceIdFailsWhenTheDownloadFails() {
+        final Bucket bucket = mock(Bucket.class);
+        final Blob blob = mock(Blob.class);
+        when(bucket.get("abc.json")).thenReturn(blob);
+        when(blob.getContent()).thenThrow(
+                new StorageException(
+                        503,
+                        "Unavailable"));
+
+        assertThatThrownBy(() ->
+                newRepository(bucket).findBySpaceId("spaces/abc"))
+                .isInstanceOf(StorageException.class);
+        assertThat(this.meterRegistry.counter("sessions.load.failures").count())
+                .isZero();
+    }
+
+    @Test
+    void findBySpaceIdRereadsABlobRewrittenWhileReading()
+            throws Exception {
+        final Bucket bucket = mock(Bucket.class);
+        final Blob stale = mock(Blob.class);
+        final Blob current = mock(Blob.class);
+        when(bucket.get("abc.json")).thenReturn(
+                stale,
+                current);
+        when(stale.getName()).thenReturn("abc.json");
+        when(stale.getContent()).thenThrow(
+                new StorageException(
+                        404,
+                        "Not Found"));
+        when(current.getName()).thenReturn("abc.json");
+        when(current.getContent()).thenReturn(
+                this.objectMapper.writeValueAsBytes(
+                        Session
+                                .builder()
+                                .spaceId("spaces/abc")
+                                .clientId(1)
+                                .apiKey("key")
+                                .dateRegistered(REGISTERED)
+                                .build()));
+
+        assertThat(newRepository(bucket).findBySpaceId("spaces/abc"))
+                .hasValueSatisfying(session ->
+                        assertThat(session.getClientId()).isEqualTo(1));
+    }
+
+    @Test
+    void makeConflictsWithASessionMadeElsewhere()
+            throws Exception {
+        newRepository().make(
+                "spaces/abc",
+                1,
+                "key",
+                REGISTERED);
+
+        assertThatThrownBy(() ->
+                newRepository().make(
+                        "spaces/abc",
+                        2,
+                        "other",
+                        REGISTERED))
+                .isInstanceOf(SessionConflictException.class);
+    }
+
+    @Test
+    void makeThenFind()
+            throws Exception {
+        newRepository().make(
+                "spaces/ABC",
+                1,
+                "key",
+                REGISTERED);
+
+        assertThat(newRepository().findBySpaceId("spaces/ABC"))
+                .hasValueSatisfying(session -> {
+                    assertThat(session.getClientId()).isEqualTo(1);
+                    assertThat(session.getApiKey()).isEqualTo("key");
+                    assertThat(session.getDateRegistered()).isEqualTo(REGISTERED);
+                });
+        assertThat(newRepository().findBySpaceId("spaces/missing")).isEmpty();
+    }
+
+    @Test
+    void saveCursorsOnlyWritesTheTablesOfTheSpacesInTheBatch()
+            throws Exception {
+        final String first = "spaces/a";
+        String second = "spaces/b";
+        for (int i = 0; shardOf(second) == shardOf(first); i++) {
+            second = "spaces/b" + i;
+        }
+
+        newRepository().saveCursors(
+                Arrays.asList(
+                        new SessionCursor(
+                                REGISTERED,
+                                5,
+                                first),
+                        new SessionCursor(
+                                REGISTERED,
+                                7,
+                                second)));
+
+        assertThat(readTable(first)).containsOnlyKeys(first);
+        assertThat(readTable(second)).containsOnlyKeys(second);
+        final List<String> tables = new ArrayList<>();
+        this.bucket
+                .list(Storage.BlobListOption.prefix("cursors/"))
+                .iterateAll()
+                .forEach(blob -> tables.add(blob.getName()));
+        assertThat(tables).hasSize(2);
+    }
+
+    @Test
+    void saveConflictsWithASessionChangedElsewhere()
+            throws Exception {
+        final GoogleStorageRepository first = newRepository();
+        final GoogleStorageRepository second = newRepository();
+        first.make(
+                "spaces/abc",
+                1,
+                "key",
+                REGISTERED);
+        final Session session = second.findBySpaceId("spaces/abc").orElseThrow();
+        first.save(
+                "spaces/abc",
+                session.toBuilder().lastNotificationId(5).build());
+
+        assertThatThrownBy(() ->
+                second.save(
+                        "spaces/abc",
+                        session.toBuilder().lastNotificationId(6).build()))
+                .isInstanceOf(SessionConflictException.class);
+    }
+
+    @Test
+    void saveIgnoresADeletedSession()
+            throws Exception {
+        final GoogleStorageRepository first = newRepository();
+        first.make(
+                "spaces/abc",
+                1,
+                "key",
+                REGISTERED);
+        final Session session = first.findBySpaceId("spaces/abc").orElseThrow();
+        newRepository().delete("spaces/abc");
+
+        first.save(
+                "spaces/abc",
+                session);
+
+        assertThat(newRepository().findBySpaceId("spaces/abc")).isEmpty();
+    }
+
+    @BeforeEach
+    void setUp() {
+        this.bucket = FakeStorage.newBucket("sessions");
+        this.loadExecutor = Executors.newFixedThreadPool(4);
+        this.meterRegistry = new SimpleMeterRegistry();
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.loadExecutor.shutdownNow();
+    }
+
+    /**
+     * Returns the shard, and cursor table, of the provided space.
+     *
+     * @param spaceId The space ID.
+     *
+     * @return The shard.
+     */
+    private static int shardOf(final String spaceId) {
+        return ShardLeaseManager.shardOf(
+                spaceId,
+                SHARDS);
+    }
+
+    /**
+     * Reads the cursor table holding the provided space.
+     *
+     * @param spaceId The space ID.
+     *
+     * @return The cursor table.
+     *
+     * @throws IOException on failure.
+     */
+    private Map<String, Object> readTable(final String spaceId)
+            throws IOException {
+        return this.objectMapper.readValue(
+                this.bucket.get("cursors/" + shardOf(spaceId) + ".json").getContent(),
+                new TypeReference<Map<String, Object>>() {
+                });
+    }
+
+    /**
+     * Returns a repository over the shared bucket, as another replica would
+     * have.
+     *
+     * @return The repository.
+     */
+    private GoogleStorageRepository newRepository() {
+        return newRepository(this.bucket);
+    }
+
+    /**
+     * Returns a repository over the provided bucket.
+     *
+     * @param bucket The bucket.
+     *
+     * @return The repository.
+     */
+    private GoogleStorageRepository newRepository(final Bucket bucket) {
+        return new GoogleStorageRepository(
+                this.objectMapper,
+                bucket,
+                SHARDS,
+                this.loadExecutor,
+                this.meterRegistry);
+    }
+}
@@ -0,0 +1,192 @@
+package mn.foreman.googelchatbot.session;
+
+import mn.foreman.googelchatbot.storage.InMemoryBlobStore;
+import mn.foreman.googelchatbot.storage.StoredBlob;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/** Tests for {@link SnapshotSessionRepository}. */
+class SnapshotSessionRepositoryTest {
+
+    /** When the sessions registered. */
+    private static final Instant REGISTERED = Instant.parse("2022-06-01T00:00:00Z");
+
+    /** The executor that would compact the log in the background. */
+    private ScheduledExecutorService compactor;
+
+    /** The object mapper. */
+    private final ObjectMapper objectMapper =
+            new ObjectMapper()
+                    .findAndRegisterModules()
+                    .registerModule(new JavaTimeModule());
+
+    /** The store shared by every repository. */
+    private RacingBlobStore store;
+
+    @Test
+    void compactFoldsTheLogIntoTheSnapshot()
+            throws Exception {
+        final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+        final SnapshotSessionRepository repository = newRepository(meterRegistry);
+        for (int i = 0; i < 3; i++) {
+            make(
+                    repository,
+                    "spaces/space" + i);
+        }
+
+        repository.compact();
+
+        assertThat(this.store.list(SnapshotSessionRepository.PREFIX + "log/"))
+                .hasSize(1);
+        assertThat(meterRegistry.counter("sessions.log.compactions").count())
+                .isEqualTo(1);
+        assertThat(newRepository(new SimpleMeterRegistry()).findAll())
+                .hasSize(3);
+    }
+
+    @Test
+    void compactStopsWhenAnotherWriterCompactsFirst()
+            throws Exception {
+        final MeterRegistry firstRegistry = new SimpleMeterRegistry();
+        final MeterRegistry secondRegistry = new SimpleMeterRegistry();
+        final SnapshotSessionRepository first = newRepository(firstRegistry);
+        final SnapshotSessionRepository second = newRepository(secondRegistry);
+        for (int i = 0; i < 3; i++) {
+            make(
+                    first,
+                    "spaces/space" + i);
+        }
+        first.compact();
+
+        make(
+                first,
+                "spaces/space3");
+        make(
+                first,
+                "spaces/space4");
+        this.store.beforeSnapshotRead = () -> {
+            try {
+                make(
+                        second,
+                        "spaces/space5");
+                second.compact();
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+        first.compact();
+
+        // The newer snapshot survived, and the log behind it is intact
+        assertThat(firstRegistry.counter("sessions.log.compactions").count())
+                .isEqualTo(1);
+        assertThat(secondRegistry.counter("sessions.log.compactions").count())
+                .isEqualTo(1);
+        assertThat(first.findAll()).hasSize(6);
+        assertThat(newRepository(new SimpleMeterRegistry()).findAll())
+                .hasSize(6);
+    }
+
+    @Test
+    void compactWaitsForTheThreshold()
+            throws Exception {
+        final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+        final SnapshotSessionRepository repository = newRepository(meterRegistry);
+        make(
+                repository,
+                "spaces/space0");
+
+        repository.compact();
+
+        assertThat(this.store.get(SnapshotSessionRepository.PREFIX + "snapshot.json"))
+                .isEmpty();
+        assertThat(meterRegistry.counter("sessions.log.compactions").count())
+                .isZero();
+    }
+
+    @BeforeEach
+    void setUp() {
+        this.compactor = Executors.newSingleThreadScheduledExecutor();
+        this.store = new RacingBlobStore();
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.compactor.shutdownNow();
+    }
+
+    /**
+     * Returns a repository over the shared store, as another replica would
+     * have. It compacts after two changes, but only when asked to.
+     *
+     * @param meterRegistry The registry for the repository metrics.
+     *
+     * @return The repository.
+     */
+    private SnapshotSessionRepository newRepository(final MeterRegistry meterRegistry) {
+        return new SnapshotSessionRepository(
+                this.objectMapper,
+                this.store,
+                2,
+                this.compactor,
+                Duration.ofHours(1),
+                meterRegistry);
+    }
+
+    /**
+     * Makes a session for the provided space.
+     *
+     * @param repository The repository.
+     * @param spaceId    The space ID.
+     *
+     * @throws IOException on failure.
+     */
+    private static void make(
+            final SessionRepository repository,
+            final String spaceId)
+            throws IOException {
+        repository.make(
+                spaceId,
+                1,
+                "key",
+                REGISTERED);
+    }
+
+    /**
+     * An {@link InMemoryBlobStore} that lets another writer in right after
+     * the snapshot is read.
+     */
+    private static class RacingBlobStore
+            extends InMemoryBlobStore {
+
+        /** What to run the next time the snapshot is read. */
+        private Runnable beforeSnapshotRead;
+
+        @Override
+        public Optional<StoredBlob> get(final String name)
+                throws IOException {
+            final Optional<StoredBlob> blob = super.get(name);
+            final Runnable racer = this.beforeSnapshotRead;
+            if (racer != null && name.endsWith("snapshot.json")) {
+                this.beforeSnapshotRead = null;
+                racer.run();
+            }
+            return blob;
+        }
+    }
+}
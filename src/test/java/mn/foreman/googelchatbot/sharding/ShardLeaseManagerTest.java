@@ -0,0 +1,654 @@
+package mn.foreman.googelchatbot.sharding;
+
+import mn.foreman.api.ForemanApi;
+import mn.foreman.api.endpoints.notifications.Notifications;
+import mn.foreman.googelchatbot.chat.ChatSender;
+import mn.foreman.googelchatbot.notifications.MessageBatcher;
+import mn.foreman.googelchatbot.notifications.NotificationFanOut;
+import mn.foreman.googelchatbot.notifications.Notifier;
+import mn.foreman.googelchatbot.notifications.SessionScheduler;
+import mn.foreman.googelchatbot.outbox.GoogleStorageOutboundQueue;
+import mn.foreman.googelchatbot.outbox.OutboundQueue;
+import mn.foreman.googelchatbot.outbox.OutboxDispatcher;
+import mn.foreman.googelchatbot.session.CachingSessionRepository;
+import mn.foreman.googelchatbot.session.CursorCheckpointer;
+import mn.foreman.googelchatbot.session.SessionRepository;
+import mn.foreman.googelchatbot.session.SnapshotSessionRepository;
+import mn.foreman.googelchatbot.storage.FakeStorage;
+import mn.foreman.googelchatbot.storage.InMemoryBlobStore;
+import mn.foreman.googelchatbot.utils.ForemanApiCache;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.google.cloud.storage.Bucket;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for {@link ShardLeaseManager}. Several replicas, each wired from the
+ * bot's own {@link Notifier}, {@link OutboxDispatcher} and
+ * {@link CursorCheckpointer}, share one lease store, one session store, one
+ * outbox and one simulated Foreman feed. Every notification must be
+ * delivered at least once as replicas join, rebalance and crash.
+ *
+ * <p>Cursors are checkpointed in the background, so a replica that crashes
+ * loses the cursors it hadn't written yet, and its spaces are notified
+ * again from their last checkpoint by whoever takes them over: everything it
+ * delivered since its last flush, or since it last gave up a shard, is
+ * delivered twice. Messages it had queued but not delivered are not, since
+ * the outbox outlives it.</p>
+ */
+class ShardLeaseManagerTest {
+
+    /** Pulls the notification ID out of a delivered message. */
+    private static final Pattern ID = Pattern.compile("\\*(\\d+)\\*");
+
+    /** The shortest interval between checks of a session. */
+    private static final Duration INTERVAL = Duration.ofMillis(1);
+
+    /** How long a lease lasts without being renewed. */
+    private static final Duration LEASE = Duration.ofSeconds(60);
+
+    /** When the sessions registered. */
+    private static final Instant REGISTERED = Instant.parse("2022-06-01T00:00:00Z");
+
+    /** How often leases are renewed. */
+    private static final Duration RENEW = Duration.ofSeconds(15);
+
+    /** The number of shards. */
+    private static final int SHARDS = 8;
+
+    /** The spaces being notified. */
+    private static final List<String> SPACES =
+            IntStream
+                    .range(0, 64)
+                    .mapToObj(i -> "spaces/space" + i)
+                    .collect(Collectors.toList());
+
+    /** The clock shared by every replica. */
+    private final MutableClock clock = new MutableClock();
+
+    /** Every delivered notification, by space. */
+    private final Map<String, List<Integer>> delivered = new HashMap<>();
+
+    /** The Foreman API clients, shared by every replica. */
+    private ForemanApiCache foremanApiCache;
+
+    /** The latest notification for each space. */
+    private final Map<String, Integer> latest = new HashMap<>();
+
+    /** The store for the leases, shared by every replica. */
+    private InMemoryBlobStore leaseStore;
+
+    /** The bucket holding the outbox, shared by every replica. */
+    private Bucket outboxBucket;
+
+    /** Every replica that was started. */
+    private final List<Replica> replicas = new ArrayList<>();
+
+    /** The store for the sessions and their cursors, shared by every replica. */
+    private InMemoryBlobStore sessionStore;
+
+    @Test
+    void disabledOwnsEverything()
+            throws Exception {
+        final ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        final ShardLeaseManager manager =
+                new ShardLeaseManager(
+                        false,
+                        null,
+                        new ObjectMapper(),
+                        "a",
+                        SHARDS,
+                        LEASE,
+                        RENEW,
+                        () -> {
+                        },
+                        this.clock,
+                        scheduler,
+                        new SimpleMeterRegistry());
+
+        final AtomicBoolean ran = new AtomicBoolean();
+        assertThat(manager.runIfOwned("spaces/any", () -> ran.set(true))).isTrue();
+        assertThat(ran).isTrue();
+        assertThat(manager.owns("spaces/any")).isTrue();
+        verify(scheduler, never()).scheduleWithFixedDelay(
+                any(),
+                anyLong(),
+                anyLong(),
+                any());
+    }
+
+    @Test
+    void deliversAtLeastOnceAcrossJoinRebalanceAndCrash()
+            throws Exception {
+        final Replica a = new Replica("a");
+        a.manager.rebalance();
+        assertThat(a.manager.activeShards()).hasSize(SHARDS);
+        notifyAll(1);
+        a.poll();
+
+        // b joins - a gives up half of its shards, checkpointing its cursors
+        // as it does, then b takes them
+        final Replica b = new Replica("b");
+        b.manager.rebalance();
+        assertThat(b.manager.activeShards()).isEmpty();
+        a.manager.rebalance();
+        b.manager.rebalance();
+        assertThat(a.manager.activeShards()).hasSize(SHARDS / 2);
+        assertThat(b.manager.activeShards()).hasSize(SHARDS / 2);
+        a.poll();
+        b.poll();
+        for (final String spaceId : SPACES) {
+            assertThat(a.manager.owns(spaceId)).isNotEqualTo(b.manager.owns(spaceId));
+        }
+
+        notifyAll(2);
+        a.poll();
+        b.poll();
+
+        // a delivers more, then crashes without checkpointing or releasing
+        // anything, while b keeps renewing until a's leases lapse
+        final Set<String> crashed =
+                SPACES
+                        .stream()
+                        .filter(a.manager::owns)
+                        .collect(Collectors.toSet());
+        notifyAll(3);
+        a.poll();
+        for (int renewal = 0; renewal <= LEASE.dividedBy(RENEW); renewal++) {
+            this.clock.advance(RENEW);
+            b.manager.rebalance();
+        }
+        assertThat(b.manager.activeShards()).hasSize(SHARDS);
+        b.poll();
+
+        for (final String spaceId : SPACES) {
+            if (crashed.contains(spaceId)) {
+                // Everything a delivered after its last checkpoint
+                assertThat(this.delivered.get(spaceId))
+                        .as(spaceId)
+                        .containsExactly(1, 2, 3, 4, 5, 6, 2, 3, 4, 5, 6);
+            } else {
+                assertThat(this.delivered.get(spaceId))
+                        .as(spaceId)
+                        .containsExactly(1, 2, 3, 4, 5, 6);
+            }
+        }
+    }
+
+    @Test
+    void keepsAShardWhileItsWorkIsInFlight()
+            throws Exception {
+        final Replica a = new Replica("a");
+        a.manager.rebalance();
+        final Replica b = new Replica("b");
+        b.manager.rebalance();
+
+        // A space in one of the shards a gives up is busy while it rebalances
+        final String busy =
+                SPACES
+                        .stream()
+                        .filter(spaceId -> a.manager.shardOf(spaceId) >= SHARDS / 2)
+                        .findFirst()
+                        .orElseThrow();
+        final int busyShard = a.manager.shardOf(busy);
+        a.sync();
+        assertThat(a.manager.runIfOwned(
+                busy,
+                a.manager::rebalance)).isTrue();
+        assertThat(a.manager.activeShards()).containsKey(busyShard);
+        assertThat(a.released.get()).isEqualTo(SHARDS / 2 - 1);
+
+        // Released once its work is done
+        a.manager.rebalance();
+        assertThat(a.manager.activeShards()).hasSize(SHARDS / 2);
+        assertThat(a.released.get()).isEqualTo(SHARDS / 2);
+    }
+
+    @Test
+    void queuedMessagesOutliveACrash()
+            throws Exception {
+        final Replica a = new Replica("a");
+        a.manager.rebalance();
+        notifyAll(1);
+        a.poll();
+
+        // a finds more, then crashes before the outbox delivers them and
+        // before any cursor is checkpointed
+        notifyAll(2);
+        a.queue();
+        final Replica b = new Replica("b");
+        for (int renewal = 0; renewal <= LEASE.dividedBy(RENEW); renewal++) {
+            this.clock.advance(RENEW);
+            b.manager.rebalance();
+        }
+        assertThat(b.manager.activeShards()).hasSize(SHARDS);
+        b.poll();
+
+        // What's queued is past the stale cursor, so nothing is polled twice
+        for (final String spaceId : SPACES) {
+            assertThat(this.delivered.get(spaceId))
+                    .as(spaceId)
+                    .containsExactly(1, 2, 3);
+        }
+    }
+
+    @Test
+    void reacquiringAShardIsANewAcquisition()
+            throws Exception {
+        final Replica a = new Replica("a");
+        a.manager.rebalance();
+        final Map<Integer, Long> before = a.manager.activeShards();
+
+        // Renewed too late - the lease lapsed, so nothing it knew still holds
+        this.clock.advance(LEASE.plusSeconds(1));
+        a.manager.rebalance();
+
+        final Map<Integer, Long> after = a.manager.activeShards();
+        assertThat(after).hasSize(SHARDS);
+        after.forEach((shard, acquisition) ->
+                assertThat(acquisition).isNotEqualTo(before.get(shard)));
+    }
+
+    @Test
+    void renewsOnItsOwnScheduler() {
+        final ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        new ShardLeaseManager(
+                true,
+                this.leaseStore,
+                newObjectMapper(),
+                "a",
+                SHARDS,
+                LEASE,
+                RENEW,
+                () -> {
+                },
+                this.clock,
+                scheduler,
+                new SimpleMeterRegistry());
+
+        verify(scheduler).scheduleWithFixedDelay(
+                any(),
+                eq(0L),
+                eq(RENEW.toMillis()),
+                eq(TimeUnit.MILLISECONDS));
+    }
+
+    @BeforeEach
+    void setUp()
+            throws Exception {
+        this.leaseStore = new InMemoryBlobStore();
+        this.sessionStore = new InMemoryBlobStore();
+        this.outboxBucket = FakeStorage.newBucket("outbox");
+        this.foremanApiCache = mock(ForemanApiCache.class);
+
+        // Every space registers with its own Foreman client
+        final SessionRepository registrations =
+                newSessionRepository(new SimpleMeterRegistry());
+        final Map<Integer, ForemanApi> apis = new HashMap<>();
+        for (int clientId = 0; clientId < SPACES.size(); clientId++) {
+            final String spaceId = SPACES.get(clientId);
+            registrations.make(
+                    spaceId,
+                    clientId,
+                    "key",
+                    REGISTERED);
+            apis.put(
+                    clientId,
+                    newForemanApi(spaceId));
+            this.delivered.put(spaceId, new ArrayList<>());
+            this.latest.put(spaceId, 0);
+        }
+        when(this.foremanApiCache.get(
+                anyInt(),
+                anyString())).thenAnswer(invocation ->
+                apis.get(invocation.<Integer>getArgument(0)));
+    }
+
+    @Test
+    void startsWorkingOnceSynced()
+            throws Exception {
+        final Replica a = new Replica("a");
+        a.manager.rebalance();
+
+        final AtomicBoolean ran = new AtomicBoolean();
+        assertThat(a.manager.runIfOwned(SPACES.get(0), () -> ran.set(true))).isFalse();
+        assertThat(a.manager.owns(SPACES.get(0))).isFalse();
+
+        a.sync();
+        assertThat(a.manager.runIfOwned(SPACES.get(0), () -> ran.set(true))).isTrue();
+        assertThat(ran).isTrue();
+    }
+
+    @Test
+    void stopsWorkingOnceTheLeaseCantBeTrusted()
+            throws Exception {
+        final Replica a = new Replica("a");
+        a.manager.rebalance();
+        a.sync();
+        assertThat(a.manager.owns(SPACES.get(0))).isTrue();
+
+        this.clock.advance(LEASE.minus(RENEW));
+
+        final AtomicBoolean ran = new AtomicBoolean();
+        assertThat(a.manager.runIfOwned(SPACES.get(0), () -> ran.set(true))).isFalse();
+        assertThat(ran).isFalse();
+        assertThat(a.manager.activeShards()).isEmpty();
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.replicas.forEach(Replica::stop);
+    }
+
+    /**
+     * Records a message that was sent to a space.
+     *
+     * @param spaceId The space.
+     * @param text    The message.
+     */
+    private synchronized void deliver(
+            final String spaceId,
+            final String text) {
+        final Matcher matcher = ID.matcher(text);
+        assertThat(matcher.find()).as(text).isTrue();
+        this.delivered.get(spaceId).add(Integer.parseInt(matcher.group(1)));
+    }
+
+    /**
+     * Returns a Foreman client whose feed holds every notification published
+     * to the provided space.
+     *
+     * @param spaceId The space.
+     *
+     * @return The client.
+     */
+    private ForemanApi newForemanApi(final String spaceId) {
+        final Notifications notifications = mock(Notifications.class);
+        when(notifications.googleChat(
+                anyInt(),
+                any())).thenAnswer(invocation -> {
+            final List<Notifications.Notification> feed = new ArrayList<>();
+            final int latest;
+            synchronized (this) {
+                latest = this.latest.get(spaceId);
+            }
+            for (int id = invocation.<Integer>getArgument(0) + 1; id <= latest; id++) {
+                final Notifications.Notification notification =
+                        new Notifications.Notification();
+                notification.id = id;
+                notification.subject = Integer.toString(id);
+                notification.failingMiners = Collections.emptyList();
+                feed.add(notification);
+            }
+            return feed;
+        });
+        final ForemanApi foremanApi = mock(ForemanApi.class);
+        when(foremanApi.notifications()).thenReturn(notifications);
+        return foremanApi;
+    }
+
+    /**
+     * Returns a replica's view of the shared session store, built the way
+     * the bot builds it.
+     *
+     * @param meterRegistry The registry for the repository metrics.
+     *
+     * @return The repository.
+     */
+    private SessionRepository newSessionRepository(final MeterRegistry meterRegistry) {
+        return new CachingSessionRepository(
+                new SnapshotSessionRepository(
+                        newObjectMapper(),
+                        this.sessionStore,
+                        1000,
+                        mock(ScheduledExecutorService.class),
+                        Duration.ofMinutes(1),
+                        meterRegistry),
+                Duration.ofMinutes(5),
+                100,
+                meterRegistry);
+    }
+
+    /**
+     * Publishes the provided number of new notifications to every space.
+     *
+     * @param count The number of notifications.
+     */
+    private synchronized void notifyAll(final int count) {
+        this.latest.replaceAll((spaceId, id) -> id + count);
+    }
+
+    /**
+     * Returns the mapper for the leases.
+     *
+     * @return The mapper.
+     */
+    private static ObjectMapper newObjectMapper() {
+        return new ObjectMapper().registerModule(new JavaTimeModule());
+    }
+
+    /** A {@link Clock} that only moves when it's told to. */
+    private static class MutableClock
+            extends Clock {
+
+        /** The current time. */
+        private Instant now = Instant.parse("2022-06-01T00:00:00Z");
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Instant instant() {
+            return this.now;
+        }
+
+        @Override
+        public Clock withZone(final ZoneId zone) {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Moves the clock forward.
+         *
+         * @param duration How far to move it.
+         */
+        private void advance(final Duration duration) {
+            this.now = this.now.plus(duration);
+        }
+    }
+
+    /**
+     * A bot replica, wired like the bot: its notifier polls the feed for the
+     * spaces it owns and queues what it finds, its dispatcher delivers the
+     * queue, and its checkpointer writes the delivered cursors when it gives
+     * up a shard. Nothing runs in the background - each step is taken when
+     * the test says so, and a crashed replica is one that's never called
+     * again.
+     */
+    private class Replica {
+
+        /** Checkpoints the cursors of delivered messages. */
+        private final CursorCheckpointer cursorCheckpointer;
+
+        /** The executor that delivers to each space. */
+        private final ExecutorService deliveryExecutor;
+
+        /** The executor that polls each session. */
+        private final ExecutorService fanOutExecutor;
+
+        /** The manager for this replica's leases. */
+        private final ShardLeaseManager manager;
+
+        /** Polls the feed and queues what it finds. */
+        private final Notifier notifier;
+
+        /** Delivers the queue. */
+        private final OutboxDispatcher outboxDispatcher;
+
+        /** The number of shards released. */
+        private final AtomicInteger released = new AtomicInteger();
+
+        /** Interrupts sessions that exceed their deadline. */
+        private final ScheduledExecutorService watchdog;
+
+        /**
+         * Constructor.
+         *
+         * @param replicaId The ID of the replica.
+         */
+        private Replica(final String replicaId) {
+            final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+            final SessionRepository sessionRepository =
+                    newSessionRepository(meterRegistry);
+            final OutboundQueue outboundQueue =
+                    new GoogleStorageOutboundQueue(
+                            newObjectMapper(),
+                            ShardLeaseManagerTest.this.outboxBucket);
+            this.cursorCheckpointer =
+                    new CursorCheckpointer(
+                            sessionRepository,
+                            meterRegistry);
+            this.manager =
+                    new ShardLeaseManager(
+                            true,
+                            ShardLeaseManagerTest.this.leaseStore,
+                            newObjectMapper(),
+                            replicaId,
+                            SHARDS,
+                            LEASE,
+                            RENEW,
+                            () -> {
+                                this.released.incrementAndGet();
+                                this.cursorCheckpointer.flush();
+                            },
+                            ShardLeaseManagerTest.this.clock,
+                            mock(ScheduledExecutorService.class),
+                            meterRegistry);
+            this.deliveryExecutor = Executors.newSingleThreadExecutor();
+            this.fanOutExecutor = Executors.newSingleThreadExecutor();
+            this.watchdog = Executors.newSingleThreadScheduledExecutor();
+            final ChatSender chatSender = ShardLeaseManagerTest.this::deliver;
+            this.outboxDispatcher =
+                    new OutboxDispatcher(
+                            outboundQueue,
+                            chatSender,
+                            sessionRepository,
+                            this.cursorCheckpointer,
+                            this.manager,
+                            this.deliveryExecutor,
+                            mock(ScheduledExecutorService.class),
+                            Duration.ZERO,
+                            Duration.ZERO,
+                            meterRegistry);
+            this.notifier =
+                    new Notifier(
+                            "https://dashboard.foreman.mn",
+                            10,
+                            ShardLeaseManagerTest.this.foremanApiCache,
+                            REGISTERED,
+                            sessionRepository,
+                            outboundQueue,
+                            new NotificationFanOut(
+                                    this.fanOutExecutor,
+                                    this.watchdog,
+                                    Duration.ofMinutes(1),
+                                    meterRegistry),
+                            new SessionScheduler(
+                                    INTERVAL,
+                                    INTERVAL,
+                                    1,
+                                    meterRegistry),
+                            new MessageBatcher(
+                                    false,
+                                    4096,
+                                    meterRegistry),
+                            100,
+                            this.manager,
+                            Duration.ZERO);
+            ShardLeaseManagerTest.this.replicas.add(this);
+        }
+
+        /**
+         * Polls the feed for every space this replica owns and delivers what
+         * it finds.
+         *
+         * @throws Exception on failure.
+         */
+        private void poll()
+                throws Exception {
+            queue();
+            this.outboxDispatcher.dispatch();
+        }
+
+        /**
+         * Polls the feed for every space this replica owns and queues what it
+         * finds, without delivering it.
+         *
+         * @throws Exception on failure.
+         */
+        private void queue()
+                throws Exception {
+            // Every session is due again once its interval has passed
+            Thread.sleep(INTERVAL.toMillis() * 2);
+            sync();
+        }
+
+        /** Stops this replica's threads. */
+        private void stop() {
+            this.deliveryExecutor.shutdownNow();
+            this.fanOutExecutor.shutdownNow();
+            this.watchdog.shutdownNow();
+        }
+
+        /**
+         * Picks up the sessions and queued messages of every shard acquired
+         * since the last sync, and polls the sessions that are due.
+         *
+         * @throws Exception on failure.
+         */
+        private void sync()
+                throws Exception {
+            this.notifier.sendNotifications();
+        }
+    }
+}
@@ -0,0 +1,384 @@
+package mn.foreman.googelchatbot.storage;
+
+import com.google.api.client.util.DateTime;
+import com.google.api.services.storage.model.StorageObject;
+import com.google.cloud.NoCredentials;
+import com.google.cloud.ServiceOptions;
+import com.google.cloud.Tuple;
+import com.google.cloud.storage.Bucket;
+import com.google.cloud.storage.LocalBuckets;
+import com.google.cloud.storage.StorageException;
+import com.google.cloud.storage.StorageOptions;
+import com.google.cloud.storage.spi.v1.StorageRpc;
+import com.google.common.io.ByteStreams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory stand-in for Google Cloud Storage, plugged in beneath the real
+ * client so that {@link Bucket}, {@link com.google.cloud.storage.Blob} and
+ * {@link com.google.cloud.storage.Storage} behave as they do in production.
+ *
+ * <p>It implements the requests the bot makes - creating, reading, listing
+ * and deleting objects - the way the service does: every write gets a new
+ * generation, generation preconditions fail with 412, reading a generation
+ * that's been replaced fails with 404, and listings are paged and can stop
+ * at a delimiter. Every request can be made slow or unreliable.</p>
+ */
+public class FakeStorage
+        implements InvocationHandler {
+
+    /** The status code for a missing object. */
+    private static final int NOT_FOUND = 404;
+
+    /** The status code for a failed precondition. */
+    private static final int PRECONDITION_FAILED = 412;
+
+    /** The status code for an injected failure. */
+    private static final int UNAVAILABLE = 503;
+
+    /** The probability that a request fails. */
+    private final double failureRate;
+
+    /** The last generation that was written. */
+    private final AtomicLong generation = new AtomicLong();
+
+    /** How long every request takes. */
+    private final Duration latency;
+
+    /** The stored objects, by bucket and name. */
+    private final NavigableMap<String, Stored> objects =
+            new ConcurrentSkipListMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param latency     How long every request takes.
+     * @param failureRate The probability that a request fails, from 0 to 1.
+     */
+    private FakeStorage(
+            final Duration latency,
+            final double failureRate) {
+        this.latency = latency;
+        this.failureRate = failureRate;
+    }
+
+    /**
+     * Returns an empty bucket that's always fast and reliable.
+     *
+     * @param name The bucket name.
+     *
+     * @return The bucket.
+     */
+    public static Bucket newBucket(final String name) {
+        return newBucket(
+                name,
+                Duration.ZERO,
+                0);
+    }
+
+    /**
+     * Returns an empty bucket.
+     *
+     * @param name        The bucket name.
+     * @param latency     How long every request takes.
+     * @param failureRate The probability that a request fails, from 0 to 1.
+     *
+     * @return The bucket.
+     */
+    public static Bucket newBucket(
+            final String name,
+            final Duration latency,
+            final double failureRate) {
+        final StorageRpc rpc =
+                (StorageRpc) Proxy.newProxyInstance(
+                        StorageRpc.class.getClassLoader(),
+                        new Class<?>[]{StorageRpc.class},
+                        new FakeStorage(
+                                latency,
+                                failureRate));
+        return LocalBuckets.of(
+                StorageOptions
+                        .newBuilder()
+                        .setProjectId("local")
+                        .setCredentials(NoCredentials.getInstance())
+                        .setRetrySettings(ServiceOptions.getNoRetrySettings())
+                        .setServiceRpcFactory(options -> rpc)
+                        .build()
+                        .getService(),
+                name);
+    }
+
+    @Override
+    public Object invoke(
+            final Object proxy,
+            final Method method,
+            final Object[] args)
+            throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            try {
+                return method.invoke(this, args);
+            } catch (final InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+        simulate();
+        final Class<?>[] types = method.getParameterTypes();
+        switch (method.getName()) {
+            case "create":
+                if (types.length == 3 && types[0] == StorageObject.class) {
+                    return create(
+                            (StorageObject) args[0],
+                            (InputStream) args[1],
+                            options(args[2]));
+                }
+                break;
+            case "delete":
+                if (types[0] == StorageObject.class) {
+                    return this.objects.remove(toKey((StorageObject) args[0])) != null;
+                }
+                break;
+            case "get":
+                if (types[0] == StorageObject.class) {
+                    final Stored stored = this.objects.get(toKey((StorageObject) args[0]));
+                    return stored != null
+                            ? stored.metadata
+                            : null;
+                }
+                break;
+            case "list":
+                if (types.length == 2) {
+                    return list(
+                            (String) args[0],
+                            options(args[1]));
+                }
+                break;
+            case "load":
+                return load((StorageObject) args[0]);
+            default:
+                break;
+        }
+        throw new UnsupportedOperationException(method.toString());
+    }
+
+    /**
+     * Stores an object, if it meets its precondition.
+     *
+     * @param object  The object's metadata.
+     * @param content The object's content.
+     * @param options The request options.
+     *
+     * @return The stored object's metadata.
+     *
+     * @throws IOException on failure.
+     */
+    private StorageObject create(
+            final StorageObject object,
+            final InputStream content,
+            final Map<StorageRpc.Option, ?> options)
+            throws IOException {
+        final byte[] bytes = ByteStreams.toByteArray(content);
+        final String key = toKey(object);
+        final Object match = options.get(StorageRpc.Option.IF_GENERATION_MATCH);
+        synchronized (this.objects) {
+            final Stored current = this.objects.get(key);
+            if (match != null) {
+                final long expected = ((Number) match).longValue();
+                final long actual =
+                        current != null
+                                ? current.metadata.getGeneration()
+                                : 0;
+                if (expected != actual) {
+                    throw new StorageException(
+                            PRECONDITION_FAILED,
+                            "Precondition Failed");
+                }
+            }
+            final StorageObject metadata =
+                    new StorageObject()
+                            .setBucket(object.getBucket())
+                            .setName(object.getName())
+                            .setContentType(object.getContentType())
+                            .setGeneration(this.generation.incrementAndGet())
+                            .setMetageneration(1L)
+                            .setSize(BigInteger.valueOf(bytes.length))
+                            .setUpdated(new DateTime(System.currentTimeMillis()));
+            this.objects.put(
+                    key,
+                    new Stored(
+                            bytes,
+                            metadata));
+            return metadata;
+        }
+    }
+
+    /**
+     * Lists the objects in a bucket, a page at a time.
+     *
+     * @param bucket  The bucket.
+     * @param options The request options.
+     *
+     * @return The token for the next page, and this page's objects.
+     */
+    private Tuple<String, Iterable<StorageObject>> list(
+            final String bucket,
+            final Map<StorageRpc.Option, ?> options) {
+        final Object prefixOption = options.get(StorageRpc.Option.PREFIX);
+        final String prefix =
+                prefixOption != null
+                        ? prefixOption.toString()
+                        : "";
+        final Object delimiter = options.get(StorageRpc.Option.DELIMITER);
+        final Object maxResults = options.get(StorageRpc.Option.MAX_RESULTS);
+        final long limit =
+                maxResults != null
+                        ? ((Number) maxResults).longValue()
+                        : Long.MAX_VALUE;
+        final Object pageToken = options.get(StorageRpc.Option.PAGE_TOKEN);
+
+        final String from =
+                pageToken != null
+                        ? bucket + "/" + pageToken
+                        : bucket + "/" + prefix;
+        final List<StorageObject> page = new ArrayList<>();
+        String last = null;
+        for (final Map.Entry<String, Stored> entry :
+                this.objects.tailMap(from, pageToken == null).entrySet()) {
+            final String name = entry.getKey().substring(bucket.length() + 1);
+            if (!entry.getKey().startsWith(bucket + "/") || !name.startsWith(prefix)) {
+                break;
+            }
+            final int end =
+                    delimiter != null
+                            ? name.indexOf(delimiter.toString(), prefix.length())
+                            : -1;
+            final String listed =
+                    end >= 0
+                            ? name.substring(0, end + 1)
+                            : name;
+            if (listed.equals(last)) {
+                continue;
+            }
+            if (page.size() >= limit) {
+                return Tuple.of(
+                        last,
+                        page);
+            }
+            page.add(
+                    end >= 0
+                            ? new StorageObject()
+                            .set("isDirectory", true)
+                            .setBucket(bucket)
+                            .setName(listed)
+                            .setSize(BigInteger.ZERO)
+                            : entry.getValue().metadata);
+            last = listed;
+        }
+        return Tuple.of(
+                null,
+                page);
+    }
+
+    /**
+     * Reads an object's content. Reading a generation that's been replaced
+     * fails, as it does with the service.
+     *
+     * @param object The object.
+     *
+     * @return The content.
+     */
+    private byte[] load(final StorageObject object) {
+        final Stored stored = this.objects.get(toKey(object));
+        if (stored == null ||
+                (object.getGeneration() != null &&
+                        !object.getGeneration().equals(stored.metadata.getGeneration()))) {
+            throw new StorageException(
+                    NOT_FOUND,
+                    "Not Found");
+        }
+        return stored.content.clone();
+    }
+
+    /**
+     * Waits for the configured latency, then fails with the configured
+     * probability.
+     */
+    private void simulate() {
+        if (!this.latency.isZero()) {
+            try {
+                Thread.sleep(this.latency.toMillis());
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new StorageException(
+                        UNAVAILABLE,
+                        "Interrupted");
+            }
+        }
+        if (this.failureRate > 0 &&
+                ThreadLocalRandom.current().nextDouble() < this.failureRate) {
+            throw new StorageException(
+                    UNAVAILABLE,
+                    "Injected failure");
+        }
+    }
+
+    /**
+     * Casts the provided request options.
+     *
+     * @param options The options.
+     *
+     * @return The options.
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<StorageRpc.Option, ?> options(final Object options) {
+        return (Map<StorageRpc.Option, ?>) options;
+    }
+
+    /**
+     * Returns the key for the provided object.
+     *
+     * @param object The object.
+     *
+     * @return The key.
+     */
+    private static String toKey(final StorageObject object) {
+        return object.getBucket() + "/" + object.getName();
+    }
+
+    /** A stored object. */
+    private static class Stored {
+
+        /** The content. */
+        private final byte[] content;
+
+        /** The metadata. */
+        private final StorageObject metadata;
+
+        /**
+         * Constructor.
+         *
+         * @param content  The content.
+         * @param metadata The metadata.
+         */
+        private Stored(
+                final byte[] content,
+                final StorageObject metadata) {
+            this.content = content;
+            this.metadata = metadata;
+        }
+    }
+}
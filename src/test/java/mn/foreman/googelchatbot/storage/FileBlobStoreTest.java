@@ -0,0 +1,84 @@
+package mn.foreman.googelchatbot.storage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/** Tests for {@link FileBlobStore}. */
+class FileBlobStoreTest {
+
+    /** The directory for the blobs. */
+    @TempDir
+    Path directory;
+
+    @Test
+    void createOnlyCreatesMissingBlobs()
+            throws Exception {
+        final FileBlobStore store = new FileBlobStore(this.directory);
+
+        assertThat(store.create("leases/a.json", bytes("first"))).isTrue();
+        assertThat(store.create("leases/a.json", bytes("second"))).isFalse();
+
+        assertThat(store.read("leases/a.json")).hasValueSatisfying(
+                content -> assertThat(content).isEqualTo(bytes("first")));
+        assertThat(store.list("leases/")).containsExactly("leases/a.json");
+    }
+
+    @Test
+    void replaceFailsAfterTheSameContentIsWrittenAgain()
+            throws Exception {
+        final FileBlobStore store = new FileBlobStore(this.directory);
+        store.write("blob", bytes("a"));
+        final long version = store.get("blob").orElseThrow().getVersion();
+
+        // a, then b, then a again
+        store.write("blob", bytes("b"));
+        store.write("blob", bytes("a"));
+
+        assertThat(store.replace("blob", bytes("c"), version)).isFalse();
+        assertThat(store.read("blob")).hasValueSatisfying(
+                content -> assertThat(content).isEqualTo(bytes("a")));
+    }
+
+    @Test
+    void replaceSucceedsAtTheCurrentVersion()
+            throws Exception {
+        final FileBlobStore store = new FileBlobStore(this.directory);
+        store.write("blob", bytes("a"));
+        final long version = store.get("blob").orElseThrow().getVersion();
+
+        assertThat(store.replace("blob", bytes("b"), version)).isTrue();
+        assertThat(store.replace("blob", bytes("c"), version)).isFalse();
+        assertThat(store.replace("missing", bytes("c"), version)).isFalse();
+    }
+
+    @Test
+    void versionsNeverRepeatAcrossStoresOrDeletes()
+            throws Exception {
+        final FileBlobStore first = new FileBlobStore(this.directory);
+        final FileBlobStore second = new FileBlobStore(this.directory);
+        first.write("blob", bytes("a"));
+        final long before = first.get("blob").orElseThrow().getVersion();
+
+        second.delete("blob");
+        assertThat(first.get("blob")).isEmpty();
+        second.create("blob", bytes("a"));
+
+        assertThat(first.get("blob").orElseThrow().getVersion()).isGreaterThan(before);
+    }
+
+    /**
+     * Encodes the provided text.
+     *
+     * @param text The text.
+     *
+     * @return The bytes.
+     */
+    private static byte[] bytes(final String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,161 @@
+package mn.foreman.googelchatbot.storage;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link BlobStore} that keeps every blob in memory. It behaves like the
+ * bucket - conditional writes are atomic, and every write gets a new
+ * version, like a generation - but can be made slow or unreliable, so the
+ * repositories built on top of it can be exercised and measured without a
+ * bucket.
+ *
+ * <p>Every call waits for the configured latency before touching the blobs,
+ * and then fails with the configured probability.</p>
+ */
+public class InMemoryBlobStore
+        implements BlobStore {
+
+    /** The blobs, by name. */
+    private final ConcurrentSkipListMap<String, StoredBlob> blobs =
+            new ConcurrentSkipListMap<>();
+
+    /** The probability that a call fails. */
+    private final double failureRate;
+
+    /** How long every call takes. */
+    private final Duration latency;
+
+    /** The last version that was written. */
+    private final AtomicLong version = new AtomicLong();
+
+    /** Constructor for a store that's always fast and reliable. */
+    public InMemoryBlobStore() {
+        this(
+                Duration.ZERO,
+                0);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param latency     How long every call takes.
+     * @param failureRate The probability that a call fails, from 0 to 1.
+     */
+    public InMemoryBlobStore(
+            final Duration latency,
+            final double failureRate) {
+        this.latency = latency;
+        this.failureRate = failureRate;
+    }
+
+    @Override
+    public boolean create(
+            final String name,
+            final byte[] content)
+            throws IOException {
+        simulate();
+        return this.blobs.putIfAbsent(
+                name,
+                toBlob(content)) == null;
+    }
+
+    @Override
+    public void delete(final String name)
+            throws IOException {
+        simulate();
+        this.blobs.remove(name);
+    }
+
+    @Override
+    public Optional<StoredBlob> get(final String name)
+            throws IOException {
+        simulate();
+        return Optional
+                .ofNullable(this.blobs.get(name))
+                .map(blob -> new StoredBlob(
+                        blob.getContent().clone(),
+                        blob.getVersion()));
+    }
+
+    @Override
+    public List<String> list(final String prefix)
+            throws IOException {
+        simulate();
+        return new ArrayList<>(
+                this.blobs
+                        .subMap(
+                                prefix,
+                                prefix + Character.MAX_VALUE)
+                        .keySet());
+    }
+
+    @Override
+    public boolean replace(
+            final String name,
+            final byte[] content,
+            final long version)
+            throws IOException {
+        simulate();
+        final StoredBlob replacement = toBlob(content);
+        final StoredBlob current = this.blobs.get(name);
+        return current != null &&
+                current.getVersion() == version &&
+                this.blobs.replace(
+                        name,
+                        current,
+                        replacement);
+    }
+
+    @Override
+    public void write(
+            final String name,
+            final byte[] content)
+            throws IOException {
+        simulate();
+        this.blobs.put(
+                name,
+                toBlob(content));
+    }
+
+    /**
+     * Waits for the configured latency, then fails with the configured
+     * probability.
+     *
+     * @throws IOException if the call should fail.
+     */
+    private void simulate()
+            throws IOException {
+        if (!this.latency.isZero()) {
+            try {
+                Thread.sleep(this.latency.toMillis());
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+        }
+        if (this.failureRate > 0 &&
+                ThreadLocalRandom.current().nextDouble() < this.failureRate) {
+            throw new IOException("Injected failure");
+        }
+    }
+
+    /**
+     * Copies the provided content into a blob with a new version.
+     *
+     * @param content The content.
+     *
+     * @return The blob.
+     */
+    private StoredBlob toBlob(final byte[] content) {
+        return new StoredBlob(
+                content.clone(),
+                this.version.incrementAndGet());
+    }
+}
@@ -0,0 +1,200 @@
+package mn.foreman.googelchatbot.utils;
+
+import mn.foreman.api.ForemanApi;
+import mn.foreman.googelchatbot.commands.ForgetHandler;
+import mn.foreman.googelchatbot.commands.RegisterHandler;
+import mn.foreman.googelchatbot.notifications.SessionScheduler;
+import mn.foreman.googelchatbot.session.Session;
+import mn.foreman.googelchatbot.session.SessionRepository;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/** Tests for {@link ForemanApiCache}. */
+class ForemanApiCacheTest {
+
+    /** The Foreman API URL, which nothing listens on. */
+    private static final String FOREMAN_API_URL = "http://localhost:1";
+
+    /** The space that registered. */
+    private static final String SPACE_ID = "spaces/a";
+
+    /** The registry for the cache metrics. */
+    private MeterRegistry meterRegistry;
+
+    /** The repository holding the space's session. */
+    private SessionRepository sessionRepository;
+
+    /** The scheduler for the space's notifications. */
+    private SessionScheduler sessionScheduler;
+
+    @Test
+    void clientsAreBuiltOnceAndCounted() {
+        final ForemanApiCache cache = newCache(10);
+
+        final ForemanApi first =
+                cache.get(
+                        1,
+                        "key");
+        final ForemanApi second =
+                cache.get(
+                        1,
+                        "key");
+        cache.get(
+                1,
+                "other");
+
+        assertThat(second).isSameAs(first);
+        assertThat(cache.hits()).isEqualTo(1);
+        assertThat(cache.misses()).isEqualTo(2);
+        assertThat(gets("hit")).isEqualTo(1);
+        assertThat(gets("miss")).isEqualTo(2);
+    }
+
+    @Test
+    void forgetDiscardsTheClient() {
+        final ForemanApiCache cache = newCache(10);
+        registered(
+                1,
+                "key");
+        final ForemanApi before =
+                cache.get(
+                        1,
+                        "key");
+
+        new ForgetHandler(
+                this.sessionRepository,
+                cache,
+                this.sessionScheduler)
+                .handle(
+                        "",
+                        SPACE_ID);
+
+        assertThat(cache.get(
+                1,
+                "key"))
+                .isNotSameAs(before);
+    }
+
+    @Test
+    void leastRecentlyUsedClientsAreEvicted() {
+        final ForemanApiCache cache = newCache(1);
+        final ForemanApi first =
+                cache.get(
+                        1,
+                        "key");
+
+        cache.get(
+                2,
+                "key");
+
+        assertThat(cache.get(
+                1,
+                "key"))
+                .isNotSameAs(first);
+        assertThat(cache.misses()).isEqualTo(3);
+        assertThat(this.meterRegistry
+                .get("cache.evictions")
+                .tag("cache", "foreman.api.clients")
+                .functionCounter()
+                .count())
+                .isEqualTo(2);
+    }
+
+    @Test
+    void reRegisteringDiscardsTheOldClient() {
+        final ForemanApiCache cache = newCache(10);
+        registered(
+                1,
+                "old");
+        final ForemanApi before =
+                cache.get(
+                        1,
+                        "old");
+
+        // The new credentials can't be checked, which doesn't matter here
+        new RegisterHandler(
+                cache,
+                "https://dashboard.foreman.mn",
+                this.sessionRepository,
+                this.sessionScheduler)
+                .handle(
+                        "2 new",
+                        SPACE_ID);
+
+        assertThat(cache.get(
+                1,
+                "old"))
+                .isNotSameAs(before);
+    }
+
+    @BeforeEach
+    void setUp() {
+        this.meterRegistry = new SimpleMeterRegistry();
+        this.sessionRepository = mock(SessionRepository.class);
+        this.sessionScheduler = mock(SessionScheduler.class);
+    }
+
+    /**
+     * Returns the number of lookups with the provided result.
+     *
+     * @param result hit or miss.
+     *
+     * @return The number of lookups.
+     */
+    private double gets(final String result) {
+        return this.meterRegistry
+                .get("cache.gets")
+                .tag("cache", "foreman.api.clients")
+                .tag("result", result)
+                .functionCounter()
+                .count();
+    }
+
+    /**
+     * Returns a cache that holds clients for an hour.
+     *
+     * @param maxSize The max number of clients to retain.
+     *
+     * @return The cache.
+     */
+    private ForemanApiCache newCache(final long maxSize) {
+        return new ForemanApiCache(
+                FOREMAN_API_URL,
+                new ObjectMapper(),
+                maxSize,
+                Duration.ofHours(1),
+                this.meterRegistry);
+    }
+
+    /**
+     * Registers {@link #SPACE_ID} with the provided credentials.
+     *
+     * @param clientId The client ID.
+     * @param apiKey   The client API key.
+     */
+    private void registered(
+            final int clientId,
+            final String apiKey) {
+        when(this.sessionRepository.findBySpaceId(SPACE_ID)).thenReturn(
+                Optional.of(
+                        Session
+                                .builder()
+                                .spaceId(SPACE_ID)
+                                .clientId(clientId)
+                                .apiKey(apiKey)
+                                .dateRegistered(Instant.parse("2022-06-01T00:00:00Z"))
+                                .build()));
+    }
+}
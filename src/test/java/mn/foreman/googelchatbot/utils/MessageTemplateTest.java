@@ -0,0 +1,108 @@
+package mn.foreman.googelchatbot.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/** Tests for {@link MessageTemplate}. */
+class MessageTemplateTest {
+
+    @Test
+    void appendResolvedResolvesOnlyTextWithAliases() {
+        final StringBuilder builder = new StringBuilder();
+
+        MessageTemplate.appendResolved(
+                builder,
+                "Board 2 is hot :fire:");
+        MessageTemplate.appendResolved(
+                builder,
+                " 12:30 ");
+        MessageTemplate.appendResolved(
+                builder,
+                "no aliases");
+
+        assertThat(builder.toString())
+                .isEqualTo("Board 2 is hot \ud83d\udd25 12:30 no aliases");
+    }
+
+    @Test
+    void argumentsAreResolved() {
+        final MessageTemplate template = MessageTemplate.compile(":x: *{}*");
+
+        assertThat(render(
+                template,
+                "Miners down :wave:"))
+                .isEqualTo("\u274c *Miners down \ud83d\udc4b*");
+        assertThat(render(
+                template,
+                42))
+                .isEqualTo("\u274c *42*");
+    }
+
+    @Test
+    void compileResolvesEmojiAliases() {
+        final MessageTemplate template =
+                MessageTemplate.compile(":white_check_mark: *{}* :beers:");
+
+        assertThat(render(
+                template,
+                "subject"))
+                .isEqualTo("\u2705 *subject* \ud83c\udf7b");
+        assertThat(template.literalLength())
+                .isEqualTo("\u2705 ** \ud83c\udf7b".length());
+    }
+
+    @Test
+    void placeholdersAreFilledInOrder() {
+        final MessageTemplate template =
+                MessageTemplate.compile("{}/dashboard/miners/{}/details/|{}");
+
+        assertThat(render(
+                template,
+                "https://foreman.mn",
+                42,
+                "miner"))
+                .isEqualTo("https://foreman.mn/dashboard/miners/42/details/|miner");
+    }
+
+    @Test
+    void renderAppendsToTheBuilder() {
+        final StringBuilder builder = new StringBuilder("before ");
+
+        MessageTemplate.compile("{} after").render(
+                builder,
+                "middle");
+
+        assertThat(builder.toString()).isEqualTo("before middle after");
+    }
+
+    @Test
+    void resolveResolvesEmojiAliases() {
+        assertThat(MessageTemplate.resolve("*Connectivity to Foreman:* :x:\n"))
+                .isEqualTo("*Connectivity to Foreman:* \u274c\n");
+    }
+
+    @Test
+    void templatesWithoutPlaceholdersRenderAsIs() {
+        final MessageTemplate template = MessageTemplate.compile("Hello! :wave:");
+
+        assertThat(render(template)).isEqualTo("Hello! \ud83d\udc4b");
+        assertThat(template.literalLength()).isEqualTo("Hello! \ud83d\udc4b".length());
+    }
+
+    /**
+     * Renders the provided template into a new builder.
+     *
+     * @param template The template.
+     * @param args     The arguments.
+     *
+     * @return The rendered message.
+     */
+    private static String render(
+            final MessageTemplate template,
+            final Object... args) {
+        return template.render(
+                new StringBuilder(),
+                args).toString();
+    }
+}